@@ -0,0 +1,111 @@
+var util = require('util');
+var bleno = require('bleno');
+
+var CHARACTERISTIC_NAME = 'Lamp State';
+
+// Packed lamp state: [on, hue, saturation, brightness], one byte each.
+// Lets a client change everything in a single write instead of writing the
+// On / Off, HSV and Brightness characteristics one after another.
+var STATE_LENGTH = 4;
+// The same state followed by a little endian 32 bit sequence number, written
+// by clients that also send the command over MQTT.
+var SEQUENCED_STATE_LENGTH = 8;
+
+function LampiStateCharacteristic(lampiState) {
+  LampiStateCharacteristic.super_.call(this, {
+    uuid: '0005A7D3-D8A4-4FEA-8174-1736E808C066',
+    properties: ['read', 'write', 'writeWithoutResponse', 'notify'],
+    secure: [],
+    descriptors: [
+        new bleno.Descriptor({
+            uuid: '2901',
+            value: CHARACTERISTIC_NAME,
+        }),
+        new bleno.Descriptor({
+           uuid: '2904',
+           value: new Buffer([0x1B, 0x00, 0x27, 0x00, 0x01, 0x00, 0x00])
+        }),
+    ],
+  });
+
+  this._update = null;
+  this._notifyPending = false;
+
+  // A single MQTT update can fire all three change events; send one
+  //   notification for the lot.
+  this.changed_state = function() {
+    if( this._update === null || this._notifyPending ) {
+        return;
+    }
+    this._notifyPending = true;
+    var that = this;
+    setImmediate(function() {
+        that._notifyPending = false;
+        if( that._update !== null ) {
+            console.log('lampiState changed LampiStateCharacteristic');
+            that._update(that.packState());
+        }
+    });
+  }
+
+  this.lampiState = lampiState;
+
+  this.lampiState.on('changed-onoff', this.changed_state.bind(this));
+  this.lampiState.on('changed-hsv', this.changed_state.bind(this));
+  this.lampiState.on('changed-brightness', this.changed_state.bind(this));
+
+}
+
+util.inherits(LampiStateCharacteristic, bleno.Characteristic);
+
+LampiStateCharacteristic.prototype.packState = function() {
+    var data = new Buffer(STATE_LENGTH);
+    data.writeUInt8(this.lampiState.is_on ? 0x01 : 0x00, 0);
+    data.writeUInt8(Math.round(this.lampiState.hue), 1);
+    data.writeUInt8(Math.round(this.lampiState.saturation), 2);
+    data.writeUInt8(Math.round(this.lampiState.brightness), 3);
+    return data;
+};
+
+LampiStateCharacteristic.prototype.onReadRequest = function(offset, callback) {
+  console.log('onReadRequest');
+  if (offset) {
+    console.log('onReadRequest offset');
+    callback(this.RESULT_ATTR_NOT_LONG, null);
+  }
+  else {
+    var data = this.packState();
+    console.log('onReadRequest returning ', data);
+    callback(this.RESULT_SUCCESS, data);
+  }
+};
+
+LampiStateCharacteristic.prototype.onWriteRequest = function(data, offset, withoutResponse, callback) {
+    if(offset) {
+        callback(this.RESULT_ATTR_NOT_LONG);
+    }
+    else if (data.length !== STATE_LENGTH && data.length !== SEQUENCED_STATE_LENGTH) {
+        callback(this.RESULT_INVALID_ATTRIBUTE_LENGTH);
+    }
+    else {
+        var seq = data.length === SEQUENCED_STATE_LENGTH ? data.readUInt32LE(4) : undefined;
+        this.lampiState.set_state( data.readUInt8(0) === 0x1,
+                                   data.readUInt8(1),
+                                   data.readUInt8(2),
+                                   data.readUInt8(3),
+                                   seq );
+        callback(this.RESULT_SUCCESS);
+    }
+};
+
+LampiStateCharacteristic.prototype.onSubscribe = function(maxValueSize, updateValueCallback) {
+    console.log('subscribe on ', CHARACTERISTIC_NAME);
+    this._update = updateValueCallback;
+}
+
+LampiStateCharacteristic.prototype.onUnsubscribe = function() {
+    console.log('unsubscribe on ', CHARACTERISTIC_NAME);
+    this._update = null;
+}
+
+module.exports = LampiStateCharacteristic;
@@ -98,4 +98,22 @@ LampiState.prototype.set_hsv = function(hue, saturation, value) {
     console.log('hsv = ', this.hue, this.saturation, this.value);
 };
 
+// seq, when given, is the sender's hedge sequence number; the lamp service
+//   uses it to drop the copy of the same command sent over MQTT.
+LampiState.prototype.set_state = function(is_on, hue, saturation, brightness, seq) {
+    this.is_on = is_on;
+    this.hue = hue;
+    this.saturation = saturation;
+    this.brightness = brightness;
+    var tmp = {'client': this.clientId,
+               'on': this.is_on,
+               'brightness': this.brightness / 0xFF,
+               'color' : {'h': this.hue / 0xFF, 's': this.saturation / 0xFF}};
+    if (seq !== undefined) {
+        tmp['seq'] = seq;
+    }
+    this.mqtt_client.publish('lamp/set_config', JSON.stringify(tmp));
+    console.log('state = ', this.is_on, this.hue, this.saturation, this.brightness);
+};
+
 module.exports = LampiState;
@@ -4,6 +4,7 @@ import pigpio
 import paho.mqtt.client as mqtt
 import shelve
 import colorsys
+import time
 
 from lamp_common import *
 
@@ -21,6 +22,35 @@ MQTT_CLIENT_ID = "lamp_service"
 
 FP_DIGITS = 2
 
+# A phone hedging its writes sends each one over both BLE and MQTT, tagged
+# with the same 'seq'. The BLE copy is forwarded under the peripheral's
+# 'client', so the sender is the top byte of the 32 bit seq, random per
+# phone session, and the low 24 bits count its commands. Anything at or
+# below the newest seq applied from that sender is dropped, whichever leg
+# it came over, so a late copy of an older command can't undo a newer one.
+SEQ_SENDER_SHIFT = 24
+SEQ_COUNT_MASK = (1 << SEQ_SENDER_SHIFT) - 1
+# A sender quiet for this long is forgotten, in case a restarted phone
+# picks the same top byte.
+SEQ_SENDER_IDLE_SECS = 60
+
+
+class SeqFilter(object):
+    def __init__(self, clock=time.monotonic):
+        self._clock = clock
+        self._last = {}
+
+    def accept(self, seq):
+        now = self._clock()
+        sender = seq >> SEQ_SENDER_SHIFT
+        count = seq & SEQ_COUNT_MASK
+        last = self._last.get(sender)
+        if (last is not None and count <= last[0] and
+                now - last[1] < SEQ_SENDER_IDLE_SECS):
+            return False
+        self._last[sender] = (count, now)
+        return True
+
 
 class InvalidLampConfig(Exception):
     pass
@@ -55,6 +85,7 @@ class LampService(object):
         self.lamp_driver = LampDriver()
         self._client = self._create_and_configure_broker_client()
         self.db = shelve.open(LAMP_STATE_FILENAME, writeback=True)
+        self.seq_filter = SeqFilter()
         if 'color' not in self.db:
             self.db['color'] = {'h': round(1.0, FP_DIGITS),
                                 's': round(1.0, FP_DIGITS)}
@@ -104,6 +135,9 @@ class LampService(object):
             new_config = json.loads(msg.payload.decode('utf-8'))
             if 'client' not in new_config:
                 raise InvalidLampConfig()
+            seq = new_config.get('seq')
+            if seq is not None and not self.seq_filter.accept(seq):
+                return
             self.set_last_client(new_config['client'])
             if 'on' in new_config:
                 self.set_current_onoff(new_config['on'])
@@ -111,7 +145,7 @@ class LampService(object):
                 self.set_current_color(new_config['color'])
             if 'brightness' in new_config:
                 self.set_current_brightness(new_config['brightness'])
-            self.publish_config_change()
+            self.publish_config_change(seq)
         except InvalidLampConfig:
             print("error applying new settings " + str(msg.payload))
 
@@ -123,11 +157,13 @@ class LampService(object):
         except InvalidLampConfig:
             print("error setting backlight " + str(msg.payload))
 
-    def publish_config_change(self):
+    def publish_config_change(self, seq=None):
         config = {'color': self.get_current_color(),
                   'brightness': self.get_current_brightness(),
                   'on': self.get_current_onoff(),
                   'client': self.get_last_client()}
+        if seq is not None:
+            config['seq'] = seq
         self._client.publish(TOPIC_LAMP_CHANGE_NOTIFICATION,
                              json.dumps(config).encode('utf-8'), qos=1,
                              retain=True)
@@ -0,0 +1,58 @@
+#!/usr/bin/env python3
+import sys
+import types
+import unittest
+
+# lamp_service drives the GPIO and the broker; neither is needed to test
+# its command filtering.
+sys.modules.setdefault('pigpio', types.ModuleType('pigpio'))
+if 'paho' not in sys.modules:
+    paho = types.ModuleType('paho')
+    paho.mqtt = types.ModuleType('paho.mqtt')
+    paho.mqtt.client = types.ModuleType('paho.mqtt.client')
+    paho.mqtt.client.MQTTv311 = 4
+    sys.modules['paho'] = paho
+    sys.modules['paho.mqtt'] = paho.mqtt
+    sys.modules['paho.mqtt.client'] = paho.mqtt.client
+
+from lamp_service import SeqFilter, SEQ_SENDER_SHIFT, SEQ_SENDER_IDLE_SECS
+
+
+class FakeClock(object):
+    def __init__(self):
+        self.now = 1000.0
+
+    def __call__(self):
+        return self.now
+
+
+def seq(sender, count):
+    return sender << SEQ_SENDER_SHIFT | count
+
+
+class SeqFilterTest(unittest.TestCase):
+
+    def test_late_copies_do_not_undo_a_newer_command(self):
+        seqs = SeqFilter(FakeClock())
+        # BLE delivers 11 first; MQTT's 10 and 11 arrive after it.
+        self.assertTrue(seqs.accept(seq(7, 11)))
+        self.assertFalse(seqs.accept(seq(7, 10)))
+        self.assertFalse(seqs.accept(seq(7, 11)))
+        self.assertTrue(seqs.accept(seq(7, 12)))
+
+    def test_senders_are_tracked_apart(self):
+        seqs = SeqFilter(FakeClock())
+        self.assertTrue(seqs.accept(seq(7, 500)))
+        self.assertTrue(seqs.accept(seq(8, 3)))
+        self.assertFalse(seqs.accept(seq(7, 499)))
+
+    def test_quiet_sender_is_forgotten(self):
+        clock = FakeClock()
+        seqs = SeqFilter(clock)
+        self.assertTrue(seqs.accept(seq(7, 500)))
+        clock.now += SEQ_SENDER_IDLE_SECS
+        self.assertTrue(seqs.accept(seq(7, 1)))
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,89 @@
+package com.example.myapplication;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the per-tick slider update the way MainActivity.seekBarChange does
+ * and counts what it allocates on the test thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SliderThumbRendererTest {
+    private static final int UPDATES = 1000;
+
+    private SliderThumbRenderer newRenderer() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        SliderThumbRenderer renderer = new SliderThumbRenderer(context.getResources(), 100);
+        renderer.setTrackWidth(600);
+        return renderer;
+    }
+
+    // One seekBarChange worth of work for the given progress values.
+    private static int update(SliderThumbRenderer renderer, SliderThumbRenderer.Thumb hueThumb,
+                              SliderThumbRenderer.Thumb satThumb, SliderThumbRenderer.Thumb valThumb,
+                              int hue, int sat, int val) {
+        int full = renderer.hsvToColor(SliderThumbRenderer.hueDegrees(hue), 1.0f, 1.0f);
+        int satColor = renderer.hsvToColor(SliderThumbRenderer.hueDegrees(hue), sat / 100f, 1.0f);
+        int gs = (255 * val) / 100;
+        renderer.recolor(hueThumb, full);
+        renderer.recolor(satThumb, satColor);
+        renderer.recolor(valThumb, 0xFF000000 | gs << 16 | gs << 8 | gs);
+        Drawable track = renderer.getSaturationTrack(hue);
+        return track.hashCode() ^ renderer.getHueTextColor(hue).getDefaultColor();
+    }
+
+    // The Debug alloc counters are deprecated but are still the only per-thread
+    // allocation count on Android; the art.gc runtime stats are process-wide.
+    @Test
+    @SuppressWarnings("deprecation")
+    public void updatesAllocateNothing() {
+        SliderThumbRenderer renderer = newRenderer();
+        SliderThumbRenderer.Thumb hueThumb = renderer.newThumb(0xFFFF0000);
+        SliderThumbRenderer.Thumb satThumb = renderer.newThumb(0xFFFFFFFF);
+        SliderThumbRenderer.Thumb valThumb = renderer.newThumb(0xFF000000);
+
+        // Warm up so class loading and JIT don't show up in the count.
+        int sink = 0;
+        for (int i = 0; i < UPDATES; i++) {
+            sink += update(renderer, hueThumb, satThumb, valThumb, i % 101, (i * 7) % 101, (i * 13) % 101);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < UPDATES; i++) {
+            sink += update(renderer, hueThumb, satThumb, valThumb, i % 101, (i * 7) % 101, (i * 13) % 101);
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        int bytes = Debug.getThreadAllocSize();
+
+        assertEquals(UPDATES + " updates, " + bytes + " bytes (" + sink + ")", 0, allocations);
+    }
+
+    @Test
+    public void sameColorSkipsRedraw() {
+        SliderThumbRenderer renderer = newRenderer();
+        SliderThumbRenderer.Thumb thumb = renderer.newThumb(0xFF00FF00);
+        assertFalse(renderer.recolor(thumb, 0xFF00FF00));
+        assertTrue(renderer.recolor(thumb, 0xFF0000FF));
+        assertEquals(0xFF0000FF, thumb.getColor());
+    }
+
+    @Test
+    public void saturationTracksAreQuantizedPerHueStep() {
+        SliderThumbRenderer renderer = newRenderer();
+        assertSame(renderer.getSaturationTrack(40), renderer.getSaturationTrack(40));
+        assertNotSame(renderer.getSaturationTrack(40), renderer.getSaturationTrack(41));
+        // Out of range steps clamp to the ends.
+        assertSame(renderer.getSaturationTrack(100), renderer.getSaturationTrack(250));
+        assertSame(renderer.getHueTextColor(0), renderer.getHueTextColor(-3));
+    }
+}
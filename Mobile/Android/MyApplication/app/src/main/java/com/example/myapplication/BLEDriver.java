@@ -1,16 +1,23 @@
 package com.example.myapplication;
 import android.app.Activity;
-import android.bluetooth.le.BluetoothLeScanner;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.bluetooth.*;
 import android.bluetooth.le.ScanSettings;
 import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.*;
@@ -19,36 +26,162 @@ import android.util.Log;
 public class BLEDriver
 {
     private BluetoothAdapter adaptor = BluetoothAdapter.getDefaultAdapter();
-    private BluetoothLeScanner scanner = adaptor.getBluetoothLeScanner();
 
-    private final String serviceUUID = "0001A7D3-D8A4-4FEA-8174-1736E808C066";
-    private final UUID powerUUID = UUID.fromString("0004A7D3-D8A4-4FEA-8174-1736E808C066");
-    private final UUID hsvUUID = UUID.fromString("0002A7D3-D8A4-4FEA-8174-1736E808C066");
-    private final UUID brightnessUUID = UUID.fromString("0003A7D3-D8A4-4FEA-8174-1736E808C066");
-
-    private BluetoothGattCharacteristic power;
-    private BluetoothGattCharacteristic hsv;
-    private BluetoothGattCharacteristic brightness;
-
-    private BluetoothDevice currentDevice = null;
-    private BluetoothGatt mygatt = null;
-    private LampiCallBack callBack;
-
-    private List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+    static final String serviceUUID = "0001A7D3-D8A4-4FEA-8174-1736E808C066";
+    static final UUID SERVICE_UUID = UUID.fromString(serviceUUID);
+    static final UUID powerUUID = UUID.fromString("0004A7D3-D8A4-4FEA-8174-1736E808C066");
+    static final UUID hsvUUID = UUID.fromString("0002A7D3-D8A4-4FEA-8174-1736E808C066");
+    static final UUID brightnessUUID = UUID.fromString("0003A7D3-D8A4-4FEA-8174-1736E808C066");
+    static final UUID stateUUID = UUID.fromString("0005A7D3-D8A4-4FEA-8174-1736E808C066");
+
+    // Device Information service; the lamp's serial number is its device id.
+    static final UUID DEVICE_INFO_UUID = UUID.fromString("0000180A-0000-1000-8000-00805F9B34FB");
+    static final UUID SERIAL_UUID = UUID.fromString("00002A25-0000-1000-8000-00805F9B34FB");
+
+    private static final UUID notifyDescriptorUUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    // Lamps stay connected after the user moves on to another one, so going
+    // back is a switch rather than a connect and service discovery. Next to
+    // the group connections this stays under the roughly seven concurrent
+    // GATT connections Android allows.
+    private static final int DEFAULT_POOL_CONNECTIONS = 3;
+    private final BleConnectionPool<LampConnection> pool = new BleConnectionPool<LampConnection>(
+            DEFAULT_POOL_CONNECTIONS, new BleConnectionPool.Closer<LampConnection>()
+    {
+        public void close(String mac, LampConnection connection)
+        {
+            Log.d("BLE", "Closing least recently used lamp " + mac);
+            connection.close();
+        }
+    });
+    // The lamp the control screen shows: writes go to it, and only its
+    // notifications reach the delegate.
+    private volatile LampConnection current = null;
+    // Stands in while there is no current lamp.
+    private final GattOperationQueue noOperations;
+    private final LatencyHistogram noControlWrites = new LatencyHistogram();
+
+    // Lamps we have connected to before, so the last one can be reconnected
+    // without a scan and its GATT table checked against what we saw then.
+    private static final String LAYOUT_FILE = "gatt-layouts";
+    private final GattLayoutCache layouts = new GattLayoutCache();
+    private File layoutFile;
+    private final Runnable saveLayouts = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                layouts.writeSnapshot(layoutFile);
+            }
+            catch(IOException e)
+            {
+                Log.d("BLE", "Could not save GATT layouts " + e.getMessage());
+            }
+        }
+    };
+    // From connect() to the lamp's state being known, split by whether the
+    // cached layout could be used or the lamp was still in the pool.
+    private final LatencyHistogram readyWithLayout = new LatencyHistogram();
+    private final LatencyHistogram readyFresh = new LatencyHistogram();
+    private final LatencyHistogram readyPooled = new LatencyHistogram();
+
+    // Large enough for any lamp payload plus headroom; the lamp may grant less.
+    private static final int CONTROL_MTU = 185;
+    // Without control input for this long the link drops to low power.
+    private static final long IDLE_MILLIS = 30000;
+    // A lamp that drops an established link is reconnected after
+    // RECONNECT_BASE_MILLIS, doubling with every failed attempt, and given
+    // up on after MAX_RECONNECTS attempts.
+    private static final long RECONNECT_BASE_MILLIS = 1000;
+    private static final int MAX_RECONNECTS = 5;
+
+    private final ScheduledExecutorService timer = DriverExecutor.get().getScheduler();
+
+    private boolean controlActive = false;
+    private long lastControlAt = 0;
+    private ScheduledFuture<?> idleCheck = null;
+
+    // Lamps not heard from for DEVICE_TTL_MILLIS drop out of the picker, which
+    // is refreshed at most every DEVICE_DISPATCH_MILLIS.
+    private static final long DEVICE_TTL_MILLIS = 15000;
+    private static final long DEVICE_DISPATCH_MILLIS = 300;
+
+    private final LampDeviceRegistry<BluetoothDevice> devices =
+            new LampDeviceRegistry<BluetoothDevice>(DEVICE_TTL_MILLIS, DEVICE_DISPATCH_MILLIS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static final int SCAN_DISCOVERY = 0;
+    public static final int SCAN_BALANCED = 1;
+    public static final int SCAN_BATCHED = 2;
+
+    private static final long DISCOVERY_BURST_MILLIS = 10000;
+    private static final long DISCOVERY_DEADLINE_MILLIS = 60000;
+    private static final long BATCH_REPORT_DELAY_MILLIS = 5000;
+
+    private final ScanSession scan = new ScanSession(adaptor, new ScanSession.ResultHandler()
+    {
+        public void onScanResult(ScanResult result)
+        {
+            addScanResult(result);
+        }
+    });
+    private final Runnable endDiscoveryBurst = new Runnable()
+    {
+        public void run()
+        {
+            if(scan.getMode() == SCAN_DISCOVERY && startScan(SCAN_BATCHED) == ScanSession.FAILED)
+            {
+                stopBrowsing();
+            }
+        }
+    };
+    private final Runnable discoveryDeadline = new Runnable()
+    {
+        public void run()
+        {
+            Log.d("BLE", "Discovery deadline reached");
+            stopBrowsing();
+        }
+    };
+    private final Runnable flushDevices = new Runnable()
+    {
+        public void run()
+        {
+            devices.flush(SystemClock.elapsedRealtime());
+        }
+    };
+    // Lamps only expire on a flush, and a flush is otherwise only scheduled
+    // when a lamp appears or is renamed.
+    private final Runnable expireDevices = new Runnable()
+    {
+        public void run()
+        {
+            devices.flush(SystemClock.elapsedRealtime());
+            if(scan.isActive())
+            {
+                mainHandler.postDelayed(this, devices.getExpiryIntervalMillis());
+            }
+        }
+    };
 
-    public static BLEDriver instance;
+    public static volatile BLEDriver instance;
 
-    public static void makeInstance(Activity activity)
+    // Reads the saved layouts and looks up the adapter, so it is called off
+    // the main thread during startup.
+    public static synchronized BLEDriver makeInstance(Context context)
     {
         if(instance == null)
         {
-            instance = new BLEDriver(activity);
+            instance = new BLEDriver(context.getApplicationContext());
         }
+        return instance;
     }
 
-    private BLEDriver(Activity activity)
+    //Everything breaks if you don't have this. Asked for once the activity
+    //has a window, so the dialog doesn't hold up the first frame.
+    public static void requestPermissions(Activity activity)
     {
-        //Everything breaks if you don't have this.
         int permissionCheck = ContextCompat.checkSelfPermission(activity, android.Manifest.permission.ACCESS_FINE_LOCATION);
         if (permissionCheck != PackageManager.PERMISSION_GRANTED)
         {
@@ -56,335 +189,1048 @@ public class BLEDriver
         }
     }
 
-    public void startBrowsing(LampDiscoveryDelegate delegate)
+    // Lamps written at once by applyToGroup, next to the pooled connections.
+    // Android tops out at around seven concurrent GATT connections. Each
+    // lamp gives up after GROUP_LAMP_TIMEOUT_MILLIS and closes its
+    // connection; the group deadline is later, so the transport's own
+    // failure is what gets reported, not a race with it.
+    private static final int DEFAULT_GROUP_CONNECTIONS = 4;
+    private static final long GROUP_LAMP_TIMEOUT_MILLIS = 5000;
+    private static final long GROUP_TIMEOUT_MILLIS = 7000;
+
+    private final GroupController group;
+
+    private BLEDriver(Context context)
+    {
+        noOperations = new GattOperationQueue(timer, 2000);
+        group = new GroupController(
+                new BleGroupTransport(context, adaptor, timer, GROUP_LAMP_TIMEOUT_MILLIS),
+                DEFAULT_GROUP_CONNECTIONS, timer, GROUP_TIMEOUT_MILLIS);
+
+        // A few dozen bytes; needed before reconnecting to the last lamp.
+        layoutFile = new File(context.getFilesDir(), LAYOUT_FILE);
+        try
+        {
+            layouts.readSnapshot(layoutFile);
+        }
+        catch(IOException e)
+        {
+            Log.d("BLE", "Could not read GATT layouts " + e.getMessage());
+        }
+    }
+
+    public boolean startBrowsing(LampDiscoveryDelegate delegate)
+    {
+        return startBrowsing(delegate, SCAN_DISCOVERY);
+    }
+
+    // SCAN_DISCOVERY scans at low latency for DISCOVERY_BURST_MILLIS and then
+    // settles into SCAN_BATCHED; every mode stops by itself once
+    // DISCOVERY_DEADLINE_MILLIS have passed. Pooled lamps stay connected.
+    // Returns false if no scan could be started, e.g. with Bluetooth off.
+    public boolean startBrowsing(LampDiscoveryDelegate delegate, int mode)
     {
-        disconnect();
-        ParcelUuid serviceId = new ParcelUuid(UUID.fromString(serviceUUID));
+        setDiscoveryDelegate(delegate);
+        int started = startScan(mode);
+        if(started == ScanSession.FAILED)
+        {
+            // Don't leave the burst, deadline or expiry timers of an earlier
+            // scan running without one.
+            stopBrowsing();
+            return false;
+        }
+        if(started == ScanSession.ALREADY_RUNNING)
+        {
+            // Keep the running burst and deadline.
+            return true;
+        }
+        mainHandler.removeCallbacks(endDiscoveryBurst);
+        mainHandler.removeCallbacks(discoveryDeadline);
+        mainHandler.removeCallbacks(expireDevices);
+        mainHandler.postDelayed(expireDevices, devices.getExpiryIntervalMillis());
+        if(mode == SCAN_DISCOVERY)
+        {
+            mainHandler.postDelayed(endDiscoveryBurst, DISCOVERY_BURST_MILLIS);
+        }
+        mainHandler.postDelayed(discoveryDeadline, DISCOVERY_DEADLINE_MILLIS);
+        return true;
+    }
+
+    private int startScan(int mode)
+    {
+        ParcelUuid serviceId = new ParcelUuid(SERVICE_UUID);
         ScanFilter serviceFilter = new ScanFilter.Builder().setServiceUuid(serviceId).build();
         List<ScanFilter> filters = new ArrayList<ScanFilter>();
         filters.add(serviceFilter);
-        //scanner.startScan(new BrowserStartCallBack(delegate));
-        scanner.startScan(filters, new ScanSettings.Builder().build(), new BrowserStartCallBack(delegate));
+        Log.d("BLE", "Scanning in mode " + mode);
+        return scan.start(mode, filters, scanSettings(mode));
+    }
+
+    private ScanSettings scanSettings(int mode)
+    {
+        ScanSettings.Builder builder = new ScanSettings.Builder();
+        if(mode == SCAN_BATCHED && adaptor.isOffloadedScanBatchingSupported())
+        {
+            // Results are collected by the controller and delivered in one
+            // onBatchScanResults call, so the CPU can sleep in between.
+            builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+            builder.setReportDelay(BATCH_REPORT_DELAY_MILLIS);
+        }
+        else if(mode == SCAN_DISCOVERY)
+        {
+            builder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        }
+        else
+        {
+            builder.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+        }
+        return builder.build();
+    }
+
+    // The delegate is called on the main thread with the full list of lamp
+    // labels whenever lamps appear, get renamed or expire.
+    private void setDiscoveryDelegate(final LampDiscoveryDelegate delegate)
+    {
+        devices.setListener(new LampDeviceRegistry.Listener<BluetoothDevice>()
+        {
+            public void onDevicesChanged(List<LampDeviceRegistry.Entry<BluetoothDevice>> lamps)
+            {
+                List<String> labels = new ArrayList<String>(lamps.size());
+                for(LampDeviceRegistry.Entry<BluetoothDevice> lamp : lamps)
+                {
+                    labels.add(lamp.label());
+                }
+                delegate.discoveredLamps(labels);
+            }
+        });
+        // Let a reopened picker show what is already known.
+        mainHandler.post(flushDevices);
     }
 
     public void stopBrowsing()
     {
-        scanner.stopScan(new BrowserStopCallBack());
-        //devices = new ArrayList<BluetoothDevice>();
+        mainHandler.removeCallbacks(endDiscoveryBurst);
+        mainHandler.removeCallbacks(discoveryDeadline);
+        mainHandler.removeCallbacks(expireDevices);
+        if(scan.isActive())
+        {
+            scan.stop();
+            Log.d("BLE", scan.describe());
+        }
+    }
+
+    public ScanSession getScanSession()
+    {
+        return scan;
     }
 
-    public void connect(String mac, Context context, LampiNotifyDelegate delegate)
+    // Makes mac the current lamp. A lamp still in the pool is switched to and
+    // shown with the state it last reported; any other lamp, seen in the
+    // current scan or known from before, is connected and may push the least
+    // recently used one out of the pool. Returns false if mac isn't a usable
+    // address.
+    public boolean connect(String mac, Context context, LampiNotifyDelegate delegate)
     {
+        // Scanning competes with connection setup for the radio.
         stopBrowsing();
+        long started = System.nanoTime();
+        LampConnection pooled = pool.get(mac.toUpperCase(Locale.US));
+        if(pooled != null)
+        {
+            pooled.setDelegate(delegate);
+            makeCurrent(pooled);
+            if(pooled.replayState())
+            {
+                readyPooled.record(System.nanoTime() - started);
+            }
+            return true;
+        }
         BluetoothDevice device = matchDeviceMac(mac);
-        currentDevice = device;
-        callBack = new LampiCallBack(delegate);
-        device.connectGatt(context, true, callBack);
+        if(device == null)
+        {
+            try
+            {
+                device = adaptor.getRemoteDevice(mac);
+            }
+            catch(IllegalArgumentException e)
+            {
+                Log.d("BLE", "Bad address " + mac);
+                return false;
+            }
+        }
+        LampConnection connection = new LampConnection(device, delegate);
+        pool.put(connection.mac, connection);
+        makeCurrent(connection);
+        return connection.open(context, started);
     }
 
+    private void makeCurrent(LampConnection connection)
+    {
+        LampConnection previous = current;
+        current = connection;
+        layouts.setLastMac(connection.mac);
+        if(previous != null && previous != connection)
+        {
+            demote(previous);
+        }
+        applyConnectionPriority();
+    }
+
+    // Kept for a quick switch back, at the lowest duty cycle.
+    private void demote(LampConnection connection)
+    {
+        connection.stopStreaming();
+        connection.requestPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+    }
+
+    // Connects to the lamp we were connected to last, without scanning.
+    // Returns its address, or null if there is none.
+    public String reconnectLast(Context context, LampiNotifyDelegate delegate)
+    {
+        String mac = layouts.getLastMac();
+        if(mac == null || adaptor == null || !adaptor.isEnabled() || !connect(mac, context, delegate))
+        {
+            return null;
+        }
+        return mac;
+    }
+
+    // The lamp's advertised name when we last connected, or null.
+    public String getKnownName(String mac)
+    {
+        GattLayoutCache.Layout layout = layouts.get(mac);
+        return layout == null ? null : layout.name;
+    }
+
+    // The lamp's MQTT device id, from its advertised name or its serial
+    // number, or null while neither is known. Lamps named otherwise get it
+    // once connected; the delegate's setDeviceId says when.
+    public String getDeviceId(String mac)
+    {
+        String key = mac.toUpperCase(Locale.US);
+        LampConnection pooled = pool.get(key);
+        if(pooled != null && pooled.deviceId != null)
+        {
+            return pooled.deviceId;
+        }
+        return knownDeviceId(key);
+    }
+
+    private String knownDeviceId(String mac)
+    {
+        LampDeviceRegistry.Entry<BluetoothDevice> entry = devices.getEntry(mac);
+        String id = entry == null ? null : LampDeviceId.fromName(entry.name);
+        if(id == null)
+        {
+            GattLayoutCache.Layout layout = layouts.get(mac);
+            id = layout == null ? null : LampDeviceId.fromName(layout.name);
+        }
+        return id;
+    }
+
+    public GattLayoutCache getLayoutCache()
+    {
+        return layouts;
+    }
+
+    // Stops controlling the current lamp; its connection stays pooled.
     public void disconnect()
     {
-        if(mygatt != null && currentDevice != null)
+        LampConnection previous = current;
+        current = null;
+        if(previous != null)
         {
-            mygatt.close();
-            mygatt = null;
-            currentDevice = null;
-            power = null;
-            hsv = null;
-            brightness = null;
+            demote(previous);
         }
     }
 
-    private BluetoothDevice matchDeviceMac(String mac)
+    // Closes every pooled connection, the current one included.
+    public void closeAll()
+    {
+        current = null;
+        pool.closeAll();
+    }
+
+    public void setPoolSize(int connections)
+    {
+        pool.setMaxConnections(connections);
+    }
+
+    public BleConnectionPool<LampConnection> getPool()
     {
-        for(BluetoothDevice device : devices)
+        return pool;
+    }
+
+    // One entry per pooled lamp, least recently used first.
+    public List<LampConnectionHealth> getConnectionHealth()
+    {
+        List<LampConnection> connections = pool.getConnections();
+        List<LampConnectionHealth> health = new ArrayList<LampConnectionHealth>(connections.size());
+        for(LampConnection connection : connections)
         {
-            if(device.getAddress().equals(mac))
-            {
-                return device;
-            }
+            health.add(connection.health());
         }
-        return null;
+        return health;
     }
 
-    private boolean isDeviceNew(String mac)
+    // The control screen calls this from onResume/onPause. While it is
+    // active the current lamp's link runs at high priority, falling back to
+    // low power after IDLE_MILLIS without input; otherwise it stays balanced.
+    public synchronized void setControlActive(boolean active)
     {
-        for(BluetoothDevice device : devices)
+        controlActive = active;
+        lastControlAt = System.currentTimeMillis();
+        if(idleCheck != null)
+        {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        if(active)
         {
-            if(device.getAddress().equals(mac))
+            idleCheck = timer.scheduleWithFixedDelay(new Runnable()
             {
-                return false;
-            }
+                public void run()
+                {
+                    applyConnectionPriority();
+                }
+            }, IDLE_MILLIS, IDLE_MILLIS / 6, TimeUnit.MILLISECONDS);
         }
-        return true;
+        applyConnectionPriority();
     }
 
-    public void writePower(boolean isOn)
+    private void noteControlActivity(LampConnection connection)
     {
-        if(mygatt != null && power != null)
+        boolean wasIdle;
+        synchronized(this)
         {
-            Log.d("BLE", "Writing power");
-            WriteRequest req = new WriteRequest();
-            req.characteristic = power;
-            if(isOn)
-            {
-                req.data = new byte[]{0x01};
+            wasIdle = connection.requestedPriority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+            lastControlAt = System.currentTimeMillis();
+        }
+        connection.lastUsedAt = SystemClock.elapsedRealtime();
+        if(wasIdle)
+        {
+            applyConnectionPriority();
+        }
+    }
 
-            }
-            else
-            {
-                req.data = new byte[]{0x00};
-            }
-            callBack.writeRequest(req);
+    private synchronized void applyConnectionPriority()
+    {
+        LampConnection connection = current;
+        if(connection == null)
+        {
+            return;
+        }
+        int wanted = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        if(controlActive)
+        {
+            boolean idle = System.currentTimeMillis() - lastControlAt > IDLE_MILLIS;
+            wanted = idle ? BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER : BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+        connection.requestPriority(wanted);
+    }
+
+    private static String priorityName(int priority)
+    {
+        switch(priority)
+        {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "high";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "low power";
+            default:
+                return "balanced";
         }
+    }
+
+    // The current lamp's link, or null without one.
+    public LinkDiagnostics getLinkDiagnostics()
+    {
+        LampConnection connection = current;
+        return connection == null ? null : connection.link;
+    }
+
+    public String describeDiagnostics()
+    {
+        LampConnection connection = current;
+        StringBuilder sb = new StringBuilder();
+        if(connection != null)
+        {
+            sb.append(connection.link.describe()).append("\n").append(connection.operations.describe()).append("\n");
+        }
+        sb.append(scan.describe()).append("\ngroup ").append(group.describe()).append("\n").append(layouts.describe())
+                .append("\nready with layout ").append(readyWithLayout).append("\nready fresh ").append(readyFresh)
+                .append("\nready from pool ").append(readyPooled).append("\n").append(pool.describe());
+        for(LampConnectionHealth health : getConnectionHealth())
+        {
+            sb.append("\n").append(health.describe());
+        }
+        return sb.toString();
+    }
+
+    // Sets every lamp in macs to the same state, each over its own
+    // short-lived connection.
+    public GroupController.GroupRun applyToGroup(List<String> macs, boolean isOn, byte h, byte s, byte b,
+                                                 GroupController.Listener listener)
+    {
+        LampState state = new LampState(isOn, (h & 0xFF) / 255.0, (s & 0xFF) / 255.0, (b & 0xFF) / 255.0);
+        return group.apply(macs, state, listener);
+    }
+
+    // Lamps seen by the last scans that haven't expired yet.
+    public List<String> getDiscoveredMacs()
+    {
+        return devices.getMacs();
+    }
+
+    public void setGroupConcurrency(int connections)
+    {
+        group.setMaxConcurrent(connections);
+    }
+
+    public GroupController getGroupController()
+    {
+        return group;
+    }
+
+    private BluetoothDevice matchDeviceMac(String mac)
+    {
+        return devices.get(mac);
+    }
+
+    public LampDeviceRegistry<BluetoothDevice> getDeviceRegistry()
+    {
+        return devices;
+    }
 
+    public void writePower(boolean isOn)
+    {
+        LampConnection connection = current;
+        if(connection != null)
+        {
+            noteControlActivity(connection);
+            connection.writePower(isOn);
+        }
     }
 
     public void writeHSV(byte h, byte s)
     {
-        if(mygatt != null && hsv != null)
+        LampConnection connection = current;
+        if(connection != null)
         {
-            Log.d("BLE", "Writing hs");
-            WriteRequest req = new WriteRequest();
-            req.characteristic = hsv;
-            req.data = new byte[]{h, s, (byte) 0xFF};
-            callBack.writeRequest(req);
+            noteControlActivity(connection);
+            connection.writeHSV(h, s);
         }
     }
 
     public void writeBrightness(byte brightnessVal)
     {
-        if(mygatt != null && brightness != null)
+        LampConnection connection = current;
+        if(connection != null)
         {
-            Log.d("BLE", "Writing b");
-            WriteRequest req = new WriteRequest();
-            req.characteristic = brightness;
-            req.data = new byte[]{brightnessVal};
-            callBack.writeRequest(req);
+            noteControlActivity(connection);
+            connection.writeBrightness(brightnessVal);
         }
     }
 
-    class BrowserStartCallBack extends ScanCallback
+    // The whole state at once: a single packed write, or on legacy lamps
+    // only the characteristics whose value changed.
+    public void writeState(boolean isOn, byte h, byte s, byte b)
     {
-        LampDiscoveryDelegate delegate;
-        public BrowserStartCallBack(LampDiscoveryDelegate delegate)
+        LampConnection connection = current;
+        if(connection != null)
         {
-            this.delegate = delegate;
+            noteControlActivity(connection);
+            connection.writeState(isOn, h, s, b);
         }
+    }
 
-        public void onScanResult (int callbackType,
-                                  ScanResult result)
+    // Hedged write: the packed state with a sequence number, acknowledged,
+    // and outside the write scheduler so the completion belongs to this
+    // write. Returns false if the lamp has no packed state characteristic.
+    public boolean writeSequencedState(boolean isOn, byte h, byte s, byte b, long seq,
+                                       GroupController.Completion completion)
+    {
+        LampConnection connection = current;
+        if(connection == null)
         {
-            BluetoothDevice discovered = result.getDevice();
-            //Log.d("BLEDriver","Found Device");
-            //result.
-            if (discovered != null && isDeviceNew(discovered.getAddress()))
-            {
-                devices.add(discovered);
-                //discovered.
-                if (discovered.getName() != null)
-                {
-                    delegate.discoveredLamp(discovered.getName() + " (" + discovered.getAddress() + ")");
-                }
-            }
+            return false;
         }
+        noteControlActivity(connection);
+        return connection.writeSequencedState(isOn, h, s, b, seq, completion);
     }
 
-    class BrowserStopCallBack extends ScanCallback
+    public boolean isConnected()
     {
+        LampConnection connection = current;
+        return connection != null && connection.isReady();
     }
 
-    class WriteRequest
+    // Address of the lamp we are connected or connecting to, or null.
+    public String getConnectedMac()
     {
-        BluetoothGattCharacteristic characteristic;
-        byte[] data;
+        LampConnection connection = current;
+        return connection == null ? null : connection.mac;
     }
 
-    class LampiCallBack extends BluetoothGattCallback
+    // Slider drags stream intermediate values without waiting for a
+    // response; the final value is written acknowledged by endStreaming().
+    public void beginStreaming()
     {
-        private LampiNotifyDelegate delegate;
+        LampConnection connection = current;
+        if(connection != null)
+        {
+            connection.writeScheduler.beginStream();
+        }
+    }
 
-        private List<BluetoothGattCharacteristic> readQueue = new LinkedList<BluetoothGattCharacteristic>();
-        private List<BluetoothGattCharacteristic> notifyQueue = new LinkedList<BluetoothGattCharacteristic>();
+    public void endStreaming()
+    {
+        LampConnection connection = current;
+        if(connection != null)
+        {
+            connection.stopStreaming();
+            TraceLog.trace(TraceLog.STREAM_END, connection.writeScheduler.getStreamSentCount(),
+                    connection.writeScheduler.getStreamDroppedCount());
+        }
+    }
 
-        private List<WriteRequest> writeQueue = new LinkedList<WriteRequest>();
+    public boolean isUsingPackedState()
+    {
+        LampConnection connection = current;
+        return connection != null && connection.lampState != null;
+    }
 
-        private boolean isWriting = false;
+    // The current lamp's write scheduler, or null without one.
+    public LampWriteScheduler getWriteScheduler()
+    {
+        LampConnection connection = current;
+        return connection == null ? null : connection.writeScheduler;
+    }
 
-        public LampiCallBack(LampiNotifyDelegate delegate)
+    // The current lamp's operation queue; an idle one without a lamp.
+    public GattOperationQueue getOperations()
+    {
+        LampConnection connection = current;
+        return connection == null ? noOperations : connection.operations;
+    }
+
+    // Acknowledged control writes to the current lamp, from being queued to
+    // the lamp's write response.
+    public LatencyHistogram getControlWriteLatency()
+    {
+        LampConnection connection = current;
+        return connection == null ? noControlWrites : connection.controlWrites;
+    }
+
+    private void addScanResult(ScanResult result)
+    {
+        BluetoothDevice discovered = result.getDevice();
+        if (discovered == null)
         {
-            this.delegate = delegate;
+            return;
+        }
+        String mac = discovered.getAddress();
+        long now = SystemClock.elapsedRealtime();
+        if(TraceLog.isLoggable(TraceLog.SCAN_RESULT))
+        {
+            TraceLog.trace(TraceLog.SCAN_RESULT, result.getRssi(), TraceLog.mac(mac));
         }
 
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+        // getName() is a binder call, so only ask until we know it.
+        LampDeviceRegistry.Entry<BluetoothDevice> known = devices.getEntry(mac);
+        String name = known != null && known.name != null ? known.name : discovered.getName();
+
+        if (devices.update(mac, discovered, name, result.getRssi(), now))
         {
-            super.onConnectionStateChange(gatt, status, newState);
+            mainHandler.postDelayed(flushDevices, devices.getFlushDelay(now));
+        }
+    }
 
-            Log.d("BLE", "State change " + newState);
-            if(newState == BluetoothProfile.STATE_CONNECTED)
+    // One pooled lamp: its GATT connection, characteristics, last known
+    // values, and its own operation queue and write scheduler, since Android
+    // allows one outstanding operation per connection.
+    class LampConnection extends BluetoothGattCallback
+    {
+        final String mac;
+        private final BluetoothDevice device;
+        private volatile LampiNotifyDelegate delegate;
+        private volatile BluetoothGatt gatt = null;
+        private volatile boolean linked = false;
+        private volatile boolean closed = false;
+
+        private BluetoothGattCharacteristic power;
+        private BluetoothGattCharacteristic hsv;
+        private BluetoothGattCharacteristic brightness;
+        // Packed on/h/s/brightness characteristic; null on lamps that only
+        // offer the three legacy characteristics.
+        private volatile BluetoothGattCharacteristic lampState;
+        private BluetoothGattCharacteristic serial;
+        volatile String deviceId;
+
+        // Last known lamp values, needed to fill in a whole packed state
+        // write when only one of them changes, and to show the lamp straight
+        // away when it becomes current again. Guarded by this: the driver
+        // thread writes them, the GATT callbacks read and write them on a
+        // binder thread. The lock is not held across a submit, whose
+        // completions can call back in.
+        private boolean lastOn = true;
+        private byte lastH = (byte) 0xFF;
+        private byte lastS = (byte) 0xFF;
+        private byte lastB = (byte) 0xFF;
+        private boolean stateKnown = false;
+
+        final GattOperationQueue operations = new GattOperationQueue(timer, 2000);
+        // Only acknowledged writes from the write scheduler: a write without
+        // response completes once the stack has buffered it, and hedged
+        // writes are timed by HedgedWrites.
+        final LatencyHistogram controlWrites = new LatencyHistogram();
+        final LinkDiagnostics link = new LinkDiagnostics();
+        int requestedPriority = -1;
+        private long connectStartedAt = 0;
+        volatile long lastUsedAt = SystemClock.elapsedRealtime();
+        private long connects = 0;
+        private long drops = 0;
+        // Attempts since the link was last up; only touched from the GATT
+        // callback.
+        private int reconnects = 0;
+        private final Runnable reconnect = new Runnable()
+        {
+            public void run()
             {
-                gatt.discoverServices();
-                mygatt = gatt;
-                Log.d("BLE", "Connected");
+                BluetoothGatt g = gatt;
+                if(!closed && !linked && g != null)
+                {
+                    g.connect();
+                }
             }
-        }
+        };
 
-        public void onServicesDiscovered(BluetoothGatt gatt, int status)
+        final LampWriteScheduler writeScheduler = new LampWriteScheduler(new LampWriteScheduler.Sink()
         {
-            super.onServicesDiscovered(gatt, status);
-
-            BluetoothGattService service = gatt.getService(UUID.fromString(serviceUUID));
-            Log.d("BLE", "Services discoverred");
-            Log.d("BLE gatt", service.getUuid().toString());
-            if(service.getUuid().equals(UUID.fromString(serviceUUID)))
+            public boolean write(int slot, byte[] data, boolean withResponse)
             {
-                List<BluetoothGattCharacteristic> chars = service.getCharacteristics();
-                Log.d("BLE gatt", "Characteristics: " + chars.size());
-                power = service.getCharacteristic(powerUUID);
-                hsv = service.getCharacteristic(hsvUUID);
-                brightness = service.getCharacteristic(brightnessUUID);
+                BluetoothGattCharacteristic characteristic = characteristicForSlot(slot);
+                if(!linked || characteristic == null)
+                {
+                    return false;
+                }
+                TraceLog.trace(TraceLog.WRITE_SUBMIT, slot, data.length);
+                operations.enqueue(new WriteOperation(characteristic, data, withResponse));
+                return true;
+            }
+        });
 
-                //gatt.readDescriptor();
-                //notifyQueue.add()
-                gatt.setCharacteristicNotification(power, true);
-                gatt.setCharacteristicNotification(hsv, true);
-                gatt.setCharacteristicNotification(brightness, true);
+        LampConnection(BluetoothDevice device, LampiNotifyDelegate delegate)
+        {
+            this.device = device;
+            this.mac = device.getAddress();
+            this.delegate = delegate;
+            this.deviceId = knownDeviceId(mac);
+        }
 
-                //setNotify(power, gatt);
-                //setNotify(hsv, gatt);
-                //setNotify(brightness, gatt);
-                notifyQueue.add(power);
-                notifyQueue.add(hsv);
-                notifyQueue.add(brightness);
+        boolean open(Context context, long startedAt)
+        {
+            connectStartedAt = startedAt;
+            // Direct connection: autoConnect would wait for a background scan
+            // to find the lamp, which takes seconds.
+            BluetoothGatt opened;
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            {
+                opened = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+            }
+            else
+            {
+                opened = device.connectGatt(context, false, this);
+            }
+            if(opened == null)
+            {
+                pool.remove(mac, this);
+                return false;
+            }
+            gatt = opened;
+            return true;
+        }
 
-                Log.d("BLE", "Setting notifications to true");
+        void close()
+        {
+            closed = true;
+            linked = false;
+            BluetoothGatt g = gatt;
+            if(g != null)
+            {
+                g.close();
+            }
+            operations.clear();
+            writeScheduler.reset();
+        }
 
-                //Set delegate values
-                //gatt.readCharacteristic(power);
-                //gatt.readCharacteristic(hsv);
-                //gatt.readCharacteristic(brightness);
+        void setDelegate(LampiNotifyDelegate delegate)
+        {
+            this.delegate = delegate;
+        }
 
-                readQueue.add(power);
-                readQueue.add(hsv);
-                readQueue.add(brightness);
+        boolean isReady()
+        {
+            return linked && (lampState != null || power != null);
+        }
 
-                //This calls the read queue when it's done.
-                setFromNotifyQueue(gatt);
-                //readQueuedChars(gatt);
-                //readPower();
-                //readhsv();
-                //readbrightness();
+        private boolean isCurrent()
+        {
+            return current == this;
+        }
+
+        // Shows the lamp's last reported state; false if none arrived yet.
+        synchronized boolean replayState()
+        {
+            if(!stateKnown)
+            {
+                return false;
             }
+            delegate.setPower(lastOn);
+            delegate.setHS(lastH, lastS);
+            delegate.setB(lastB);
+            return true;
         }
 
-        private void readQueuedChars(BluetoothGatt gatt)
+        void stopStreaming()
         {
-            if(readQueue.size() > 0)
+            if(writeScheduler.isStreaming())
             {
-                gatt.readCharacteristic(readQueue.get(0));
-                readQueue.remove(0);
+                writeScheduler.endStream();
             }
         }
 
-        public void writeRequest(WriteRequest req)
+        synchronized void requestPriority(int wanted)
         {
-            if(isWriting)
+            BluetoothGatt g = gatt;
+            if(!linked || g == null || wanted == requestedPriority)
             {
-                Log.d("BLE", "Adding req to queue");
-                writeQueue.add(req);
+                return;
             }
-            else
+            if(g.requestConnectionPriority(wanted))
             {
-                Log.d("BLE", "Writing Request");
-                req.characteristic.setValue(req.data);
-                mygatt.writeCharacteristic(req.characteristic);
-                //isWriting = true;
+                requestedPriority = wanted;
+                link.setPriority(priorityName(wanted));
+                TraceLog.trace(TraceLog.GATT_PRIORITY, wanted);
             }
         }
 
-        public void writeQueuedChars()
+        LampConnectionHealth health()
         {
-            if(writeQueue.size() > 0)
+            int state;
+            if(linked)
             {
-                WriteRequest req = writeQueue.get(0);
-                req.characteristic.setValue(req.data);
-                mygatt.writeCharacteristic(req.characteristic);
-                readQueue.remove(0);
+                state = isReady() ? LampConnectionHealth.READY : LampConnectionHealth.CONNECTING;
             }
             else
             {
-                isWriting = false;
+                state = connects == 0 ? LampConnectionHealth.CONNECTING : LampConnectionHealth.DISCONNECTED;
             }
+            return LampConnectionHealth.of(mac, state, isCurrent(), connects, drops, operations,
+                    SystemClock.elapsedRealtime() - lastUsedAt);
         }
 
-        public void setFromNotifyQueue(BluetoothGatt gatt)
+        void writePower(boolean isOn)
         {
-            if(notifyQueue.size() > 0)
+            synchronized(this)
             {
-                BluetoothGattCharacteristic characteristic = notifyQueue.get(0);
-                BluetoothGattDescriptor desc = characteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805F9B34FB"));
-                if(desc != null)
+                lastOn = isOn;
+            }
+            if(linked && lampState != null)
+            {
+                writePackedState();
+            }
+            else if(linked && power != null)
+            {
+                if(isOn)
                 {
-                    Log.d("BLEDriver","Setting notify");
-                    desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    gatt.writeDescriptor(desc);
+                    writeScheduler.submit(LampWriteScheduler.POWER, new byte[]{0x01});
                 }
                 else
                 {
-                    Log.d("BLE", "No notify");
+                    writeScheduler.submit(LampWriteScheduler.POWER, new byte[]{0x00});
                 }
-                notifyQueue.remove(0);
             }
+        }
 
-            else
+        void writeHSV(byte h, byte s)
+        {
+            synchronized(this)
             {
-                Log.d("BLE", "Starting to read values");
-                readQueuedChars(gatt);
+                lastH = h;
+                lastS = s;
+            }
+            if(linked && lampState != null)
+            {
+                writePackedState();
+            }
+            else if(linked && hsv != null)
+            {
+                writeScheduler.submit(LampWriteScheduler.HSV, new byte[]{h, s, (byte) 0xFF});
             }
         }
 
-        private void setNotify(BluetoothGattCharacteristic characteristic, BluetoothGatt gatt)
+        void writeBrightness(byte brightnessVal)
         {
-            BluetoothGattDescriptor desc = characteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805F9B34FB"));
-            if(desc != null)
+            synchronized(this)
             {
-                Log.d("BLEDriver","Setting notify");
-                desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                gatt.writeDescriptor(desc);
+                lastB = brightnessVal;
             }
-            else
+            if(linked && lampState != null)
             {
-                Log.d("BLE", "No notify");
+                writePackedState();
+            }
+            else if(linked && brightness != null)
+            {
+                writeScheduler.submit(LampWriteScheduler.BRIGHTNESS, new byte[]{brightnessVal});
             }
         }
 
-        public void onCharacteristicRead (BluetoothGatt gatt,
-                                          BluetoothGattCharacteristic characteristic,
-                                          int status)
+        void writeState(boolean isOn, byte h, byte s, byte b)
         {
-            super.onCharacteristicRead(gatt, characteristic, status);
-            Log.d("BLE", "Reading Characteristic " + characteristic.getUuid().toString());
-            UUID current = characteristic.getUuid();
+            boolean powerChanged;
+            boolean hsChanged;
+            boolean brightnessChanged;
+            synchronized(this)
+            {
+                powerChanged = isOn != lastOn;
+                hsChanged = h != lastH || s != lastS;
+                brightnessChanged = b != lastB;
+                lastOn = isOn;
+                lastH = h;
+                lastS = s;
+                lastB = b;
+            }
+            if(!linked)
+            {
+                return;
+            }
+            if(lampState != null)
+            {
+                writePackedState();
+                return;
+            }
+            if(powerChanged && power != null)
+            {
+                writeScheduler.submit(LampWriteScheduler.POWER, new byte[]{isOn ? (byte) 0x01 : (byte) 0x00});
+            }
+            if(hsChanged && hsv != null)
+            {
+                writeScheduler.submit(LampWriteScheduler.HSV, new byte[]{h, s, (byte) 0xFF});
+            }
+            if(brightnessChanged && brightness != null)
+            {
+                writeScheduler.submit(LampWriteScheduler.BRIGHTNESS, new byte[]{b});
+            }
+        }
 
-            if(current.equals(powerUUID))
+        boolean writeSequencedState(boolean isOn, byte h, byte s, byte b, long seq,
+                                    final GroupController.Completion completion)
+        {
+            BluetoothGattCharacteristic characteristic = lampState;
+            if(!linked || characteristic == null)
             {
-                Log.d("BLE", "Reading Power");
-                readPower();
+                return false;
+            }
+            synchronized(this)
+            {
+                lastOn = isOn;
+                lastH = h;
+                lastS = s;
+                lastB = b;
             }
+            operations.enqueue(new WriteOperation(characteristic, LampStatePacket.packSequenced(isOn, h, s, b, seq), true)
+            {
+                protected void onComplete(boolean success)
+                {
+                    completion.complete(success);
+                }
+            });
+            return true;
+        }
 
-            if(current.equals(hsvUUID))
+        private void writePackedState()
+        {
+            byte[] packet;
+            synchronized(this)
             {
-                Log.d("BLE", "Reading Color");
-                readhsv();
+                packet = LampStatePacket.pack(lastOn, lastH, lastS, lastB);
             }
+            writeScheduler.submit(LampWriteScheduler.STATE, packet);
+        }
 
-            if(current.equals(brightnessUUID))
+        private BluetoothGattCharacteristic characteristicForSlot(int slot)
+        {
+            switch(slot)
             {
-                Log.d("BLE", "Reading Brightness");
-                readbrightness();
+                case LampWriteScheduler.POWER:
+                    return power;
+                case LampWriteScheduler.HSV:
+                    return hsv;
+                case LampWriteScheduler.BRIGHTNESS:
+                    return brightness;
+                case LampWriteScheduler.STATE:
+                    return lampState;
+                default:
+                    return null;
+            }
+        }
+
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+        {
+            super.onConnectionStateChange(gatt, status, newState);
+
+            TraceLog.trace(TraceLog.GATT_STATE, status, newState);
+            if(closed)
+            {
+                return;
+            }
+            if(newState == BluetoothProfile.STATE_CONNECTED)
+            {
+                this.gatt = gatt;
+                linked = true;
+                connects++;
+                reconnects = 0;
+                // Discovery is a few dozen round trips; a short connection
+                // interval makes it several times faster. Background lamps
+                // don't need it.
+                if(isCurrent())
+                {
+                    applyConnectionPriority();
+                }
+                else
+                {
+                    requestPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+                }
+                gatt.discoverServices();
+            }
+            else if(newState == BluetoothProfile.STATE_DISCONNECTED)
+            {
+                boolean wasLinked = linked;
+                linked = false;
+                drops++;
+                // Nothing in flight will ever be called back now.
+                operations.clear();
+                writeScheduler.reset();
+                requestedPriority = -1;
+                link.reset();
+                scheduleReconnect(wasLinked, status);
+            }
+        }
+
+        // We connected directly, so nothing brings the lamp back by itself.
+        // Only an established link the lamp dropped (we never disconnect
+        // without closing) is retried; a connect that never came up is left
+        // for the user to pick again.
+        private void scheduleReconnect(boolean wasLinked, int status)
+        {
+            if(!wasLinked && reconnects == 0)
+            {
+                Log.d("BLE", "Connect to " + mac + " failed with status " + status);
+                return;
+            }
+            if(reconnects >= MAX_RECONNECTS)
+            {
+                Log.d("BLE", "Giving up on " + mac + " after " + reconnects + " reconnects");
+                return;
+            }
+            long delay = RECONNECT_BASE_MILLIS << reconnects;
+            reconnects++;
+            timer.schedule(reconnect, delay, TimeUnit.MILLISECONDS);
+        }
+
+        public void onServicesDiscovered(BluetoothGatt gatt, int status)
+        {
+            super.onServicesDiscovered(gatt, status);
+
+            BluetoothGattService service = gatt.getService(SERVICE_UUID);
+            Log.d("BLE", "Services discoverred");
+            if(service != null)
+            {
+                long signature = GattLayoutCache.EMPTY_SIGNATURE;
+                for(BluetoothGattCharacteristic characteristic : service.getCharacteristics())
+                {
+                    signature = GattLayoutCache.signature(signature, characteristic.getUuid(),
+                            characteristic.getProperties());
+                }
+                final GattLayoutCache.Layout known = layouts.reuse(mac, signature);
+                power = service.getCharacteristic(powerUUID);
+                hsv = service.getCharacteristic(hsvUUID);
+                brightness = service.getCharacteristic(brightnessUUID);
+                lampState = service.getCharacteristic(stateUUID);
+
+                if(known == null)
+                {
+                    // Ask for a bigger MTU once, before anything else goes out.
+                    operations.enqueue(new MtuOperation(CONTROL_MTU));
+                    LampDeviceRegistry.Entry<BluetoothDevice> entry = devices.getEntry(mac);
+                    layouts.put(mac, new GattLayoutCache.Layout(entry == null ? null : entry.name, signature,
+                            lampState != null));
+                }
+
+                Log.d("BLE", "Setting notifications to true");
+                BluetoothGattCharacteristic last;
+                if(lampState != null)
+                {
+                    // One notification and one read cover everything.
+                    Log.d("BLE", "Using packed lamp state");
+                    operations.enqueue(new EnableNotifyOperation(lampState));
+                    last = lampState;
+                }
+                else
+                {
+                    operations.enqueue(new EnableNotifyOperation(power));
+                    operations.enqueue(new EnableNotifyOperation(hsv));
+                    operations.enqueue(new EnableNotifyOperation(brightness));
+
+                    //Set delegate values once notifications are on
+                    operations.enqueue(new ReadOperation(power));
+                    operations.enqueue(new ReadOperation(hsv));
+                    last = brightness;
+                }
+                operations.enqueue(new ReadOperation(last)
+                {
+                    protected void onComplete(boolean success)
+                    {
+                        onReady(known != null, success);
+                    }
+                });
+                if(known != null)
+                {
+                    // Nothing the lamp's state needs is bigger than the
+                    // default MTU, so on a lamp we know it can wait.
+                    operations.enqueue(new MtuOperation(CONTROL_MTU));
+                }
+                if(deviceId == null)
+                {
+                    // Not named "LAMPI <id>" in any scan we saw; the serial
+                    // number carries the same id.
+                    BluetoothGattService info = gatt.getService(DEVICE_INFO_UUID);
+                    serial = info == null ? null : info.getCharacteristic(SERIAL_UUID);
+                    if(serial != null)
+                    {
+                        operations.enqueue(new ReadOperation(serial));
+                    }
+                }
+            }
+        }
+
+        public void onCharacteristicRead (BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status)
+        {
+            super.onCharacteristicRead(gatt, characteristic, status);
+            if(TraceLog.isLoggable(TraceLog.GATT_READ))
+            {
+                TraceLog.trace(TraceLog.GATT_READ, TraceLog.characteristic(characteristic.getUuid()), status);
             }
 
-            readQueuedChars(gatt);
+            if(status == BluetoothGatt.GATT_SUCCESS)
+            {
+                dispatchValue(characteristic.getUuid());
+            }
+            operations.complete(GattOperationQueue.READ, characteristic.getUuid(),
+                    status == BluetoothGatt.GATT_SUCCESS);
         }
 
         public void onDescriptorWrite (BluetoothGatt gatt,
@@ -393,8 +1239,13 @@ public class BLEDriver
         {
             super.onDescriptorWrite(gatt, descriptor, status);
 
-            Log.d("BLE", "Wrote a notify descriptor");
-            setFromNotifyQueue(gatt);
+            if(TraceLog.isLoggable(TraceLog.GATT_DESCRIPTOR))
+            {
+                TraceLog.trace(TraceLog.GATT_DESCRIPTOR,
+                        TraceLog.characteristic(descriptor.getCharacteristic().getUuid()), status);
+            }
+            operations.complete(GattOperationQueue.DESCRIPTOR_WRITE, descriptor.getCharacteristic().getUuid(),
+                    status == BluetoothGatt.GATT_SUCCESS);
         }
 
         public void onCharacteristicWrite (BluetoothGatt gatt,
@@ -402,8 +1253,34 @@ public class BLEDriver
                                                          int status)
         {
             super.onCharacteristicWrite(gatt, characteristic, status);
-            Log.d("BLE", "Completed request");
-            writeQueuedChars();
+            if(TraceLog.isLoggable(TraceLog.GATT_WRITE))
+            {
+                TraceLog.trace(TraceLog.GATT_WRITE, TraceLog.characteristic(characteristic.getUuid()), status);
+            }
+            operations.complete(GattOperationQueue.WRITE, characteristic.getUuid(),
+                    status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status)
+        {
+            super.onMtuChanged(gatt, mtu, status);
+            TraceLog.trace(TraceLog.GATT_MTU, mtu, status);
+            if(status == BluetoothGatt.GATT_SUCCESS)
+            {
+                link.setMtu(mtu);
+            }
+            operations.complete(GattOperationQueue.MTU, null, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        // Hidden BluetoothGattCallback method (API 26+), still dispatched to
+        // subclasses that declare it. interval is in 1.25 ms units.
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status)
+        {
+            if(status == BluetoothGatt.GATT_SUCCESS)
+            {
+                link.setConnectionParameters(interval, latency, timeout);
+                TraceLog.trace(TraceLog.GATT_INTERVAL, interval, latency);
+            }
         }
 
         public void onCharacteristicChanged (BluetoothGatt gatt,
@@ -411,58 +1288,262 @@ public class BLEDriver
         {
             super.onCharacteristicChanged(gatt, characteristic);
 
-            characteristic.getValue();
-            UUID current = characteristic.getUuid();
+            if(TraceLog.isLoggable(TraceLog.GATT_NOTIFY))
+            {
+                TraceLog.trace(TraceLog.GATT_NOTIFY, TraceLog.characteristic(characteristic.getUuid()));
+            }
+            dispatchValue(characteristic.getUuid());
+        }
+
+        private void onReady(boolean reusedLayout, boolean success)
+        {
+            // Only connects we started are timed, not the stack's reconnects.
+            if(success && connectStartedAt != 0)
+            {
+                long elapsed = System.nanoTime() - connectStartedAt;
+                connectStartedAt = 0;
+                (reusedLayout ? readyWithLayout : readyFresh).record(elapsed);
+                TraceLog.trace(TraceLog.LAMP_READY, elapsed / 1000000, reusedLayout ? 1 : 0);
+            }
+            timer.execute(saveLayouts);
+        }
 
-            if(current.equals(powerUUID))
+        private void dispatchValue(UUID uuid)
+        {
+            if(uuid.equals(powerUUID))
             {
-                Log.d("BLE", "Reading Power");
                 readPower();
             }
 
-            if(current.equals(hsvUUID))
+            if(uuid.equals(hsvUUID))
             {
-                Log.d("BLE", "Reading Color");
                 readhsv();
             }
 
-            if(current.equals(brightnessUUID))
+            if(uuid.equals(brightnessUUID))
             {
-                Log.d("BLE", "Reading Brightness");
                 readbrightness();
             }
+
+            if(uuid.equals(stateUUID))
+            {
+                readState();
+            }
+
+            if(uuid.equals(SERIAL_UUID))
+            {
+                readSerial();
+            }
         }
 
-        public void readPower()
+        // Remembered in the layout as the lamp's name, so the id is known
+        // before the next connect.
+        private void readSerial()
         {
-            boolean isNull = power == null;
-            Log.d("BLE", "Power null " + isNull);
-            byte val = power.getValue()[0];
-            if(val == 0x00)
+            String id = LampDeviceId.fromSerial(serial.getValue());
+            if(id == null)
             {
-                delegate.setPower(false);
+                return;
             }
-            else
+            deviceId = id;
+            cacheState();
+            GattLayoutCache.Layout layout = layouts.get(mac);
+            if(layout != null)
             {
-                delegate.setPower(true);
+                layouts.put(mac, new GattLayoutCache.Layout(LampDeviceId.NAME_PREFIX + id, layout.signature,
+                        layout.packed));
+                timer.execute(saveLayouts);
+            }
+            if(isCurrent())
+            {
+                delegate.setDeviceId(mac, id);
+            }
+        }
+
+        // A lamp in the background only remembers what it reports; the
+        // delegate hears it when the lamp becomes current again.
+        public synchronized void readPower()
+        {
+            byte val = power.getValue()[0];
+            lastOn = val != 0x00;
+            TraceLog.trace(TraceLog.LAMP_POWER, val);
+            cacheState();
+            if(isCurrent())
+            {
+                delegate.setPower(lastOn);
             }
         }
 
-        public void readhsv()
+        public synchronized void readhsv()
         {
             byte[] val = hsv.getValue();
-            Log.d("BLE", "HS: " + val[0] + " " + val[1]);
-            delegate.setHS(val[0], val[1]);
+            TraceLog.trace(TraceLog.LAMP_HS, val[0] & 0xFF, val[1] & 0xFF);
+            lastH = val[0];
+            lastS = val[1];
+            cacheState();
+            if(isCurrent())
+            {
+                delegate.setHS(val[0], val[1]);
+            }
         }
 
-        public void readbrightness()
+        public synchronized void readbrightness()
         {
             byte[] val = brightness.getValue();
-            Log.d("BLE", "Brightness: " + val[0]);
-            delegate.setB(val[0]);
+            TraceLog.trace(TraceLog.LAMP_BRIGHTNESS, val[0] & 0xFF);
+            lastB = val[0];
+            // Legacy lamps are read power, hsv, then brightness.
+            stateKnown = true;
+            cacheState();
+            if(isCurrent())
+            {
+                delegate.setB(val[0]);
+            }
         }
-    }
 
-}
+        public synchronized void readState()
+        {
+            byte[] val = lampState.getValue();
+            if(!LampStatePacket.isValid(val))
+            {
+                TraceLog.trace(TraceLog.LAMP_BAD_STATE, val == null ? -1 : val.length);
+                return;
+            }
+            lastOn = LampStatePacket.isOn(val);
+            lastH = LampStatePacket.hue(val);
+            lastS = LampStatePacket.saturation(val);
+            lastB = LampStatePacket.brightness(val);
+            stateKnown = true;
+            cacheState();
+            if(TraceLog.isLoggable(TraceLog.LAMP_STATE))
+            {
+                TraceLog.trace(TraceLog.LAMP_STATE, (lastOn ? 1L << 24 : 0) | (lastH & 0xFF) << 16
+                        | (lastS & 0xFF) << 8 | (lastB & 0xFF));
+            }
+            if(isCurrent())
+            {
+                delegate.setPower(lastOn);
+                delegate.setHS(lastH, lastS);
+                delegate.setB(lastB);
+            }
+        }
+
+        // What the lamp reported, at full byte precision, shared with MQTT
+        // under the lamp's device id.
+        private synchronized void cacheState()
+        {
+            String id = deviceId;
+            if(stateKnown && id != null)
+            {
+                MosquittoDriver.getStateCache().put(id, new LampState(lastOn, (lastH & 0xFF) / 255.0,
+                        (lastS & 0xFF) / 255.0, (lastB & 0xFF) / 255.0));
+            }
+        }
 
+        class WriteOperation extends GattOperationQueue.Operation
+        {
+            private final BluetoothGattCharacteristic characteristic;
+            private final byte[] data;
+            private final boolean withResponse;
+            private final long enqueuedAt = System.nanoTime();
+
+            WriteOperation(BluetoothGattCharacteristic characteristic, byte[] data, boolean withResponse)
+            {
+                super(GattOperationQueue.WRITE, characteristic.getUuid());
+                this.characteristic = characteristic;
+                this.data = data;
+                // The legacy characteristics only take acknowledged writes, so
+                // a stream to them goes out with a response.
+                this.withResponse = withResponse || (characteristic.getProperties()
+                        & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0;
+            }
 
+            protected boolean execute()
+            {
+                BluetoothGatt g = gatt;
+                if(!linked || g == null)
+                {
+                    return false;
+                }
+                // Android still calls onCharacteristicWrite for writes without
+                // response once the stack has taken them, which is what returns
+                // the stream credit.
+                characteristic.setWriteType(withResponse
+                        ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                        : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                characteristic.setValue(data);
+                return g.writeCharacteristic(characteristic);
+            }
+
+            protected void onComplete(boolean success)
+            {
+                if(withResponse && success)
+                {
+                    controlWrites.record(System.nanoTime() - enqueuedAt);
+                }
+                writeScheduler.onWriteComplete(withResponse, success);
+            }
+        }
+
+        class ReadOperation extends GattOperationQueue.Operation
+        {
+            private final BluetoothGattCharacteristic characteristic;
+
+            ReadOperation(BluetoothGattCharacteristic characteristic)
+            {
+                super(GattOperationQueue.READ, characteristic.getUuid());
+                this.characteristic = characteristic;
+            }
+
+            protected boolean execute()
+            {
+                BluetoothGatt g = gatt;
+                return linked && g != null && g.readCharacteristic(characteristic);
+            }
+        }
+
+        class EnableNotifyOperation extends GattOperationQueue.Operation
+        {
+            private final BluetoothGattCharacteristic characteristic;
+
+            EnableNotifyOperation(BluetoothGattCharacteristic characteristic)
+            {
+                super(GattOperationQueue.DESCRIPTOR_WRITE, characteristic.getUuid());
+                this.characteristic = characteristic;
+            }
+
+            protected boolean execute()
+            {
+                BluetoothGatt g = gatt;
+                BluetoothGattDescriptor desc = characteristic.getDescriptor(notifyDescriptorUUID);
+                if(!linked || g == null || desc == null)
+                {
+                    Log.d("BLE", "No notify");
+                    return false;
+                }
+                Log.d("BLEDriver","Setting notify");
+                g.setCharacteristicNotification(characteristic, true);
+                desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                return g.writeDescriptor(desc);
+            }
+        }
+
+        class MtuOperation extends GattOperationQueue.Operation
+        {
+            private final int mtu;
+
+            MtuOperation(int mtu)
+            {
+                super(GattOperationQueue.MTU, null);
+                this.mtu = mtu;
+            }
+
+            protected boolean execute()
+            {
+                BluetoothGatt g = gatt;
+                return linked && g != null && g.requestMtu(mtu);
+            }
+        }
+    }
+
+}
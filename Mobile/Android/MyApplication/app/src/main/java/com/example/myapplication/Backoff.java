@@ -0,0 +1,48 @@
+package com.example.myapplication;
+
+import java.util.Random;
+
+// Exponential backoff with jitter: the n-th retry waits a random time
+// between half and all of min(max, base * 2^n), so clients that lost the
+// same access point don't all hit the broker at once.
+public class Backoff
+{
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts = 0;
+
+    public Backoff(long baseMillis, long maxMillis)
+    {
+        this(baseMillis, maxMillis, new Random());
+    }
+
+    public Backoff(long baseMillis, long maxMillis, Random random)
+    {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    public synchronized long nextDelay()
+    {
+        long ceiling = maxMillis;
+        if(attempts < 62 && baseMillis << attempts < maxMillis && baseMillis << attempts > 0)
+        {
+            ceiling = baseMillis << attempts;
+        }
+        attempts++;
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    public synchronized void reset()
+    {
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts()
+    {
+        return attempts;
+    }
+}
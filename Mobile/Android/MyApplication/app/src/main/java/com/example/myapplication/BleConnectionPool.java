@@ -0,0 +1,158 @@
+package com.example.myapplication;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Open connections to lamps, keyed by MAC, so going back to a lamp used a
+// moment ago doesn't cost a connect and service discovery. Holds at most
+// maxConnections; adding one more closes the least recently used. Both get
+// and put count as use. The closer is called outside the pool's lock.
+public class BleConnectionPool<C>
+{
+    public interface Closer<C>
+    {
+        void close(String mac, C connection);
+    }
+
+    private final Closer<C> closer;
+    // Access ordered: iteration starts at the least recently used lamp.
+    private final LinkedHashMap<String, C> byMac = new LinkedHashMap<String, C>(16, 0.75f, true);
+    private int maxConnections;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public BleConnectionPool(int maxConnections, Closer<C> closer)
+    {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.closer = closer;
+    }
+
+    // The open connection to mac, or null; marks it as just used.
+    public synchronized C get(String mac)
+    {
+        C connection = byMac.get(mac);
+        if(connection == null)
+        {
+            misses++;
+        }
+        else
+        {
+            hits++;
+        }
+        return connection;
+    }
+
+    // Adds a connection as the most recently used one, closing whatever it
+    // replaces and any lamps that no longer fit.
+    public void put(String mac, C connection)
+    {
+        List<Map.Entry<String, C>> closed = new ArrayList<Map.Entry<String, C>>(1);
+        synchronized(this)
+        {
+            C previous = byMac.put(mac, connection);
+            if(previous != null && previous != connection)
+            {
+                closed.add(new AbstractMap.SimpleEntry<String, C>(mac, previous));
+            }
+            evictOver(maxConnections, closed);
+        }
+        close(closed);
+    }
+
+    // Forgets the connection without closing it; returns it, or null.
+    public synchronized C remove(String mac)
+    {
+        return byMac.remove(mac);
+    }
+
+    // Removes the connection only if it is still the one held for mac.
+    public synchronized boolean remove(String mac, C connection)
+    {
+        if(byMac.get(mac) != connection)
+        {
+            return false;
+        }
+        byMac.remove(mac);
+        return true;
+    }
+
+    public void setMaxConnections(int max)
+    {
+        List<Map.Entry<String, C>> closed = new ArrayList<Map.Entry<String, C>>();
+        synchronized(this)
+        {
+            maxConnections = Math.max(1, max);
+            evictOver(maxConnections, closed);
+        }
+        close(closed);
+    }
+
+    public void closeAll()
+    {
+        List<Map.Entry<String, C>> closed = new ArrayList<Map.Entry<String, C>>();
+        synchronized(this)
+        {
+            evictOver(0, closed);
+        }
+        close(closed);
+    }
+
+    private void evictOver(int max, List<Map.Entry<String, C>> closed)
+    {
+        Iterator<Map.Entry<String, C>> it = byMac.entrySet().iterator();
+        while(byMac.size() > max && it.hasNext())
+        {
+            Map.Entry<String, C> eldest = it.next();
+            closed.add(new AbstractMap.SimpleEntry<String, C>(eldest.getKey(), eldest.getValue()));
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private void close(List<Map.Entry<String, C>> closed)
+    {
+        for(Map.Entry<String, C> entry : closed)
+        {
+            closer.close(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Least recently used first. Does not count as use.
+    public synchronized List<C> getConnections()
+    {
+        return new ArrayList<C>(byMac.values());
+    }
+
+    public synchronized int size()
+    {
+        return byMac.size();
+    }
+
+    public synchronized int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "pool %d/%d hits=%d misses=%d evictions=%d",
+                byMac.size(), maxConnections, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.myapplication;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Group transport for BLE: each lamp gets a short-lived GATT connection of
+// its own (next to the control connection BLEDriver holds), the state is
+// written and the connection closed again. GroupController bounds how many
+// of these run at once.
+public class BleGroupTransport implements GroupController.Transport
+{
+    private static final long OPERATION_TIMEOUT_MILLIS = 2000;
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final ScheduledExecutorService timer;
+    private final long timeoutMillis;
+
+    // timeoutMillis should be shorter than the GroupController's, so a lamp
+    // is closed and reported as failed here before the controller gives up
+    // on it and hands its connection slot to the next lamp.
+    public BleGroupTransport(Context context, BluetoothAdapter adapter, ScheduledExecutorService timer, long timeoutMillis)
+    {
+        this.context = context;
+        this.adapter = adapter;
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void apply(String mac, LampState state, GroupController.Completion completion)
+    {
+        BluetoothDevice device;
+        try
+        {
+            device = adapter.getRemoteDevice(mac);
+        }
+        catch(IllegalArgumentException e)
+        {
+            completion.complete(false);
+            return;
+        }
+        LampWrite write = new LampWrite(state, completion);
+        write.start();
+        // Direct connection: autoConnect would wait for the lamp to advertise.
+        BluetoothGatt gatt = device.connectGatt(context, false, write);
+        if(gatt == null)
+        {
+            write.finish(null, false);
+        }
+        else
+        {
+            write.attach(gatt);
+        }
+    }
+
+    static byte toByte(double value)
+    {
+        return (byte) Math.round(Math.max(0, Math.min(1, value)) * 255);
+    }
+
+    class LampWrite extends BluetoothGattCallback implements Runnable
+    {
+        private final LampState state;
+        private final GroupController.Completion completion;
+        private final GattOperationQueue operations = new GattOperationQueue(timer, OPERATION_TIMEOUT_MILLIS);
+        private BluetoothGatt gatt = null;
+        private ScheduledFuture<?> timeout = null;
+        private int remaining = 0;
+        private boolean failed = false;
+        private boolean finished = false;
+
+        LampWrite(LampState state, GroupController.Completion completion)
+        {
+            this.state = state;
+            this.completion = completion;
+        }
+
+        synchronized void start()
+        {
+            timeout = timer.schedule(this, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Closes the connection straight away if the lamp already timed out
+        // while connectGatt was still returning.
+        void attach(BluetoothGatt gatt)
+        {
+            boolean closeNow;
+            synchronized(this)
+            {
+                this.gatt = gatt;
+                closeNow = finished;
+            }
+            if(closeNow)
+            {
+                gatt.disconnect();
+                gatt.close();
+            }
+        }
+
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+        {
+            if(status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED)
+            {
+                if(!gatt.discoverServices())
+                {
+                    finish(gatt, false);
+                }
+            }
+            else if(newState == BluetoothProfile.STATE_DISCONNECTED)
+            {
+                finish(gatt, false);
+            }
+        }
+
+        public void onServicesDiscovered(BluetoothGatt gatt, int status)
+        {
+            BluetoothGattService service = gatt.getService(BLEDriver.SERVICE_UUID);
+            if(status != BluetoothGatt.GATT_SUCCESS || service == null)
+            {
+                finish(gatt, false);
+                return;
+            }
+            byte h = toByte(state.h);
+            byte s = toByte(state.s);
+            byte b = toByte(state.brightness);
+            BluetoothGattCharacteristic packed = service.getCharacteristic(BLEDriver.stateUUID);
+            if(packed != null)
+            {
+                expectWrites(1);
+                write(gatt, packed, LampStatePacket.pack(state.isOn, h, s, b));
+                return;
+            }
+            BluetoothGattCharacteristic power = service.getCharacteristic(BLEDriver.powerUUID);
+            BluetoothGattCharacteristic hsv = service.getCharacteristic(BLEDriver.hsvUUID);
+            BluetoothGattCharacteristic brightness = service.getCharacteristic(BLEDriver.brightnessUUID);
+            if(power == null || hsv == null || brightness == null)
+            {
+                finish(gatt, false);
+                return;
+            }
+            // Counted up front, the first write may finish before the last is queued.
+            expectWrites(3);
+            write(gatt, power, new byte[]{state.isOn ? (byte) 1 : (byte) 0});
+            write(gatt, hsv, new byte[]{h, s, (byte) 0xFF});
+            write(gatt, brightness, new byte[]{b});
+        }
+
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
+        {
+            operations.complete(GattOperationQueue.WRITE, characteristic.getUuid(), status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        // Whole lamp timed out.
+        public void run()
+        {
+            BluetoothGatt current;
+            synchronized(this)
+            {
+                current = gatt;
+            }
+            finish(current, false);
+        }
+
+        private synchronized void expectWrites(int count)
+        {
+            remaining = count;
+        }
+
+        private void write(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] data)
+        {
+            operations.enqueue(new GattOperationQueue.Operation(GattOperationQueue.WRITE, characteristic.getUuid())
+            {
+                protected boolean execute()
+                {
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                    characteristic.setValue(data);
+                    return gatt.writeCharacteristic(characteristic);
+                }
+
+                protected void onComplete(boolean success)
+                {
+                    writeFinished(gatt, success);
+                }
+            });
+        }
+
+        private void writeFinished(BluetoothGatt gatt, boolean success)
+        {
+            boolean done;
+            synchronized(this)
+            {
+                failed |= !success;
+                remaining--;
+                done = remaining == 0;
+            }
+            if(done)
+            {
+                finish(gatt, !failed);
+            }
+        }
+
+        void finish(BluetoothGatt gatt, boolean success)
+        {
+            synchronized(this)
+            {
+                if(finished)
+                {
+                    return;
+                }
+                finished = true;
+                if(timeout != null)
+                {
+                    timeout.cancel(false);
+                }
+            }
+            operations.clear();
+            if(gatt != null)
+            {
+                gatt.disconnect();
+                gatt.close();
+            }
+            if(!success)
+            {
+                Log.d("BLE", "Group write failed");
+            }
+            completion.complete(success);
+        }
+    }
+}
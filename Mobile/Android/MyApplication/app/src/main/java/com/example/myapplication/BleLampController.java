@@ -0,0 +1,46 @@
+package com.example.myapplication;
+
+// Controls the lamp BLEDriver is connected to. Round trips are acknowledged
+// control writes, queued until the lamp's write response, so they compare
+// with MQTT's publish-to-echo times; streamed writes without response and
+// hedged writes are left out.
+public class BleLampController implements LampController
+{
+    private final BLEDriver ble;
+
+    public BleLampController(BLEDriver ble)
+    {
+        this.ble = ble;
+    }
+
+    public String getName()
+    {
+        return "BLE";
+    }
+
+    public boolean isAvailable()
+    {
+        return ble.isConnected();
+    }
+
+    public void apply(LampLevels levels)
+    {
+        ble.writeState(levels.isOn, LampLevels.toByte(levels.h), LampLevels.toByte(levels.s),
+                LampLevels.toByte(levels.v));
+    }
+
+    public void beginStreaming()
+    {
+        ble.beginStreaming();
+    }
+
+    public void endStreaming()
+    {
+        ble.endStreaming();
+    }
+
+    public LatencyHistogram getRoundTrip()
+    {
+        return ble.getControlWriteLatency();
+    }
+}
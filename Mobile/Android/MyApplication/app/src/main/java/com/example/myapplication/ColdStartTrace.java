@@ -0,0 +1,70 @@
+package com.example.myapplication;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// When each step of a cold start happened, in milliseconds after the
+// process started: first frame, each transport ready, everything ready.
+// Appended to a file one launch per line, tagged with the build, so builds
+// can be compared.
+public class ColdStartTrace
+{
+    // The file is started over once it grows past this.
+    private static final long MAX_FILE_BYTES = 64 * 1024;
+
+    private final long processStartMillis;
+    private final List<String> phases = new ArrayList<String>();
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    public ColdStartTrace(long processStartMillis)
+    {
+        this.processStartMillis = processStartMillis;
+    }
+
+    // Records phase at nowMillis; a phase is only recorded the first time.
+    public synchronized void mark(String phase, long nowMillis)
+    {
+        if(phases.contains(phase))
+        {
+            return;
+        }
+        phases.add(phase);
+        offsets.add(nowMillis - processStartMillis);
+    }
+
+    // Milliseconds from process start to phase, or -1 if it hasn't happened.
+    public synchronized long getMillis(String phase)
+    {
+        int i = phases.indexOf(phase);
+        return i < 0 ? -1 : offsets.get(i);
+    }
+
+    public synchronized String describe()
+    {
+        StringBuilder sb = new StringBuilder("cold start");
+        for(int i = 0; i < phases.size(); i++)
+        {
+            sb.append(String.format(Locale.US, " %s=%dms", phases.get(i), offsets.get(i)));
+        }
+        return sb.toString();
+    }
+
+    public void appendTo(File file, String build) throws IOException
+    {
+        boolean append = file.length() < MAX_FILE_BYTES;
+        Writer out = new FileWriter(file, append);
+        try
+        {
+            out.write(build + " " + describe() + "\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.myapplication;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+// Commands that could not be published, kept in an append-only file so they
+// survive the app being killed while offline. Only the newest state per
+// lamp is kept; lamps are drained in the order they were last changed.
+//
+// Records are [type, seq, id length, id, (on, h, s, b)]. PUT records add or
+// replace a lamp's state and DONE records remove it once sent. A torn
+// record at the end (crash mid-write) is dropped on open, and the file is
+// rewritten with just the live entries once it is mostly dead records.
+public class CommandOutbox
+{
+    public static class Entry
+    {
+        public final String deviceId;
+        public final LampState state;
+        final long seq;
+
+        Entry(String deviceId, LampState state, long seq)
+        {
+            this.deviceId = deviceId;
+            this.state = state;
+            this.seq = seq;
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte PUT = 1;
+    private static final byte DONE = 2;
+    private static final int COMPACT_MIN_RECORDS = 256;
+    private static final int COMPACT_RATIO = 4;
+
+    private final File file;
+    private final LinkedHashMap<String, Entry> byDevice = new LinkedHashMap<String, Entry>();
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(64);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private RandomAccessFile out;
+    private long nextSeq = 1;
+    private int records = 0;
+
+    private long puts = 0;
+    private long collapsed = 0;
+    private long sent = 0;
+    private long compactions = 0;
+    private long recovered = 0;
+
+    public CommandOutbox(File file) throws IOException
+    {
+        this.file = file;
+        long valid = file.exists() ? replay() : 0;
+        out = new RandomAccessFile(file, "rwd");
+        out.setLength(valid);
+        out.seek(valid);
+        recovered = byDevice.size();
+    }
+
+    public synchronized void put(String deviceId, LampState state) throws IOException
+    {
+        Entry entry = new Entry(deviceId, state, nextSeq++);
+        append(PUT, entry);
+        puts++;
+        // Re-inserting moves the lamp to the end of the drain order.
+        if(byDevice.remove(deviceId) != null)
+        {
+            collapsed++;
+        }
+        byDevice.put(deviceId, entry);
+        compactIfNeeded();
+    }
+
+    // Marks an entry as sent. A newer state put for the same lamp in the
+    // meantime stays queued.
+    public synchronized boolean remove(Entry entry) throws IOException
+    {
+        Entry current = byDevice.get(entry.deviceId);
+        if(current == null || current.seq != entry.seq)
+        {
+            return false;
+        }
+        append(DONE, entry);
+        byDevice.remove(entry.deviceId);
+        sent++;
+        compactIfNeeded();
+        return true;
+    }
+
+    // Drops whatever is queued for the lamp, e.g. because a newer command
+    // was just published directly.
+    public synchronized boolean discard(String deviceId) throws IOException
+    {
+        Entry current = byDevice.get(deviceId);
+        if(current == null)
+        {
+            return false;
+        }
+        append(DONE, current);
+        byDevice.remove(deviceId);
+        compactIfNeeded();
+        return true;
+    }
+
+    // Up to max entries in drain order, skipping lamps in exclude.
+    public synchronized List<Entry> next(int max, Collection<String> exclude)
+    {
+        List<Entry> entries = new ArrayList<Entry>(Math.min(max, byDevice.size()));
+        Iterator<Entry> it = byDevice.values().iterator();
+        while(entries.size() < max && it.hasNext())
+        {
+            Entry entry = it.next();
+            if(!exclude.contains(entry.deviceId))
+            {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public synchronized Entry get(String deviceId)
+    {
+        return byDevice.get(deviceId);
+    }
+
+    public synchronized int size()
+    {
+        return byDevice.size();
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return byDevice.isEmpty();
+    }
+
+    public synchronized long getFileLength() throws IOException
+    {
+        return out.length();
+    }
+
+    public synchronized long getRecoveredCount()
+    {
+        return recovered;
+    }
+
+    public synchronized long getCollapsedCount()
+    {
+        return collapsed;
+    }
+
+    public synchronized long getSentCount()
+    {
+        return sent;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "queued=%d recovered=%d puts=%d collapsed=%d sent=%d records=%d compactions=%d",
+                byDevice.size(), recovered, puts, collapsed, sent, records, compactions);
+    }
+
+    public synchronized void close() throws IOException
+    {
+        out.close();
+    }
+
+    // Rewrites the file with only the live entries.
+    public synchronized void compact() throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile rewritten = new RandomAccessFile(tmp, "rw");
+        try
+        {
+            for(Entry entry : byDevice.values())
+            {
+                rewritten.write(encode(PUT, entry));
+            }
+            rewritten.getFD().sync();
+        }
+        finally
+        {
+            rewritten.close();
+        }
+        out.close();
+        if(!tmp.renameTo(file))
+        {
+            throw new IOException("Could not replace " + file);
+        }
+        out = new RandomAccessFile(file, "rwd");
+        out.seek(out.length());
+        records = byDevice.size();
+        compactions++;
+    }
+
+    private void compactIfNeeded() throws IOException
+    {
+        if(records >= COMPACT_MIN_RECORDS && records > COMPACT_RATIO * byDevice.size())
+        {
+            compact();
+        }
+    }
+
+    private void append(byte type, Entry entry) throws IOException
+    {
+        out.write(encode(type, entry));
+        records++;
+    }
+
+    private byte[] encode(byte type, Entry entry) throws IOException
+    {
+        recordBytes.reset();
+        byte[] id = entry.deviceId.getBytes(UTF8);
+        record.writeByte(type);
+        record.writeLong(entry.seq);
+        record.writeShort(id.length);
+        record.write(id);
+        if(type == PUT)
+        {
+            record.writeBoolean(entry.state.isOn);
+            record.writeDouble(entry.state.h);
+            record.writeDouble(entry.state.s);
+            record.writeDouble(entry.state.brightness);
+        }
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+
+    // Rebuilds the queue from the file and returns the length of the valid
+    // prefix.
+    private long replay() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long valid = 0;
+        try
+        {
+            while(true)
+            {
+                byte type = in.readByte();
+                long seq = in.readLong();
+                int idLength = in.readUnsignedShort();
+                byte[] id = new byte[idLength];
+                in.readFully(id);
+                String deviceId = new String(id, UTF8);
+                int length = 1 + 8 + 2 + idLength;
+                if(type == PUT)
+                {
+                    LampState state = new LampState(in.readBoolean(), in.readDouble(), in.readDouble(), in.readDouble());
+                    length += 1 + 3 * 8;
+                    byDevice.remove(deviceId);
+                    byDevice.put(deviceId, new Entry(deviceId, state, seq));
+                }
+                else if(type == DONE)
+                {
+                    Entry current = byDevice.get(deviceId);
+                    if(current != null && current.seq == seq)
+                    {
+                        byDevice.remove(deviceId);
+                    }
+                }
+                else
+                {
+                    break;
+                }
+                valid += length;
+                records++;
+                nextSeq = Math.max(nextSeq, seq + 1);
+            }
+        }
+        catch(EOFException e)
+        {
+            // Torn last record; everything before it is good.
+        }
+        finally
+        {
+            in.close();
+        }
+        return valid;
+    }
+}
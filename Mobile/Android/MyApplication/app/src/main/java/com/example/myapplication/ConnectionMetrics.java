@@ -0,0 +1,78 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// Connection uptime figures: how long each outage lasted until the client
+// was connected again, and the total time spent disconnected.
+public class ConnectionMetrics
+{
+    private final LatencyHistogram reconnect = new LatencyHistogram();
+    private boolean connected = false;
+    private long disconnectedAt = -1;
+    private long disconnectedMillis = 0;
+    private long connects = 0;
+    private long losses = 0;
+    private long attempts = 0;
+    private long failures = 0;
+
+    public synchronized void onAttempt()
+    {
+        attempts++;
+    }
+
+    public synchronized void onAttemptFailed()
+    {
+        failures++;
+    }
+
+    public synchronized void onConnected(long now)
+    {
+        connects++;
+        if(disconnectedAt >= 0)
+        {
+            long outage = now - disconnectedAt;
+            disconnectedMillis += outage;
+            reconnect.record(outage * 1000000);
+            disconnectedAt = -1;
+        }
+        connected = true;
+    }
+
+    public synchronized void onConnectionLost(long now)
+    {
+        if(!connected)
+        {
+            return;
+        }
+        losses++;
+        connected = false;
+        disconnectedAt = now;
+    }
+
+    public synchronized boolean isConnected()
+    {
+        return connected;
+    }
+
+    // Includes the current outage, if any.
+    public synchronized long getDisconnectedMillis(long now)
+    {
+        return disconnectedMillis + (disconnectedAt >= 0 ? now - disconnectedAt : 0);
+    }
+
+    public LatencyHistogram getReconnectLatency()
+    {
+        return reconnect;
+    }
+
+    public synchronized long getLossCount()
+    {
+        return losses;
+    }
+
+    public synchronized String describe(long now)
+    {
+        return String.format(Locale.US, "connected=%b connects=%d losses=%d attempts=%d failed=%d disconnected=%dms reconnect %s",
+                connected, connects, losses, attempts, failures, getDisconnectedMillis(now), reconnect);
+    }
+}
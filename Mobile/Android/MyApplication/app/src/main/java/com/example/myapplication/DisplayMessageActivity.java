@@ -11,6 +11,7 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -18,18 +19,21 @@ import java.util.List;
 
 public class DisplayMessageActivity extends AppCompatActivity implements LampDiscoveryDelegate {
 
-    public void discoveredLamp(String deviceName){
-        if (bleDevices.contains(deviceName)) return;
-        if (deviceName == null) return;
-        if (bleDevices.contains("Not Connected")) {
-            bleDevices.remove("Not Connected");
+    public void discoveredLamps(List<String> deviceNames){
+        if (spinnerArrayAdapter == null) return;
+        Log.d ("discovered", deviceNames.size() + " lamps");
+        // refresh the spinner (dropdown list) in place, keeping the selection
+        Object selected = blueToothDeviceSpinner.getSelectedItem();
+        bleDevices.clear();
+        if (deviceNames.isEmpty()) {
+            bleDevices.add("Not Connected");
+        } else {
+            bleDevices.addAll(deviceNames);
+        }
+        spinnerArrayAdapter.notifyDataSetChanged();
+        if (selected != null && bleDevices.contains(selected.toString())) {
+            blueToothDeviceSpinner.setSelection(bleDevices.indexOf(selected.toString()));
         }
-        Log.d ("discovered", deviceName);
-        // add device to spinner (dropdown list)
-        bleDevices.add(deviceName);
-        ArrayAdapter<String> spinnerArrayAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, bleDevices);
-        spinnerArrayAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item); // The drop down view
-        blueToothDeviceSpinner.setAdapter(spinnerArrayAdapter);
     }
 
     private  String CONNECTION_TYPE = "";
@@ -41,6 +45,7 @@ public class DisplayMessageActivity extends AppCompatActivity implements LampDis
     private List<String> bleDevices;
     private BLEDriver ble = BLEDriver.instance;// = BLEDriver.instance;
     private Spinner blueToothDeviceSpinner;
+    private ArrayAdapter<String> spinnerArrayAdapter;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -48,7 +53,6 @@ public class DisplayMessageActivity extends AppCompatActivity implements LampDis
         bleDevices = new ArrayList<String>();
         bleDevices.add("Not Connected");
         //ble = new BLEDriver(this);
-        ble.startBrowsing(this);
         //bleDevices.add("WELF");
         //bleDevices.add("Ellis");
 
@@ -86,7 +90,7 @@ public class DisplayMessageActivity extends AppCompatActivity implements LampDis
 //        });
 
         // Application of the List to the Spinner
-        ArrayAdapter<String> spinnerArrayAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, bleDevices);
+        spinnerArrayAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, bleDevices);
         spinnerArrayAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         blueToothDeviceSpinner.setAdapter(spinnerArrayAdapter);
 
@@ -133,6 +137,21 @@ public class DisplayMessageActivity extends AppCompatActivity implements LampDis
     }
 
 
+    // Only scan while the picker is on screen.
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (!ble.startBrowsing(this, BLEDriver.SCAN_DISCOVERY)) {
+            Toast.makeText(this, "Could not scan for lamps, is Bluetooth on?", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        ble.stopBrowsing();
+    }
+
     // This method will be invoked when user click android device Back menu at bottom.
     @Override
     public void onBackPressed() {
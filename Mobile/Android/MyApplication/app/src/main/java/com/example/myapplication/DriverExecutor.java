@@ -0,0 +1,94 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+// The one thread that runs lamp commands, driver timers and timeouts for
+// both BLE and MQTT. The UI thread only enqueues, so encoding, publishing
+// and GATT calls never cost it a frame; commands run in the order they were
+// submitted.
+public class DriverExecutor
+{
+    private static DriverExecutor instance;
+
+    public static synchronized DriverExecutor get()
+    {
+        if(instance == null)
+        {
+            instance = new DriverExecutor();
+        }
+        return instance;
+    }
+
+    private volatile Thread thread;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable runnable)
+        {
+            Thread t = new Thread(runnable, "lamp-driver");
+            thread = t;
+            return t;
+        }
+    });
+
+    private final LatencyHistogram queueDelay = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    public <T> Future<T> submit(final Callable<T> command)
+    {
+        final long queuedAt = System.nanoTime();
+        return executor.submit(new Callable<T>()
+        {
+            public T call() throws Exception
+            {
+                long startedAt = System.nanoTime();
+                queueDelay.record(startedAt - queuedAt);
+                try
+                {
+                    return command.call();
+                }
+                finally
+                {
+                    runTime.record(System.nanoTime() - startedAt);
+                }
+            }
+        });
+    }
+
+    public Future<?> submit(final Runnable command)
+    {
+        return submit(new Callable<Void>()
+        {
+            public Void call()
+            {
+                command.run();
+                return null;
+            }
+        });
+    }
+
+    // For driver timers and timeouts; they share the command thread.
+    public ScheduledExecutorService getScheduler()
+    {
+        return executor;
+    }
+
+    public boolean isDriverThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    public String describe()
+    {
+        return String.format(Locale.US, "driver queue delay %s, run time %s", queueDelay, runTime);
+    }
+}
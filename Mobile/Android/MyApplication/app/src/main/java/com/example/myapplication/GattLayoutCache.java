@@ -0,0 +1,214 @@
+package com.example.myapplication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// What we learned about each lamp's GATT table, keyed by MAC, and which
+// lamp we were connected to last, so the app can reconnect to it straight
+// away instead of scanning. A layout is only reused while the lamp's
+// characteristics (UUIDs and properties, in handle order) hash to the same
+// signature; a lamp that was updated gets set up from scratch.
+//
+// The snapshot is [magic, count, last mac, (mac, name, signature, packed)...].
+public class GattLayoutCache
+{
+    public static final long EMPTY_SIGNATURE = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private static final int SNAPSHOT_MAGIC = 0x474c4331;
+
+    public static class Layout
+    {
+        public final String name;
+        public final long signature;
+        // The lamp has the packed state characteristic.
+        public final boolean packed;
+
+        public Layout(String name, long signature, boolean packed)
+        {
+            this.name = name;
+            this.signature = signature;
+            this.packed = packed;
+        }
+    }
+
+    private final HashMap<String, Layout> byMac = new HashMap<String, Layout>();
+    private String lastMac = null;
+    private boolean dirty = false;
+
+    private long reused = 0;
+    private long changed = 0;
+    private long unknown = 0;
+
+    // Folds one characteristic into a signature started from
+    // EMPTY_SIGNATURE.
+    public static long signature(long signature, UUID uuid, int properties)
+    {
+        signature = mix(signature, uuid.getMostSignificantBits());
+        signature = mix(signature, uuid.getLeastSignificantBits());
+        return mix(signature, properties);
+    }
+
+    private static long mix(long signature, long value)
+    {
+        for(int i = 0; i < 8; i++)
+        {
+            signature ^= (value >>> (i * 8)) & 0xFF;
+            signature *= PRIME;
+        }
+        return signature;
+    }
+
+    // The cached layout if the lamp's table still has this signature, else
+    // null.
+    public synchronized Layout reuse(String mac, long signature)
+    {
+        Layout layout = byMac.get(mac);
+        if(layout == null)
+        {
+            unknown++;
+            return null;
+        }
+        if(layout.signature != signature)
+        {
+            changed++;
+            return null;
+        }
+        reused++;
+        return layout;
+    }
+
+    public synchronized void put(String mac, Layout layout)
+    {
+        byMac.put(mac, layout);
+        dirty = true;
+    }
+
+    public synchronized Layout get(String mac)
+    {
+        return byMac.get(mac);
+    }
+
+    public synchronized void setLastMac(String mac)
+    {
+        dirty |= !mac.equals(lastMac);
+        lastMac = mac;
+    }
+
+    public synchronized String getLastMac()
+    {
+        return lastMac;
+    }
+
+    public synchronized int size()
+    {
+        return byMac.size();
+    }
+
+    public synchronized long getReusedCount()
+    {
+        return reused;
+    }
+
+    public synchronized long getChangedCount()
+    {
+        return changed;
+    }
+
+    // Adds the layouts saved in file; a missing file is an empty snapshot.
+    public synchronized int readSnapshot(File file) throws IOException
+    {
+        if(!file.exists())
+        {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int added = 0;
+        try
+        {
+            if(in.readInt() != SNAPSHOT_MAGIC)
+            {
+                throw new IOException("Not a GATT layout snapshot: " + file);
+            }
+            int count = in.readUnsignedShort();
+            String last = in.readUTF();
+            for(int i = 0; i < count; i++)
+            {
+                String mac = in.readUTF();
+                Layout layout = new Layout(in.readUTF(), in.readLong(), in.readBoolean());
+                if(!byMac.containsKey(mac))
+                {
+                    byMac.put(mac, layout);
+                    added++;
+                }
+            }
+            if(lastMac == null && last.length() > 0)
+            {
+                lastMac = last;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return added;
+    }
+
+    // Rewrites file if anything changed since the last save.
+    public synchronized boolean writeSnapshot(File file) throws IOException
+    {
+        if(!dirty)
+        {
+            return false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try
+        {
+            int count = Math.min(byMac.size(), 0xFFFF);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeShort(count);
+            out.writeUTF(lastMac == null ? "" : lastMac);
+            for(Map.Entry<String, Layout> entry : byMac.entrySet())
+            {
+                if(count-- == 0)
+                {
+                    break;
+                }
+                Layout layout = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(layout.name == null ? "" : layout.name);
+                out.writeLong(layout.signature);
+                out.writeBoolean(layout.packed);
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tmp.renameTo(file))
+        {
+            throw new IOException("Could not replace " + file);
+        }
+        dirty = false;
+        return true;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "layouts=%d reused=%d changed=%d unknown=%d last=%s",
+                byMac.size(), reused, changed, unknown, lastMac);
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.myapplication;
+
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Android only allows one outstanding GATT operation per connection and
+// silently drops anything issued while another is running. Every descriptor
+// write, read, write and MTU request goes through this queue, which starts
+// the next operation only when the matching callback arrives (or the current
+// one times out).
+public class GattOperationQueue
+{
+    public static final int DESCRIPTOR_WRITE = 0;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int MTU = 3;
+    public static final int TYPE_COUNT = 4;
+
+    private static final String[] TYPE_NAMES = {"descriptor write", "read", "write", "mtu"};
+
+    public static abstract class Operation
+    {
+        final int type;
+        final Object key;
+        long startedAt;
+
+        // key identifies the operation in the callback, normally the
+        // characteristic UUID; it may be null for MTU requests.
+        protected Operation(int type, Object key)
+        {
+            this.type = type;
+            this.key = key;
+        }
+
+        // Issues the GATT call and returns false if the stack refused it.
+        protected abstract boolean execute();
+
+        // Called once the operation has finished, failed or timed out.
+        protected void onComplete(boolean success)
+        {
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final long timeoutMillis;
+
+    private final LinkedList<Operation> queue = new LinkedList<Operation>();
+    private Operation current = null;
+    private ScheduledFuture<?> currentTimeout = null;
+    private int generation = 0;
+    // The operation that last timed out: its callback may still turn up, and
+    // must not complete a later operation on the same characteristic.
+    private int lateType = -1;
+    private Object lateKey = null;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[TYPE_COUNT];
+    private long completed = 0;
+    private long failed = 0;
+    private long timedOut = 0;
+    private long unmatched = 0;
+    private long late = 0;
+
+    public GattOperationQueue(ScheduledExecutorService timer, long timeoutMillis)
+    {
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+        for(int i = 0; i < TYPE_COUNT; i++)
+        {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    public void enqueue(Operation op)
+    {
+        synchronized(this)
+        {
+            queue.add(op);
+        }
+        startNext();
+    }
+
+    // Called from the BluetoothGattCallback methods. Callbacks that don't
+    // match the operation in flight are counted and otherwise ignored, as is
+    // the first callback matching an operation that timed out.
+    public void complete(int type, Object key, boolean success)
+    {
+        Operation finished;
+        synchronized(this)
+        {
+            if(type == lateType && sameKey(lateKey, key))
+            {
+                lateType = -1;
+                lateKey = null;
+                late++;
+                return;
+            }
+            if(current == null || current.type != type || !sameKey(current.key, key))
+            {
+                unmatched++;
+                return;
+            }
+            finished = current;
+            current = null;
+            cancelTimeout();
+            latency[type].record(System.nanoTime() - finished.startedAt);
+            if(success)
+            {
+                completed++;
+            }
+            else
+            {
+                failed++;
+            }
+        }
+        finished.onComplete(success);
+        startNext();
+    }
+
+    // Drops the queued operations without calling them back, e.g. on disconnect.
+    public synchronized void clear()
+    {
+        queue.clear();
+        current = null;
+        cancelTimeout();
+        generation++;
+        lateType = -1;
+        lateKey = null;
+    }
+
+    public synchronized int size()
+    {
+        return queue.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized boolean isBusy()
+    {
+        return current != null;
+    }
+
+    public LatencyHistogram getLatency(int type)
+    {
+        return latency[type];
+    }
+
+    public synchronized long getCompletedCount()
+    {
+        return completed;
+    }
+
+    public synchronized long getFailedCount()
+    {
+        return failed;
+    }
+
+    public synchronized long getTimedOutCount()
+    {
+        return timedOut;
+    }
+
+    public synchronized long getUnmatchedCount()
+    {
+        return unmatched;
+    }
+
+    public synchronized long getLateCount()
+    {
+        return late;
+    }
+
+    public String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+        synchronized(this)
+        {
+            sb.append("completed=").append(completed)
+                    .append(" failed=").append(failed)
+                    .append(" timedOut=").append(timedOut)
+                    .append(" unmatched=").append(unmatched)
+                    .append(" late=").append(late);
+        }
+        for(int i = 0; i < TYPE_COUNT; i++)
+        {
+            sb.append('\n').append(TYPE_NAMES[i]).append(": ").append(latency[i]);
+        }
+        return sb.toString();
+    }
+
+    private void startNext()
+    {
+        while(true)
+        {
+            Operation op;
+            synchronized(this)
+            {
+                if(current != null || queue.isEmpty())
+                {
+                    return;
+                }
+                op = queue.removeFirst();
+                current = op;
+                op.startedAt = System.nanoTime();
+                scheduleTimeout(++generation);
+            }
+
+            // The GATT call and the completion hooks run outside the lock so
+            // they can safely enqueue follow-up operations.
+            if(op.execute())
+            {
+                return;
+            }
+
+            synchronized(this)
+            {
+                if(current != op)
+                {
+                    return;
+                }
+                current = null;
+                cancelTimeout();
+                failed++;
+            }
+            op.onComplete(false);
+        }
+    }
+
+    private void scheduleTimeout(final int expected)
+    {
+        currentTimeout = timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                onTimeout(expected);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimeout()
+    {
+        if(currentTimeout != null)
+        {
+            currentTimeout.cancel(false);
+            currentTimeout = null;
+        }
+    }
+
+    private void onTimeout(int expected)
+    {
+        Operation stuck;
+        synchronized(this)
+        {
+            if(current == null || generation != expected)
+            {
+                return;
+            }
+            stuck = current;
+            current = null;
+            currentTimeout = null;
+            timedOut++;
+            lateType = stuck.type;
+            lateKey = stuck.key;
+        }
+        stuck.onComplete(false);
+        startNext();
+    }
+
+    private static boolean sameKey(Object a, Object b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.myapplication;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Applies one state to a group of lamps. Lamps are handed to the transport
+// in order with at most maxConcurrent in flight (MQTT publishes awaiting
+// their ack, or BLE connections), and every lamp's completion latency is
+// measured from the moment the group change was requested.
+public class GroupController
+{
+    public interface Transport
+    {
+        // Starts applying the state; the transport must call completion
+        // exactly once, from any thread. Lamps that don't finish within the
+        // controller's timeout are counted as timed out.
+        void apply(String lampId, LampState state, Completion completion);
+    }
+
+    public interface Completion
+    {
+        void complete(boolean success);
+    }
+
+    public interface Listener
+    {
+        void onGroupComplete(GroupRun run);
+    }
+
+    // One group change. Latencies are from the start of the run, so the
+    // last lamp's latency is the time the whole group took.
+    public static class GroupRun
+    {
+        public final LampState state;
+        private final String[] lamps;
+        private final long[] latencyNanos;
+        private final boolean[] succeeded;
+        private final Listener listener;
+        private final long startedAt;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private int finished = 0;
+        private int failed = 0;
+        private int timedOut = 0;
+        private long durationNanos = -1;
+
+        GroupRun(List<String> lamps, LampState state, Listener listener, long startedAt)
+        {
+            this.state = state;
+            this.lamps = lamps.toArray(new String[lamps.size()]);
+            this.latencyNanos = new long[this.lamps.length];
+            this.succeeded = new boolean[this.lamps.length];
+            this.listener = listener;
+            this.startedAt = startedAt;
+        }
+
+        // Returns true when this was the last lamp of the run.
+        synchronized boolean record(int index, boolean success, boolean timeout, long now)
+        {
+            long elapsed = now - startedAt;
+            latencyNanos[index] = elapsed;
+            succeeded[index] = success;
+            latency.record(elapsed);
+            if(!success)
+            {
+                failed++;
+            }
+            if(timeout)
+            {
+                timedOut++;
+            }
+            finished++;
+            if(finished == lamps.length)
+            {
+                durationNanos = elapsed;
+                return true;
+            }
+            return false;
+        }
+
+        public int size()
+        {
+            return lamps.length;
+        }
+
+        public String getLamp(int index)
+        {
+            return lamps[index];
+        }
+
+        public synchronized long getLatencyNanos(int index)
+        {
+            return latencyNanos[index];
+        }
+
+        public synchronized boolean isSucceeded(int index)
+        {
+            return succeeded[index];
+        }
+
+        public synchronized boolean isComplete()
+        {
+            return finished == lamps.length;
+        }
+
+        public synchronized int getFailedCount()
+        {
+            return failed;
+        }
+
+        public synchronized int getTimedOutCount()
+        {
+            return timedOut;
+        }
+
+        // Time until the last lamp finished, or -1 while still running.
+        public synchronized long getDurationNanos()
+        {
+            return durationNanos;
+        }
+
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        public synchronized String describe()
+        {
+            return String.format(Locale.US, "%d/%d lamps in %dms, %d failed (%d timed out), lamp latency %s",
+                    finished, lamps.length, (durationNanos < 0 ? System.nanoTime() - startedAt : durationNanos) / 1000000,
+                    failed, timedOut, latency);
+        }
+    }
+
+    private final Transport transport;
+    private final ScheduledExecutorService timer;
+    private final long timeoutMillis;
+    private int maxConcurrent;
+
+    private final LinkedList<Task> waiting = new LinkedList<Task>();
+    private int inFlight = 0;
+
+    private final LatencyHistogram lampLatency = new LatencyHistogram();
+    private long runs = 0;
+    private long lamps = 0;
+    private long failed = 0;
+
+    public GroupController(Transport transport, int maxConcurrent, ScheduledExecutorService timer, long timeoutMillis)
+    {
+        this.transport = transport;
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+        setMaxConcurrent(maxConcurrent);
+    }
+
+    public void setMaxConcurrent(int maxConcurrent)
+    {
+        synchronized(this)
+        {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+        }
+        startAvailable();
+    }
+
+    public synchronized int getMaxConcurrent()
+    {
+        return maxConcurrent;
+    }
+
+    public GroupRun apply(List<String> lampIds, LampState state, Listener listener)
+    {
+        GroupRun run = new GroupRun(lampIds, state, listener, System.nanoTime());
+        synchronized(this)
+        {
+            runs++;
+            for(int i = 0; i < run.size(); i++)
+            {
+                waiting.add(new Task(run, i));
+            }
+        }
+        if(run.size() == 0)
+        {
+            run.durationNanos = 0;
+            if(listener != null)
+            {
+                listener.onGroupComplete(run);
+            }
+            return run;
+        }
+        startAvailable();
+        return run;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    public synchronized int getWaiting()
+    {
+        return waiting.size();
+    }
+
+    // Latency of every lamp of every run so far.
+    public LatencyHistogram getLampLatency()
+    {
+        return lampLatency;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "groups=%d lamps=%d failed=%d in flight=%d/%d waiting=%d latency %s",
+                runs, lamps, failed, inFlight, maxConcurrent, waiting.size(), lampLatency);
+    }
+
+    private void startAvailable()
+    {
+        while(true)
+        {
+            Task task;
+            synchronized(this)
+            {
+                if(inFlight >= maxConcurrent || waiting.isEmpty())
+                {
+                    return;
+                }
+                task = waiting.removeFirst();
+                inFlight++;
+            }
+            task.start();
+        }
+    }
+
+    private void taskFinished(Task task, boolean success, boolean timeout)
+    {
+        long now = System.nanoTime();
+        boolean runDone = task.run.record(task.index, success, timeout, now);
+        synchronized(this)
+        {
+            inFlight--;
+            lamps++;
+            if(!success)
+            {
+                failed++;
+            }
+        }
+        lampLatency.record(now - task.run.startedAt);
+        if(runDone && task.run.listener != null)
+        {
+            task.run.listener.onGroupComplete(task.run);
+        }
+        startAvailable();
+    }
+
+    class Task implements Completion, Runnable
+    {
+        final GroupRun run;
+        final int index;
+        private boolean finished = false;
+        private ScheduledFuture<?> timeout = null;
+
+        Task(GroupRun run, int index)
+        {
+            this.run = run;
+            this.index = index;
+        }
+
+        void start()
+        {
+            synchronized(this)
+            {
+                timeout = timer.schedule(this, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            try
+            {
+                transport.apply(run.getLamp(index), run.state, this);
+            }
+            catch(RuntimeException e)
+            {
+                finish(false, false);
+            }
+        }
+
+        public void complete(boolean success)
+        {
+            finish(success, false);
+        }
+
+        // Timeout
+        public void run()
+        {
+            finish(false, true);
+        }
+
+        private void finish(boolean success, boolean timedOut)
+        {
+            synchronized(this)
+            {
+                if(finished)
+                {
+                    return;
+                }
+                finished = true;
+                if(timeout != null && !timedOut)
+                {
+                    timeout.cancel(false);
+                }
+            }
+            taskFinished(this, success, timedOut);
+        }
+    }
+}
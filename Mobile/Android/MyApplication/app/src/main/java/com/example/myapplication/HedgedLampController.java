@@ -0,0 +1,123 @@
+package com.example.myapplication;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Sends each state over BLE and MQTT at once and takes whichever the lamp
+// confirms first: the BLE write response, or the lamp's changed message
+// carrying our sequence number. Costs a second copy of every command, in
+// return for cutting the tail when one transport is congested. BLE only
+// takes part on lamps with the packed state characteristic.
+public class HedgedLampController implements LampController, MosquittoDriver.ConfirmationListener
+{
+    static final int BLE = 0;
+    static final int MQTT = 1;
+
+    private static final long LEG_TIMEOUT_MILLIS = 2000;
+    // The top byte of the lamp's 32 bit sequence number names the sender,
+    // since the two legs reach it under different client names; the lamp
+    // keeps the newest count it applied from each.
+    static final int SENDER_SHIFT = 24;
+
+    private final HedgedWrites writes;
+
+    public HedgedLampController(final BLEDriver ble, final MosquittoDriver mqtt, ScheduledExecutorService timer)
+    {
+        writes = new HedgedWrites(timer, LEG_TIMEOUT_MILLIS, (long) new Random().nextInt(256) << SENDER_SHIFT,
+                new HedgedWrites.Leg()
+                {
+                    public String getName()
+                    {
+                        return "BLE";
+                    }
+
+                    public boolean isAvailable()
+                    {
+                        return ble.isConnected() && ble.isUsingPackedState();
+                    }
+
+                    public boolean send(LampLevels levels, final long seq)
+                    {
+                        return ble.writeSequencedState(levels.isOn, LampLevels.toByte(levels.h),
+                                LampLevels.toByte(levels.s), LampLevels.toByte(levels.v), seq,
+                                new GroupController.Completion()
+                                {
+                                    public void complete(boolean success)
+                                    {
+                                        if(success)
+                                        {
+                                            writes.confirmed(BLE, seq);
+                                        }
+                                        else
+                                        {
+                                            writes.failed(BLE, seq);
+                                        }
+                                    }
+                                });
+                    }
+                },
+                new HedgedWrites.Leg()
+                {
+                    public String getName()
+                    {
+                        return "MQTT";
+                    }
+
+                    public boolean isAvailable()
+                    {
+                        return mqtt.isReady();
+                    }
+
+                    public boolean send(LampLevels levels, long seq)
+                    {
+                        return mqtt.publishSequenced(levels.toLampState(), seq);
+                    }
+                });
+        mqtt.setConfirmationListener(this);
+    }
+
+    public void onLampConfirmed(long seq)
+    {
+        writes.confirmed(MQTT, seq);
+    }
+
+    public String getName()
+    {
+        return "hedged";
+    }
+
+    public boolean isAvailable()
+    {
+        return true;
+    }
+
+    public void apply(LampLevels levels)
+    {
+        writes.apply(levels);
+    }
+
+    // Each leg already sends only the newest state once its previous one is
+    // confirmed, which is all a drag needs.
+    public void beginStreaming()
+    {
+    }
+
+    public void endStreaming()
+    {
+    }
+
+    public LatencyHistogram getRoundTrip()
+    {
+        return writes.getHedgedLatency();
+    }
+
+    public HedgedWrites getWrites()
+    {
+        return writes;
+    }
+
+    public String describe()
+    {
+        return writes.describe();
+    }
+}
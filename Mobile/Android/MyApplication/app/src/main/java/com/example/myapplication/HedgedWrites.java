@@ -0,0 +1,305 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Sends every command over each available leg (transport) and counts it
+// done as soon as the first leg confirms it; the lamp drops the second copy
+// by its sequence number. Each leg carries one command at a time and newer
+// commands wait latest-wins behind it, so a congested leg never builds a
+// queue. Confirmations are cumulative: a leg confirming seq n also settles
+// the older commands n superseded.
+public class HedgedWrites
+{
+    public interface Leg
+    {
+        String getName();
+
+        boolean isAvailable();
+
+        // Starts sending; returns false if it could not. The owner reports
+        // the outcome through confirmed() or failed().
+        boolean send(LampLevels levels, long seq);
+    }
+
+    // Commands remembered for latency accounting, indexed by seq.
+    private static final int TRACKED = 64;
+
+    private final Leg[] legs;
+    private final ScheduledExecutorService timer;
+    private final long timeoutMillis;
+
+    private final long[] trackedSeq = new long[TRACKED];
+    private final long[] startedAt = new long[TRACKED];
+    private final boolean[] settled = new boolean[TRACKED];
+    private long nextSeq;
+
+    private final long[] confirmedUpTo;
+    private final long[] sending;
+    private final LampLevels[] waiting;
+    private final long[] waitingSeq;
+    private final ScheduledFuture<?>[] timeouts;
+
+    private final LatencyHistogram hedged = new LatencyHistogram();
+    private final LatencyHistogram[] legLatency;
+    private final long[] wins;
+    private final long[] failures;
+    private final long[] timedOut;
+    private long commands = 0;
+    private long unsent = 0;
+
+    // Sequence numbers start at firstSeq; HedgedLampController puts a
+    // random sender in its top bits so two phones hedging to the same lamp
+    // don't collide.
+    public HedgedWrites(ScheduledExecutorService timer, long timeoutMillis, long firstSeq, Leg... legs)
+    {
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+        this.legs = legs;
+        nextSeq = firstSeq;
+        for(int i = 0; i < TRACKED; i++)
+        {
+            trackedSeq[i] = -1;
+        }
+        confirmedUpTo = new long[legs.length];
+        sending = new long[legs.length];
+        waiting = new LampLevels[legs.length];
+        waitingSeq = new long[legs.length];
+        timeouts = new ScheduledFuture<?>[legs.length];
+        legLatency = new LatencyHistogram[legs.length];
+        wins = new long[legs.length];
+        failures = new long[legs.length];
+        timedOut = new long[legs.length];
+        for(int i = 0; i < legs.length; i++)
+        {
+            confirmedUpTo[i] = firstSeq - 1;
+            sending[i] = -1;
+            legLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    // Returns the command's sequence number.
+    public long apply(LampLevels levels)
+    {
+        int available = 0;
+        for(int i = 0; i < legs.length; i++)
+        {
+            if(legs[i].isAvailable())
+            {
+                available |= 1 << i;
+            }
+        }
+        long seq;
+        int start = 0;
+        synchronized(this)
+        {
+            seq = nextSeq++;
+            int slot = slot(seq);
+            trackedSeq[slot] = seq;
+            startedAt[slot] = System.nanoTime();
+            settled[slot] = available == 0;
+            commands++;
+            if(available == 0)
+            {
+                unsent++;
+            }
+            for(int i = 0; i < legs.length; i++)
+            {
+                if((available & 1 << i) == 0)
+                {
+                    continue;
+                }
+                if(sending[i] < 0)
+                {
+                    sending[i] = seq;
+                    start |= 1 << i;
+                }
+                else
+                {
+                    waiting[i] = levels;
+                    waitingSeq[i] = seq;
+                }
+            }
+        }
+        for(int i = 0; i < legs.length; i++)
+        {
+            if((start & 1 << i) != 0)
+            {
+                start(i, levels, seq);
+            }
+        }
+        return seq;
+    }
+
+    // The lamp has the state of command seq, as reported through leg.
+    public void confirmed(int leg, long seq)
+    {
+        long now = System.nanoTime();
+        LampLevels next;
+        long nextLegSeq;
+        synchronized(this)
+        {
+            if(seq >= nextSeq)
+            {
+                // Not one of ours.
+                return;
+            }
+            for(long s = Math.max(confirmedUpTo[leg] + 1, nextSeq - TRACKED); s <= seq; s++)
+            {
+                int slot = slot(s);
+                if(trackedSeq[slot] != s)
+                {
+                    continue;
+                }
+                long elapsed = now - startedAt[slot];
+                legLatency[leg].record(elapsed);
+                if(!settled[slot])
+                {
+                    settled[slot] = true;
+                    hedged.record(elapsed);
+                    wins[leg]++;
+                }
+            }
+            confirmedUpTo[leg] = Math.max(confirmedUpTo[leg], seq);
+            if(sending[leg] < 0 || sending[leg] > seq)
+            {
+                return;
+            }
+            next = release(leg);
+            nextLegSeq = sending[leg];
+        }
+        if(next != null)
+        {
+            start(leg, next, nextLegSeq);
+        }
+    }
+
+    public void failed(int leg, long seq)
+    {
+        finishedWithout(leg, seq, false);
+    }
+
+    private void finishedWithout(int leg, long seq, boolean timeout)
+    {
+        LampLevels next;
+        long nextLegSeq;
+        synchronized(this)
+        {
+            if(sending[leg] != seq)
+            {
+                return;
+            }
+            if(timeout)
+            {
+                timedOut[leg]++;
+            }
+            else
+            {
+                failures[leg]++;
+            }
+            next = release(leg);
+            nextLegSeq = sending[leg];
+        }
+        if(next != null)
+        {
+            start(leg, next, nextLegSeq);
+        }
+    }
+
+    // Frees the leg and moves the waiting command, if any, into it. A
+    // command another leg already delivered isn't worth loading a slow leg
+    // with.
+    private LampLevels release(int leg)
+    {
+        sending[leg] = -1;
+        if(timeouts[leg] != null)
+        {
+            timeouts[leg].cancel(false);
+            timeouts[leg] = null;
+        }
+        LampLevels next = waiting[leg];
+        waiting[leg] = null;
+        if(next == null || isSettled(waitingSeq[leg]))
+        {
+            return null;
+        }
+        sending[leg] = waitingSeq[leg];
+        return next;
+    }
+
+    private boolean isSettled(long seq)
+    {
+        int slot = slot(seq);
+        return trackedSeq[slot] != seq || settled[slot];
+    }
+
+    private void start(final int leg, LampLevels levels, final long seq)
+    {
+        synchronized(this)
+        {
+            timeouts[leg] = timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    finishedWithout(leg, seq, true);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if(!legs[leg].send(levels, seq))
+        {
+            failed(leg, seq);
+        }
+    }
+
+    private static int slot(long seq)
+    {
+        return (int) (seq % TRACKED);
+    }
+
+    // First confirmation of each command, whichever leg it came from.
+    public LatencyHistogram getHedgedLatency()
+    {
+        return hedged;
+    }
+
+    public LatencyHistogram getLegLatency(int leg)
+    {
+        return legLatency[leg];
+    }
+
+    public synchronized long getWinCount(int leg)
+    {
+        return wins[leg];
+    }
+
+    public synchronized long getFailureCount(int leg)
+    {
+        return failures[leg];
+    }
+
+    public synchronized long getTimedOutCount(int leg)
+    {
+        return timedOut[leg];
+    }
+
+    public synchronized long getCommandCount()
+    {
+        return commands;
+    }
+
+    public synchronized String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "hedged n=%d p50=%dus p99=%dus (%d commands, %d unsent)",
+                hedged.getCount(), hedged.getPercentileMicros(50), hedged.getPercentileMicros(99), commands, unsent));
+        for(int i = 0; i < legs.length; i++)
+        {
+            sb.append(String.format(Locale.US, "\n%s n=%d p50=%dus p99=%dus won=%d failed=%d timed out=%d",
+                    legs[i].getName(), legLatency[i].getCount(), legLatency[i].getPercentileMicros(50),
+                    legLatency[i].getPercentileMicros(99), wins[i], failures[i], timedOut[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// Hands lamp states that arrive on the network thread to the UI thread. A
+// burst of updates between two frames collapses into the newest one, and
+// at most one delivery is scheduled at a time.
+public class InboundStateCoalescer
+{
+    private LampState pending = null;
+    private boolean deliveryScheduled = false;
+
+    private long received = 0;
+    private long echoes = 0;
+    private long malformed = 0;
+    private long coalesced = 0;
+    private long delivered = 0;
+
+    // Returns true if the caller needs to schedule a take() on the UI thread.
+    public synchronized boolean offer(LampState state)
+    {
+        received++;
+        if(pending != null)
+        {
+            coalesced++;
+        }
+        pending = state;
+        if(deliveryScheduled)
+        {
+            return false;
+        }
+        deliveryScheduled = true;
+        return true;
+    }
+
+    // A message we published ourselves, bounced back by the broker.
+    public synchronized void noteEcho()
+    {
+        received++;
+        echoes++;
+    }
+
+    // A message that did not parse or lacked part of the state.
+    public synchronized void noteMalformed()
+    {
+        received++;
+        malformed++;
+    }
+
+    // Returns the newest state since the last take(), or null.
+    public synchronized LampState take()
+    {
+        deliveryScheduled = false;
+        LampState state = pending;
+        pending = null;
+        if(state != null)
+        {
+            delivered++;
+        }
+        return state;
+    }
+
+    public synchronized boolean isDeliveryScheduled()
+    {
+        return deliveryScheduled;
+    }
+
+    public synchronized void reset()
+    {
+        pending = null;
+    }
+
+    public synchronized long getReceivedCount()
+    {
+        return received;
+    }
+
+    public synchronized long getEchoCount()
+    {
+        return echoes;
+    }
+
+    public synchronized long getMalformedCount()
+    {
+        return malformed;
+    }
+
+    public synchronized long getCoalescedCount()
+    {
+        return coalesced;
+    }
+
+    public synchronized long getDeliveredCount()
+    {
+        return delivered;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "received=%d echo=%d malformed=%d coalesced=%d delivered=%d",
+                received, echoes, malformed, coalesced, delivered);
+    }
+}
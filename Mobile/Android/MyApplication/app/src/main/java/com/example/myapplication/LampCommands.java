@@ -0,0 +1,102 @@
+package com.example.myapplication;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// Lamp control calls from the UI. Each call is queued on the driver thread
+// and returns straight away with a Future for the caller to wait on or
+// ignore. Inline mode runs the call on the caller's thread instead, which
+// is how the controls used to work and is kept to compare UI thread cost.
+// Until a controller is set, while the transports are still starting,
+// commands are dropped.
+public class LampCommands
+{
+    private final DriverExecutor executor;
+    private volatile LampController controller;
+    private volatile boolean inline = false;
+
+    public LampCommands(DriverExecutor executor, LampController controller)
+    {
+        this.executor = executor;
+        this.controller = controller;
+    }
+
+    // Later commands go through this controller instead.
+    public void setController(LampController controller)
+    {
+        this.controller = controller;
+    }
+
+    public LampController getController()
+    {
+        return controller;
+    }
+
+    public void setInline(boolean inline)
+    {
+        this.inline = inline;
+    }
+
+    public boolean isInline()
+    {
+        return inline;
+    }
+
+    public Future<?> apply(final LampLevels levels)
+    {
+        return run(new Runnable()
+        {
+            public void run()
+            {
+                LampController target = controller;
+                if(target != null)
+                {
+                    target.apply(levels);
+                }
+            }
+        });
+    }
+
+    // Stream markers go through the same queue so they stay ordered with
+    // the writes they bracket.
+    public Future<?> beginStreaming()
+    {
+        return run(new Runnable()
+        {
+            public void run()
+            {
+                LampController target = controller;
+                if(target != null)
+                {
+                    target.beginStreaming();
+                }
+            }
+        });
+    }
+
+    public Future<?> endStreaming()
+    {
+        return run(new Runnable()
+        {
+            public void run()
+            {
+                LampController target = controller;
+                if(target != null)
+                {
+                    target.endStreaming();
+                }
+            }
+        });
+    }
+
+    private Future<?> run(Runnable command)
+    {
+        if(inline)
+        {
+            FutureTask<Void> task = new FutureTask<Void>(command, null);
+            task.run();
+            return task;
+        }
+        return executor.submit(command);
+    }
+}
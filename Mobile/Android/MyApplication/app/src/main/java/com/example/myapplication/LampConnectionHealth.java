@@ -0,0 +1,66 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// A snapshot of how one pooled lamp connection is doing.
+public class LampConnectionHealth
+{
+    public static final int CONNECTING = 0;
+    public static final int READY = 1;
+    public static final int DISCONNECTED = 2;
+
+    private static final String[] STATE_NAMES = {"connecting", "ready", "disconnected"};
+    // More failed or timed out GATT operations than one in this many and
+    // the link counts as unhealthy.
+    private static final int MAX_FAILURE_SHARE = 10;
+
+    public final String mac;
+    public final int state;
+    public final boolean current;
+    public final long connects;
+    public final long drops;
+    public final long completed;
+    public final long failed;
+    public final long timedOut;
+    public final long writeP50Micros;
+    public final long writeP99Micros;
+    public final long idleMillis;
+
+    public LampConnectionHealth(String mac, int state, boolean current, long connects, long drops,
+                                long completed, long failed, long timedOut,
+                                long writeP50Micros, long writeP99Micros, long idleMillis)
+    {
+        this.mac = mac;
+        this.state = state;
+        this.current = current;
+        this.connects = connects;
+        this.drops = drops;
+        this.completed = completed;
+        this.failed = failed;
+        this.timedOut = timedOut;
+        this.writeP50Micros = writeP50Micros;
+        this.writeP99Micros = writeP99Micros;
+        this.idleMillis = idleMillis;
+    }
+
+    public static LampConnectionHealth of(String mac, int state, boolean current, long connects, long drops,
+                                          GattOperationQueue operations, long idleMillis)
+    {
+        LatencyHistogram writes = operations.getLatency(GattOperationQueue.WRITE);
+        return new LampConnectionHealth(mac, state, current, connects, drops, operations.getCompletedCount(),
+                operations.getFailedCount(), operations.getTimedOutCount(), writes.getPercentileMicros(50),
+                writes.getPercentileMicros(99), idleMillis);
+    }
+
+    public boolean isHealthy()
+    {
+        return state == READY && (failed + timedOut) * MAX_FAILURE_SHARE <= completed;
+    }
+
+    public String describe()
+    {
+        return String.format(Locale.US, "%s%s %s%s connects=%d drops=%d ops=%d failed=%d timed out=%d write p50=%dus p99=%dus idle=%ds",
+                mac, current ? " (current)" : "", STATE_NAMES[state], isHealthy() ? "" : " UNHEALTHY", connects, drops,
+                completed, failed, timedOut, writeP50Micros, writeP99Micros, idleMillis / 1000);
+    }
+}
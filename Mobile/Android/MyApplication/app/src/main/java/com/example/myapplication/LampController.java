@@ -0,0 +1,25 @@
+package com.example.myapplication;
+
+// One way of controlling the current lamp. The control screen only talks to
+// this interface; LampControllerSelector picks between the BLE and MQTT
+// implementations. Calls come from the driver thread.
+public interface LampController
+{
+    String getName();
+
+    // True when the transport can reach the current lamp right now.
+    boolean isAvailable();
+
+    // Sends the whole state; the transport decides what actually has to go
+    // over the air.
+    void apply(LampLevels levels);
+
+    // Bracket a slider drag, during which intermediate states may be
+    // dropped or sent unacknowledged.
+    void beginStreaming();
+
+    void endStreaming();
+
+    // Time from a command being sent to the other end acknowledging it.
+    LatencyHistogram getRoundTrip();
+}
@@ -0,0 +1,199 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// Sends through whichever available controller has the lower smoothed
+// round trip. A controller with fewer than MIN_SAMPLES round trips is used
+// first so it gets measured, switching needs the other controller to be
+// clearly faster, and a slider drag stays on the controller it started on.
+// Every PROBE_EVERY commands outside a drag the same command also goes
+// through an available controller we are not using, so its round trip
+// stays current; a duplicate of the command just sent leaves the lamp
+// where it is. Controllers are listed in order of preference for ties.
+public class LampControllerSelector implements LampController
+{
+    static final int MIN_SAMPLES = 8;
+    static final int PROBE_EVERY = 32;
+    // The other controller's round trip must be below this share of the
+    // current one's before we switch.
+    static final double SWITCH_RATIO = 0.8;
+
+    private final LampController[] controllers;
+    private final LatencyHistogram none = new LatencyHistogram();
+    private LampController current = null;
+    private boolean streaming = false;
+    private long switches = 0;
+    private long sinceProbe = 0;
+    private long probes = 0;
+
+    public LampControllerSelector(LampController... controllers)
+    {
+        this.controllers = controllers;
+    }
+
+    // The controller the next command goes through, or null if none can
+    // reach the lamp.
+    public synchronized LampController select()
+    {
+        if(current != null && streaming && current.isAvailable())
+        {
+            return current;
+        }
+        LampController chosen = null;
+        long chosenMicros = Long.MAX_VALUE;
+        boolean probing = false;
+        for(LampController controller : controllers)
+        {
+            if(!controller.isAvailable())
+            {
+                continue;
+            }
+            LatencyHistogram roundTrip = controller.getRoundTrip();
+            if(roundTrip.getCount() < MIN_SAMPLES)
+            {
+                chosen = controller;
+                probing = true;
+                break;
+            }
+            long micros = roundTrip.getSmoothedMicros();
+            if(micros < chosenMicros)
+            {
+                chosen = controller;
+                chosenMicros = micros;
+            }
+        }
+        if(!probing && chosen != null && current != null && chosen != current && current.isAvailable()
+                && chosenMicros >= SWITCH_RATIO * current.getRoundTrip().getSmoothedMicros())
+        {
+            chosen = current;
+        }
+        if(chosen != current && current != null && chosen != null)
+        {
+            switches++;
+        }
+        current = chosen;
+        return chosen;
+    }
+
+    // The controller to send a probe through alongside chosen, or null.
+    private LampController probeFor(LampController chosen)
+    {
+        if(chosen == null || streaming || ++sinceProbe < PROBE_EVERY)
+        {
+            return null;
+        }
+        for(LampController controller : controllers)
+        {
+            if(controller != chosen && controller.isAvailable())
+            {
+                sinceProbe = 0;
+                probes++;
+                return controller;
+            }
+        }
+        return null;
+    }
+
+    public synchronized LampController getCurrent()
+    {
+        return current;
+    }
+
+    public synchronized long getSwitchCount()
+    {
+        return switches;
+    }
+
+    public synchronized long getProbeCount()
+    {
+        return probes;
+    }
+
+    public String getName()
+    {
+        LampController controller = getCurrent();
+        return controller == null ? "none" : controller.getName();
+    }
+
+    public boolean isAvailable()
+    {
+        for(LampController controller : controllers)
+        {
+            if(controller.isAvailable())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void apply(LampLevels levels)
+    {
+        LampController controller;
+        LampController probe;
+        synchronized(this)
+        {
+            controller = select();
+            probe = probeFor(controller);
+        }
+        if(controller != null)
+        {
+            controller.apply(levels);
+        }
+        if(probe != null)
+        {
+            probe.apply(levels);
+        }
+    }
+
+    public void beginStreaming()
+    {
+        LampController controller;
+        synchronized(this)
+        {
+            streaming = false;
+            controller = select();
+            streaming = true;
+        }
+        if(controller != null)
+        {
+            controller.beginStreaming();
+        }
+    }
+
+    public void endStreaming()
+    {
+        LampController controller;
+        synchronized(this)
+        {
+            streaming = false;
+            controller = current;
+        }
+        if(controller != null)
+        {
+            controller.endStreaming();
+        }
+    }
+
+    public LatencyHistogram getRoundTrip()
+    {
+        LampController controller = getCurrent();
+        return controller == null ? none : controller.getRoundTrip();
+    }
+
+    public synchronized String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("using ").append(current == null ? "none" : current.getName())
+                .append(" (").append(switches).append(" switches, ").append(probes).append(" probes)");
+        for(LampController controller : controllers)
+        {
+            LatencyHistogram roundTrip = controller.getRoundTrip();
+            sb.append(String.format(Locale.US, "\n%s%s rtt n=%d srtt=%dus p50=%dus p99=%dus", controller.getName(),
+                    controller.isAvailable() ? "" : " (unavailable)", roundTrip.getCount(),
+                    roundTrip.getSmoothedMicros(), roundTrip.getPercentileMicros(50),
+                    roundTrip.getPercentileMicros(99)));
+        }
+        return sb.toString();
+    }
+}
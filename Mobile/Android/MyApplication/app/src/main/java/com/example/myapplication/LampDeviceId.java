@@ -0,0 +1,38 @@
+package com.example.myapplication;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+// Lamps are known on MQTT by their device id: the eth0 MAC in lower case
+// hex without separators (lamp_common.get_device_id). That is not the
+// Bluetooth address, so over BLE the id comes from the advertised name,
+// "LAMPI <id>", or from the Device Information serial number, which the
+// lamp fills with the same id.
+public class LampDeviceId
+{
+    public static final String NAME_PREFIX = "LAMPI ";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // The id in an advertised name, or null if it is not a lamp's name.
+    public static String fromName(String name)
+    {
+        if(name == null || !name.startsWith(NAME_PREFIX))
+        {
+            return null;
+        }
+        return normalize(name.substring(NAME_PREFIX.length()));
+    }
+
+    // The id in a serial number characteristic value, or null.
+    public static String fromSerial(byte[] value)
+    {
+        return value == null ? null : normalize(new String(value, UTF8));
+    }
+
+    private static String normalize(String id)
+    {
+        id = id.trim().toLowerCase(Locale.US);
+        return id.isEmpty() ? null : id;
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.myapplication;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Lamps seen while scanning, keyed by MAC address. Scan callbacks only do a
+// hash lookup and an RSSI update; the listener hears about added, renamed or
+// expired lamps in batches, at most once per dispatch interval.
+public class LampDeviceRegistry<D>
+{
+    // What the registry knew about a lamp at one moment. The registry keeps
+    // its own Sighting per lamp and hands out copies, so a listener on
+    // another thread never sees an entry change under it.
+    public static class Entry<D>
+    {
+        public final String mac;
+        public final D device;
+        public final String name;
+        public final long lastSeen;
+        public final double rssi;
+        public final int sightings;
+
+        Entry(Sighting<D> sighting)
+        {
+            this.mac = sighting.mac;
+            this.device = sighting.device;
+            this.name = sighting.name;
+            this.lastSeen = sighting.lastSeen;
+            this.rssi = sighting.rssi;
+            this.sightings = sighting.sightings;
+        }
+
+        public String label()
+        {
+            return name + " (" + mac + ")";
+        }
+    }
+
+    private static class Sighting<D>
+    {
+        final String mac;
+        D device;
+        String name;
+        long lastSeen;
+        double rssi;
+        int sightings;
+
+        Sighting(String mac)
+        {
+            this.mac = mac;
+        }
+    }
+
+    public interface Listener<D>
+    {
+        void onDevicesChanged(List<Entry<D>> devices);
+    }
+
+    private static final double RSSI_ALPHA = 0.25;
+
+    private final long ttlMillis;
+    private final long dispatchIntervalMillis;
+    private final LinkedHashMap<String, Sighting<D>> byMac = new LinkedHashMap<String, Sighting<D>>();
+
+    private Listener<D> listener;
+    private boolean dirty = false;
+    private boolean flushPending = false;
+    private long lastDispatch = Long.MIN_VALUE / 2;
+
+    private long updates = 0;
+    private long dispatches = 0;
+
+    public LampDeviceRegistry(long ttlMillis, long dispatchIntervalMillis)
+    {
+        this.ttlMillis = ttlMillis;
+        this.dispatchIntervalMillis = dispatchIntervalMillis;
+    }
+
+    public synchronized void setListener(Listener<D> listener)
+    {
+        this.listener = listener;
+    }
+
+    // Records a sighting. Returns true if the caller needs to schedule a
+    // flush() (after getFlushDelay()) to tell the listener about it.
+    public synchronized boolean update(String mac, D device, String name, int rssi, long now)
+    {
+        updates++;
+        Sighting<D> entry = byMac.get(mac);
+        if(entry == null)
+        {
+            entry = new Sighting<D>(mac);
+            entry.rssi = rssi;
+            byMac.put(mac, entry);
+            if(name != null)
+            {
+                dirty = true;
+            }
+        }
+        else
+        {
+            entry.rssi += RSSI_ALPHA * (rssi - entry.rssi);
+            if(name != null && !name.equals(entry.name))
+            {
+                dirty = true;
+            }
+        }
+        entry.device = device;
+        if(name != null)
+        {
+            entry.name = name;
+        }
+        entry.lastSeen = now;
+        entry.sightings++;
+
+        if(dirty && !flushPending)
+        {
+            flushPending = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized long getFlushDelay(long now)
+    {
+        return Math.max(0, lastDispatch + dispatchIntervalMillis - now);
+    }
+
+    // Drops expired lamps and, if anything changed, hands the listener the
+    // named lamps in discovery order.
+    public void flush(long now)
+    {
+        List<Entry<D>> snapshot;
+        Listener<D> target;
+        synchronized(this)
+        {
+            flushPending = false;
+            evictExpired(now);
+            if(!dirty || listener == null)
+            {
+                return;
+            }
+            dirty = false;
+            lastDispatch = now;
+            dispatches++;
+            snapshot = namedEntries();
+            target = listener;
+        }
+        target.onDevicesChanged(snapshot);
+    }
+
+    public synchronized D get(String mac)
+    {
+        Sighting<D> entry = byMac.get(mac);
+        return entry == null ? null : entry.device;
+    }
+
+    public synchronized Entry<D> getEntry(String mac)
+    {
+        Sighting<D> entry = byMac.get(mac);
+        return entry == null ? null : new Entry<D>(entry);
+    }
+
+    public synchronized List<String> getMacs()
+    {
+        return new ArrayList<String>(byMac.keySet());
+    }
+
+    // How often a running scan should flush(), so lamps that go quiet are
+    // dropped even while nothing new is seen.
+    public long getExpiryIntervalMillis()
+    {
+        return ttlMillis / 2;
+    }
+
+    public synchronized int evictExpired(long now)
+    {
+        int evicted = 0;
+        Iterator<Sighting<D>> it = byMac.values().iterator();
+        while(it.hasNext())
+        {
+            Sighting<D> entry = it.next();
+            if(now - entry.lastSeen > ttlMillis)
+            {
+                it.remove();
+                evicted++;
+                if(entry.name != null)
+                {
+                    dirty = true;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized void clear()
+    {
+        if(!byMac.isEmpty())
+        {
+            dirty = true;
+        }
+        byMac.clear();
+    }
+
+    public synchronized int size()
+    {
+        return byMac.size();
+    }
+
+    public synchronized long getUpdateCount()
+    {
+        return updates;
+    }
+
+    public synchronized long getDispatchCount()
+    {
+        return dispatches;
+    }
+
+    private List<Entry<D>> namedEntries()
+    {
+        List<Entry<D>> named = new ArrayList<Entry<D>>(byMac.size());
+        for(Sighting<D> entry : byMac.values())
+        {
+            if(entry.name != null)
+            {
+                named.add(new Entry<D>(entry));
+            }
+        }
+        return named;
+    }
+}
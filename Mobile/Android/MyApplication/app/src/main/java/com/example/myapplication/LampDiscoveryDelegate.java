@@ -1,6 +1,8 @@
 package com.example.myapplication;
 
+import java.util.List;
+
 public interface LampDiscoveryDelegate
 {
-    public void discoveredLamp(String deviceName);
+    public void discoveredLamps(List<String> deviceNames);
 }
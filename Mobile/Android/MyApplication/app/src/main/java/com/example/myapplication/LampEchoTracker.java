@@ -0,0 +1,165 @@
+package com.example.myapplication;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+// States published to lamps that the lamps have not reported back yet. The
+// broker's ack only says the broker has a message; a lamp publishes its
+// changed topic once it has applied one, so that is when a publish counts
+// as done. Lamps round what they report, hence the tolerance.
+//
+// Reports are matched against the oldest waiting state they fit; anything
+// waiting on the same lamp before that was overtaken and fails.
+public class LampEchoTracker
+{
+    // The lamp keeps two decimal places.
+    public static final double LAMP_TOLERANCE = 0.0051;
+    private static final int MAX_WAITING_PER_LAMP = 16;
+
+    private static class Waiting
+    {
+        final LampState state;
+        final GroupController.Completion completion;
+
+        Waiting(LampState state, GroupController.Completion completion)
+        {
+            this.state = state;
+            this.completion = completion;
+        }
+    }
+
+    private final double tolerance;
+    private final HashMap<String, LinkedList<Waiting>> byDevice = new HashMap<String, LinkedList<Waiting>>();
+    private long applied = 0;
+    private long overtaken = 0;
+
+    public LampEchoTracker(double tolerance)
+    {
+        this.tolerance = tolerance;
+    }
+
+    // completion hears true once deviceId reports state. Call it before
+    // publishing, since the report can beat the broker's ack.
+    public void expect(String deviceId, LampState state, GroupController.Completion completion)
+    {
+        Waiting dropped = null;
+        synchronized(this)
+        {
+            LinkedList<Waiting> waiting = byDevice.get(deviceId);
+            if(waiting == null)
+            {
+                waiting = new LinkedList<Waiting>();
+                byDevice.put(deviceId, waiting);
+            }
+            waiting.add(new Waiting(state, completion));
+            if(waiting.size() > MAX_WAITING_PER_LAMP)
+            {
+                dropped = waiting.removeFirst();
+                overtaken++;
+            }
+        }
+        if(dropped != null)
+        {
+            dropped.completion.complete(false);
+        }
+    }
+
+    // The publish could not be sent; completion hears false.
+    public void cancel(String deviceId, GroupController.Completion completion)
+    {
+        boolean removed = false;
+        synchronized(this)
+        {
+            LinkedList<Waiting> waiting = byDevice.get(deviceId);
+            if(waiting != null)
+            {
+                Iterator<Waiting> it = waiting.iterator();
+                while(it.hasNext())
+                {
+                    if(it.next().completion == completion)
+                    {
+                        it.remove();
+                        removed = true;
+                        break;
+                    }
+                }
+                if(waiting.isEmpty())
+                {
+                    byDevice.remove(deviceId);
+                }
+            }
+        }
+        if(removed)
+        {
+            completion.complete(false);
+        }
+    }
+
+    // A lamp reported its state. Returns true if it was waited for.
+    public boolean onReported(String deviceId, LampState reported)
+    {
+        List<Waiting> finished;
+        synchronized(this)
+        {
+            LinkedList<Waiting> waiting = byDevice.get(deviceId);
+            if(waiting == null)
+            {
+                return false;
+            }
+            int match = -1;
+            int i = 0;
+            for(Waiting w : waiting)
+            {
+                if(w.state.isCloseTo(reported, tolerance))
+                {
+                    match = i;
+                    break;
+                }
+                i++;
+            }
+            if(match < 0)
+            {
+                return false;
+            }
+            finished = new ArrayList<Waiting>(match + 1);
+            for(i = 0; i <= match; i++)
+            {
+                finished.add(waiting.removeFirst());
+            }
+            if(waiting.isEmpty())
+            {
+                byDevice.remove(deviceId);
+            }
+            applied++;
+            overtaken += match;
+        }
+        for(int i = 0; i < finished.size(); i++)
+        {
+            finished.get(i).completion.complete(i == finished.size() - 1);
+        }
+        return true;
+    }
+
+    public synchronized int getWaitingCount()
+    {
+        int count = 0;
+        for(LinkedList<Waiting> waiting : byDevice.values())
+        {
+            count += waiting.size();
+        }
+        return count;
+    }
+
+    public synchronized long getAppliedCount()
+    {
+        return applied;
+    }
+
+    public synchronized long getOvertakenCount()
+    {
+        return overtaken;
+    }
+}
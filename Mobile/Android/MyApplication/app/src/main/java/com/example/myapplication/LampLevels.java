@@ -0,0 +1,101 @@
+package com.example.myapplication;
+
+// Transport independent lamp state: hue, saturation and value as 16 bit
+// fixed point, 0 meaning 0.0 and ONE meaning 1.0. Slider progress, BLE
+// bytes and the doubles published over MQTT all convert through here, so a
+// setting means the same thing whichever transport carries it.
+public class LampLevels
+{
+    public static final int ONE = 0xFFFF;
+
+    public final boolean isOn;
+    public final int h;
+    public final int s;
+    public final int v;
+
+    public LampLevels(boolean isOn, int h, int s, int v)
+    {
+        this.isOn = isOn;
+        this.h = clamp(h);
+        this.s = clamp(s);
+        this.v = clamp(v);
+    }
+
+    // Slider positions in 0..max.
+    public static LampLevels fromProgress(boolean isOn, int h, int s, int v, int max)
+    {
+        return new LampLevels(isOn, fromProgress(h, max), fromProgress(s, max), fromProgress(v, max));
+    }
+
+    public static LampLevels fromLampState(LampState state)
+    {
+        return new LampLevels(state.isOn, fromUnit(state.h), fromUnit(state.s), fromUnit(state.brightness));
+    }
+
+    public LampState toLampState()
+    {
+        return new LampState(isOn, toUnit(h), toUnit(s), toUnit(v));
+    }
+
+    public static int fromProgress(int progress, int max)
+    {
+        return clamp((int) (((long) progress * ONE + max / 2) / max));
+    }
+
+    public static int toProgress(int level, int max)
+    {
+        return (int) (((long) level * max + ONE / 2) / ONE);
+    }
+
+    public static int fromByte(byte value)
+    {
+        return (value & 0xFF) * 257;
+    }
+
+    public static byte toByte(int level)
+    {
+        return (byte) ((level * 255 + ONE / 2) / ONE);
+    }
+
+    public static int fromUnit(double value)
+    {
+        return clamp((int) Math.round(value * ONE));
+    }
+
+    public static double toUnit(int level)
+    {
+        return level / (double) ONE;
+    }
+
+    private static int clamp(int level)
+    {
+        return Math.max(0, Math.min(ONE, level));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o)
+        {
+            return true;
+        }
+        if(!(o instanceof LampLevels))
+        {
+            return false;
+        }
+        LampLevels other = (LampLevels) o;
+        return isOn == other.isOn && h == other.h && s == other.s && v == other.v;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return ((h * 31 + s) * 31 + v) * 31 + (isOn ? 1 : 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "on=" + isOn + " h=" + h + " s=" + s + " v=" + v;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.myapplication;
+
+// Lamp state as published over MQTT: h, s and brightness in 0.0 - 1.0.
+public class LampState
+{
+    public final boolean isOn;
+    public final double h;
+    public final double s;
+    public final double brightness;
+
+    public LampState(boolean isOn, double h, double s, double brightness)
+    {
+        this.isOn = isOn;
+        this.h = h;
+        this.s = s;
+        this.brightness = brightness;
+    }
+
+    // Same power, and every level within tolerance of other's.
+    public boolean isCloseTo(LampState other, double tolerance)
+    {
+        return isOn == other.isOn
+                && Math.abs(h - other.h) <= tolerance
+                && Math.abs(s - other.s) <= tolerance
+                && Math.abs(brightness - other.brightness) <= tolerance;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o)
+        {
+            return true;
+        }
+        if(!(o instanceof LampState))
+        {
+            return false;
+        }
+        LampState other = (LampState) o;
+        return isOn == other.isOn
+                && Double.compare(h, other.h) == 0
+                && Double.compare(s, other.s) == 0
+                && Double.compare(brightness, other.brightness) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        long bits = Double.doubleToLongBits(h);
+        bits = 31 * bits + Double.doubleToLongBits(s);
+        bits = 31 * bits + Double.doubleToLongBits(brightness);
+        return (int) (bits ^ (bits >>> 32)) * 31 + (isOn ? 1 : 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "on=" + isOn + " h=" + h + " s=" + s + " b=" + brightness;
+    }
+}
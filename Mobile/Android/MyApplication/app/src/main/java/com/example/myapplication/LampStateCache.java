@@ -0,0 +1,190 @@
+package com.example.myapplication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Last known state of every lamp we have heard from, keyed by MQTT device
+// id (BLE lamps through LampDeviceId, not their Bluetooth address). Filled from
+// the wildcard changed subscription and from BLE reads, so switching to
+// another lamp can show its state straight away, and saved to a snapshot
+// file so it survives the app being restarted.
+//
+// The snapshot is [magic, count, last device, (id, on, h, s, b)...] with
+// the levels as 16 bit LampLevels, about 20 bytes per lamp.
+public class LampStateCache
+{
+    private static final int SNAPSHOT_MAGIC = 0x4c534331;
+
+    private final HashMap<String, LampState> byDevice = new HashMap<String, LampState>();
+    private String lastDevice = null;
+    private boolean dirty = false;
+
+    private long updates = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long loaded = 0;
+    private long saves = 0;
+
+    // Returns true if the state differs from the cached one.
+    public synchronized boolean put(String deviceId, LampState state)
+    {
+        updates++;
+        LampState previous = byDevice.put(deviceId, state);
+        boolean changed = !state.equals(previous);
+        dirty |= changed;
+        return changed;
+    }
+
+    public synchronized LampState get(String deviceId)
+    {
+        LampState state = byDevice.get(deviceId);
+        if(state == null)
+        {
+            misses++;
+        }
+        else
+        {
+            hits++;
+        }
+        return state;
+    }
+
+    public synchronized List<String> getDeviceIds()
+    {
+        return new ArrayList<String>(byDevice.keySet());
+    }
+
+    public synchronized int size()
+    {
+        return byDevice.size();
+    }
+
+    public synchronized void clear()
+    {
+        byDevice.clear();
+        dirty = true;
+    }
+
+    // The lamp the control screen showed last, painted at the next launch.
+    public synchronized void setLastDevice(String deviceId)
+    {
+        dirty |= !deviceId.equals(lastDevice);
+        lastDevice = deviceId;
+    }
+
+    public synchronized String getLastDevice()
+    {
+        return lastDevice;
+    }
+
+    // Adds the lamps saved in file. States already in the cache are newer
+    // than the snapshot and are kept. A missing file is an empty snapshot.
+    public synchronized int readSnapshot(File file) throws IOException
+    {
+        if(!file.exists())
+        {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int added = 0;
+        try
+        {
+            if(in.readInt() != SNAPSHOT_MAGIC)
+            {
+                throw new IOException("Not a lamp state snapshot: " + file);
+            }
+            int count = in.readUnsignedShort();
+            String last = in.readUTF();
+            for(int i = 0; i < count; i++)
+            {
+                String deviceId = in.readUTF();
+                boolean isOn = in.readBoolean();
+                LampState state = new LampState(isOn, LampLevels.toUnit(in.readUnsignedShort()),
+                        LampLevels.toUnit(in.readUnsignedShort()), LampLevels.toUnit(in.readUnsignedShort()));
+                if(!byDevice.containsKey(deviceId))
+                {
+                    byDevice.put(deviceId, state);
+                    added++;
+                }
+            }
+            if(lastDevice == null && last.length() > 0)
+            {
+                lastDevice = last;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        loaded += added;
+        return added;
+    }
+
+    // Rewrites file if anything changed since the last save. The new
+    // snapshot replaces the old one only once it is completely written.
+    public synchronized boolean writeSnapshot(File file) throws IOException
+    {
+        if(!dirty)
+        {
+            return false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try
+        {
+            int count = Math.min(byDevice.size(), 0xFFFF);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeShort(count);
+            out.writeUTF(lastDevice == null ? "" : lastDevice);
+            for(Map.Entry<String, LampState> entry : byDevice.entrySet())
+            {
+                if(count-- == 0)
+                {
+                    break;
+                }
+                LampState state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(state.isOn);
+                out.writeShort(LampLevels.fromUnit(state.h));
+                out.writeShort(LampLevels.fromUnit(state.s));
+                out.writeShort(LampLevels.fromUnit(state.brightness));
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tmp.renameTo(file))
+        {
+            throw new IOException("Could not replace " + file);
+        }
+        dirty = false;
+        saves++;
+        return true;
+    }
+
+    public synchronized long getUpdateCount()
+    {
+        return updates;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "lamps=%d updates=%d hits=%d misses=%d loaded=%d saves=%d",
+                byDevice.size(), updates, hits, misses, loaded, saves);
+    }
+}
@@ -0,0 +1,566 @@
+package com.example.myapplication;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Encoder and decoder for the lamp config JSON used on the MQTT topics:
+//   {"color": {"h": 0.25, "s": 0.74}, "brightness": 1.0, "on": true, "client": "lamp_ui"}
+// Encoding writes into a reused byte buffer and decoding walks the bytes
+// directly, so neither builds a Gson tree or intermediate Strings.
+// An encoder instance is not thread safe; use one per thread or lock it.
+public class LampStateCodec
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FRACTION_DIGITS = 6;
+    private static final long FRACTION_SCALE = 1000000L;
+
+    private static final byte[] COLOR_H = bytes("{\"color\":{\"h\":");
+    private static final byte[] S = bytes(",\"s\":");
+    private static final byte[] BRIGHTNESS = bytes("},\"brightness\":");
+    private static final byte[] ON = bytes(",\"on\":");
+    private static final byte[] SEQ = bytes(",\"seq\":");
+    private static final byte[] CLIENT = bytes(",\"client\":\"");
+    private static final byte[] TRUE = bytes("true");
+    private static final byte[] FALSE = bytes("false");
+
+    private final byte[] clientBytes;
+    private final byte[] digits = new byte[20];
+    private byte[] buffer = new byte[128];
+    private int length = 0;
+
+    public LampStateCodec(String clientName)
+    {
+        clientBytes = jsonString(clientName);
+    }
+
+    public byte[] getClientBytes()
+    {
+        return clientBytes;
+    }
+
+    // Encodes into the internal buffer and returns the encoded length.
+    public int encode(boolean isOn, double h, double s, double brightness)
+    {
+        return encode(isOn, h, s, brightness, -1);
+    }
+
+    // Same, with a "seq" the lamp uses to drop a command that reaches it a
+    // second time over another transport; negative means none.
+    public int encode(boolean isOn, double h, double s, double brightness, long seq)
+    {
+        length = 0;
+        put(COLOR_H);
+        putDouble(h);
+        put(S);
+        putDouble(s);
+        put(BRIGHTNESS);
+        putDouble(brightness);
+        put(ON);
+        put(isOn ? TRUE : FALSE);
+        if(seq >= 0)
+        {
+            put(SEQ);
+            putLong(seq);
+        }
+        put(CLIENT);
+        put(clientBytes);
+        putByte('"');
+        putByte('}');
+        return length;
+    }
+
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    // Copy of the last encoded message, for APIs that keep the array.
+    public byte[] toByteArray()
+    {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void put(byte[] bytes)
+    {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void putByte(char c)
+    {
+        ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void putDouble(double value)
+    {
+        if(Double.isNaN(value) || Double.isInfinite(value))
+        {
+            value = 0;
+        }
+        if(value < 0)
+        {
+            putByte('-');
+            value = -value;
+        }
+        long scaled = Math.round(value * FRACTION_SCALE);
+        putLong(scaled / FRACTION_SCALE);
+        putByte('.');
+        long fraction = scaled % FRACTION_SCALE;
+        if(fraction == 0)
+        {
+            putByte('0');
+            return;
+        }
+        int count = FRACTION_DIGITS;
+        while(fraction % 10 == 0)
+        {
+            fraction /= 10;
+            count--;
+        }
+        ensure(count);
+        for(int i = count - 1; i >= 0; i--)
+        {
+            buffer[length + i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        length += count;
+    }
+
+    private void putLong(long value)
+    {
+        int n = 0;
+        do
+        {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        while(value > 0);
+        ensure(n);
+        while(n > 0)
+        {
+            buffer[length++] = digits[--n];
+        }
+    }
+
+    private void ensure(int extra)
+    {
+        if(length + extra > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(UTF8);
+    }
+
+    // Client names are ours or the lamp's; only quotes and backslashes need
+    // escaping.
+    private static byte[] jsonString(String s)
+    {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").getBytes(UTF8);
+    }
+
+    // Reusable decoder; fields hold the result of the last decode(). Keys
+    // missing from the message (set_config updates can be partial) have
+    // their has* flag cleared.
+    public static class Decoder
+    {
+        private static final byte[] KEY_COLOR = bytes("color");
+        private static final byte[] KEY_H = bytes("h");
+        private static final byte[] KEY_S = bytes("s");
+        private static final byte[] KEY_BRIGHTNESS = bytes("brightness");
+        private static final byte[] KEY_ON = bytes("on");
+        private static final byte[] KEY_CLIENT = bytes("client");
+        private static final byte[] KEY_SEQ = bytes("seq");
+
+        private static final double[] POW10 = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+                1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+        public boolean hasOn;
+        public boolean isOn;
+        public boolean hasH;
+        public double h;
+        public boolean hasS;
+        public double s;
+        public boolean hasBrightness;
+        public double brightness;
+        public boolean hasSeq;
+        public long seq;
+
+        private byte[] data;
+        private int pos;
+        private int end;
+        private int clientStart;
+        private int clientLength;
+
+        public boolean decode(byte[] data)
+        {
+            return decode(data, 0, data.length);
+        }
+
+        // Returns false if the bytes are not a JSON object.
+        public boolean decode(byte[] data, int offset, int length)
+        {
+            this.data = data;
+            pos = offset;
+            end = offset + length;
+            hasOn = hasH = hasS = hasBrightness = hasSeq = false;
+            clientStart = -1;
+            clientLength = 0;
+            try
+            {
+                return parseState();
+            }
+            catch(IndexOutOfBoundsException e)
+            {
+                return false;
+            }
+        }
+
+        public boolean hasClient()
+        {
+            return clientStart >= 0;
+        }
+
+        // Compares the raw "client" value with an encoded client name
+        // without creating a String.
+        public boolean isFromClient(byte[] client)
+        {
+            if(clientStart < 0 || clientLength != client.length)
+            {
+                return false;
+            }
+            for(int i = 0; i < clientLength; i++)
+            {
+                if(data[clientStart + i] != client[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getClient()
+        {
+            return clientStart < 0 ? null : new String(data, clientStart, clientLength, UTF8);
+        }
+
+        private boolean parseState()
+        {
+            skipWhitespace();
+            if(!consume('{'))
+            {
+                return false;
+            }
+            skipWhitespace();
+            if(consume('}'))
+            {
+                return true;
+            }
+            do
+            {
+                skipWhitespace();
+                int keyStart = pos + 1;
+                if(!skipString())
+                {
+                    return false;
+                }
+                int keyLength = pos - 1 - keyStart;
+                skipWhitespace();
+                if(!consume(':'))
+                {
+                    return false;
+                }
+                skipWhitespace();
+
+                if(keyEquals(keyStart, keyLength, KEY_COLOR) && peek() == '{')
+                {
+                    if(!parseColor())
+                    {
+                        return false;
+                    }
+                }
+                else if(keyEquals(keyStart, keyLength, KEY_BRIGHTNESS) && isNumberStart(peek()))
+                {
+                    brightness = parseNumber();
+                    hasBrightness = true;
+                }
+                else if(keyEquals(keyStart, keyLength, KEY_ON) && (peek() == 't' || peek() == 'f'))
+                {
+                    isOn = peek() == 't';
+                    hasOn = true;
+                    skipValue();
+                }
+                else if(keyEquals(keyStart, keyLength, KEY_SEQ) && isNumberStart(peek()))
+                {
+                    seq = (long) parseNumber();
+                    hasSeq = true;
+                }
+                else if(keyEquals(keyStart, keyLength, KEY_CLIENT) && peek() == '"')
+                {
+                    clientStart = pos + 1;
+                    if(!skipString())
+                    {
+                        return false;
+                    }
+                    clientLength = pos - 1 - clientStart;
+                }
+                else if(!skipValue())
+                {
+                    return false;
+                }
+                skipWhitespace();
+            }
+            while(consume(','));
+            return consume('}');
+        }
+
+        private boolean parseColor()
+        {
+            consume('{');
+            skipWhitespace();
+            if(consume('}'))
+            {
+                return true;
+            }
+            do
+            {
+                skipWhitespace();
+                int keyStart = pos + 1;
+                if(!skipString())
+                {
+                    return false;
+                }
+                int keyLength = pos - 1 - keyStart;
+                skipWhitespace();
+                if(!consume(':'))
+                {
+                    return false;
+                }
+                skipWhitespace();
+                if(keyEquals(keyStart, keyLength, KEY_H) && isNumberStart(peek()))
+                {
+                    h = parseNumber();
+                    hasH = true;
+                }
+                else if(keyEquals(keyStart, keyLength, KEY_S) && isNumberStart(peek()))
+                {
+                    s = parseNumber();
+                    hasS = true;
+                }
+                else if(!skipValue())
+                {
+                    return false;
+                }
+                skipWhitespace();
+            }
+            while(consume(','));
+            return consume('}');
+        }
+
+        private double parseNumber()
+        {
+            boolean negative = consume('-');
+            long mantissa = 0;
+            int digitCount = 0;
+            int scale = 0;
+            while(pos < end && isDigit(data[pos]))
+            {
+                if(digitCount < 18)
+                {
+                    mantissa = mantissa * 10 + (data[pos] - '0');
+                    digitCount++;
+                }
+                else
+                {
+                    scale--;
+                }
+                pos++;
+            }
+            if(consume('.'))
+            {
+                while(pos < end && isDigit(data[pos]))
+                {
+                    if(digitCount < 18)
+                    {
+                        mantissa = mantissa * 10 + (data[pos] - '0');
+                        digitCount++;
+                        scale++;
+                    }
+                    pos++;
+                }
+            }
+            int exponent = 0;
+            if(pos < end && (data[pos] == 'e' || data[pos] == 'E'))
+            {
+                pos++;
+                boolean negativeExponent = consume('-');
+                if(!negativeExponent)
+                {
+                    consume('+');
+                }
+                while(pos < end && isDigit(data[pos]))
+                {
+                    exponent = exponent * 10 + (data[pos] - '0');
+                    pos++;
+                }
+                if(negativeExponent)
+                {
+                    exponent = -exponent;
+                }
+            }
+            double value = scalePow10(mantissa, exponent - scale);
+            return negative ? -value : value;
+        }
+
+        private static double scalePow10(long mantissa, int exponent)
+        {
+            if(exponent == 0)
+            {
+                return mantissa;
+            }
+            if(exponent < 0 && -exponent < POW10.length)
+            {
+                return mantissa / POW10[-exponent];
+            }
+            if(exponent > 0 && exponent < POW10.length)
+            {
+                return mantissa * POW10[exponent];
+            }
+            return mantissa * Math.pow(10, exponent);
+        }
+
+        private boolean skipValue()
+        {
+            byte c = peek();
+            if(c == '"')
+            {
+                return skipString();
+            }
+            if(c == '{' || c == '[')
+            {
+                return skipNested();
+            }
+            if(isNumberStart(c))
+            {
+                parseNumber();
+                return true;
+            }
+            // true, false or null
+            while(pos < end && data[pos] >= 'a' && data[pos] <= 'z')
+            {
+                pos++;
+            }
+            return true;
+        }
+
+        private boolean skipNested()
+        {
+            int depth = 0;
+            do
+            {
+                byte c = data[pos];
+                if(c == '"')
+                {
+                    if(!skipString())
+                    {
+                        return false;
+                    }
+                    continue;
+                }
+                if(c == '{' || c == '[')
+                {
+                    depth++;
+                }
+                else if(c == '}' || c == ']')
+                {
+                    depth--;
+                }
+                pos++;
+            }
+            while(depth > 0 && pos < end);
+            return depth == 0;
+        }
+
+        // Leaves pos just past the closing quote.
+        private boolean skipString()
+        {
+            if(!consume('"'))
+            {
+                return false;
+            }
+            while(pos < end)
+            {
+                byte c = data[pos++];
+                if(c == '\\')
+                {
+                    pos++;
+                }
+                else if(c == '"')
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean keyEquals(int start, int length, byte[] key)
+        {
+            if(length != key.length)
+            {
+                return false;
+            }
+            for(int i = 0; i < length; i++)
+            {
+                if(data[start + i] != key[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void skipWhitespace()
+        {
+            while(pos < end && (data[pos] == ' ' || data[pos] == '\n' || data[pos] == '\r' || data[pos] == '\t'))
+            {
+                pos++;
+            }
+        }
+
+        private boolean consume(char c)
+        {
+            if(pos < end && data[pos] == c)
+            {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private byte peek()
+        {
+            return pos < end ? data[pos] : 0;
+        }
+
+        private static boolean isDigit(byte c)
+        {
+            return c >= '0' && c <= '9';
+        }
+
+        private static boolean isNumberStart(byte c)
+        {
+            return c == '-' || isDigit(c);
+        }
+    }
+}
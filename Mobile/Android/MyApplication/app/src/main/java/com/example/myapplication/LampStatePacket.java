@@ -0,0 +1,57 @@
+package com.example.myapplication;
+
+// Payload of the packed "Lamp State" characteristic (0005A7D3-...):
+// [on, hue, saturation, brightness], one unsigned byte each. Hedged writes
+// append a 32 bit little endian sequence number so the lamp can drop the
+// copy that arrives second over MQTT.
+public class LampStatePacket
+{
+    public static final int LENGTH = 4;
+    public static final int SEQUENCED_LENGTH = 8;
+
+    private static final int ON = 0;
+    private static final int HUE = 1;
+    private static final int SATURATION = 2;
+    private static final int BRIGHTNESS = 3;
+
+    public static byte[] pack(boolean isOn, byte h, byte s, byte brightness)
+    {
+        return new byte[]{isOn ? (byte) 0x01 : (byte) 0x00, h, s, brightness};
+    }
+
+    public static byte[] packSequenced(boolean isOn, byte h, byte s, byte brightness, long seq)
+    {
+        return new byte[]{isOn ? (byte) 0x01 : (byte) 0x00, h, s, brightness,
+                (byte) seq, (byte) (seq >>> 8), (byte) (seq >>> 16), (byte) (seq >>> 24)};
+    }
+
+    public static long sequence(byte[] data)
+    {
+        return (data[4] & 0xFFL) | (data[5] & 0xFFL) << 8 | (data[6] & 0xFFL) << 16 | (data[7] & 0xFFL) << 24;
+    }
+
+    public static boolean isValid(byte[] data)
+    {
+        return data != null && data.length == LENGTH;
+    }
+
+    public static boolean isOn(byte[] data)
+    {
+        return data[ON] != 0x00;
+    }
+
+    public static byte hue(byte[] data)
+    {
+        return data[HUE];
+    }
+
+    public static byte saturation(byte[] data)
+    {
+        return data[SATURATION];
+    }
+
+    public static byte brightness(byte[] data)
+    {
+        return data[BRIGHTNESS];
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// Merges lamp state reported by the device (BLE notifications arrive as
+// separate power, hue/saturation and brightness values) into one pending UI
+// state that the UI thread applies once per frame. While it is applied the
+// control listeners see isApplying() and must not write the values back to
+// the lamp: they came from it.
+//
+// Values for a slider the user is dragging are dropped. They are mostly
+// echoes of the drag's own earlier writes, and applying them would pull the
+// thumb back under the finger; the drag's final value is written when it
+// ends, and the lamp's report of that is applied as usual.
+public class LampUiReconciler
+{
+    public static final int UNSET = -1;
+
+    public static final int HUE = 0;
+    public static final int SATURATION = 1;
+    public static final int BRIGHTNESS = 2;
+
+    // Slider positions (0..100) to apply; UNSET fields are left alone.
+    public static class Update
+    {
+        public int hue = UNSET;
+        public int sat = UNSET;
+        public int val = UNSET;
+        public boolean hasPower = false;
+        public boolean isOn = false;
+
+        void clear()
+        {
+            hue = UNSET;
+            sat = UNSET;
+            val = UNSET;
+            hasPower = false;
+        }
+    }
+
+    private final Update pending = new Update();
+    private boolean applyScheduled = false;
+    private boolean applying = false;
+    private final boolean[] tracking = new boolean[3];
+
+    private long received = 0;
+    private long merged = 0;
+    private long applied = 0;
+    private long suppressed = 0;
+    private long dropped = 0;
+
+    public static int toProgress(double value)
+    {
+        return (int) Math.round(Math.max(0, Math.min(1, value)) * 100.0);
+    }
+
+    public static int toProgress(byte value)
+    {
+        return toProgress((value & 0xFF) / 255.0);
+    }
+
+    // Each offer returns true if the caller needs to schedule an apply on
+    // the UI thread.
+    public synchronized boolean offerHueSat(int hue, int sat)
+    {
+        pending.hue = hue;
+        pending.sat = sat;
+        return merged();
+    }
+
+    public synchronized boolean offerBrightness(int val)
+    {
+        pending.val = val;
+        return merged();
+    }
+
+    public synchronized boolean offerPower(boolean isOn)
+    {
+        pending.hasPower = true;
+        pending.isOn = isOn;
+        return merged();
+    }
+
+    public synchronized boolean offerState(boolean isOn, int hue, int sat, int val)
+    {
+        pending.hue = hue;
+        pending.sat = sat;
+        pending.val = val;
+        pending.hasPower = true;
+        pending.isOn = isOn;
+        return merged();
+    }
+
+    private boolean merged()
+    {
+        received++;
+        if(applyScheduled)
+        {
+            merged++;
+            return false;
+        }
+        applyScheduled = true;
+        return true;
+    }
+
+    // UI thread, from the slider's start and stop tracking callbacks.
+    public synchronized void setTracking(int slider, boolean isTracking)
+    {
+        tracking[slider] = isTracking;
+    }
+
+    // Copies the pending state into update and clears it, leaving out the
+    // sliders being dragged. Returns false if nothing is left to apply.
+    public synchronized boolean take(Update update)
+    {
+        boolean any = applyScheduled;
+        applyScheduled = false;
+        if(!any)
+        {
+            return false;
+        }
+        update.hue = held(HUE, pending.hue);
+        update.sat = held(SATURATION, pending.sat);
+        update.val = held(BRIGHTNESS, pending.val);
+        update.hasPower = pending.hasPower;
+        update.isOn = pending.isOn;
+        pending.clear();
+        if(update.hue == UNSET && update.sat == UNSET && update.val == UNSET && !update.hasPower)
+        {
+            return false;
+        }
+        applied++;
+        return true;
+    }
+
+    private int held(int slider, int value)
+    {
+        if(value != UNSET && tracking[slider])
+        {
+            dropped++;
+            return UNSET;
+        }
+        return value;
+    }
+
+    // UI thread only: brackets setting the controls to device values.
+    public void beginApply()
+    {
+        applying = true;
+    }
+
+    public void endApply()
+    {
+        applying = false;
+    }
+
+    // Called by the control listeners; true means the change is a device
+    // value being shown and must not be written back.
+    public boolean isApplying()
+    {
+        if(applying)
+        {
+            synchronized(this)
+            {
+                suppressed++;
+            }
+        }
+        return applying;
+    }
+
+    public synchronized long getReceivedCount()
+    {
+        return received;
+    }
+
+    public synchronized long getMergedCount()
+    {
+        return merged;
+    }
+
+    public synchronized long getAppliedCount()
+    {
+        return applied;
+    }
+
+    public synchronized long getSuppressedCount()
+    {
+        return suppressed;
+    }
+
+    // Device values dropped because their slider was being dragged.
+    public synchronized long getDroppedCount()
+    {
+        return dropped;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US,
+                "ui updates received=%d merged=%d applied=%d dropped while dragging=%d echo writes suppressed=%d",
+                received, merged, applied, dropped, suppressed);
+    }
+}
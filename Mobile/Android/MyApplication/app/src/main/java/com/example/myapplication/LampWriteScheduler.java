@@ -0,0 +1,256 @@
+package com.example.myapplication;
+
+// Keeps at most one pending write per lamp characteristic. A newer value for
+// a characteristic replaces the pending one ("latest value wins"), and the
+// next write is only handed to the sink once the previous one has completed,
+// so a slider drag can never build up a backlog of stale writes.
+//
+// While a slider is being dragged the scheduler can stream: intermediate
+// values go out as write-without-response, limited by credits that are
+// returned by onCharacteristicWrite, and the last value is written again
+// with a response when the drag ends. The GATT operation queue runs one
+// operation at a time, so a second credit would only park a value there,
+// where it can no longer be coalesced; the default is one.
+public class LampWriteScheduler
+{
+    public static final int POWER = 0;
+    public static final int HSV = 1;
+    public static final int BRIGHTNESS = 2;
+    // Packed on/h/s/brightness write, used instead of the three above when
+    // the lamp offers the combined characteristic.
+    public static final int STATE = 3;
+    public static final int SLOT_COUNT = 4;
+
+    public static final int DEFAULT_STREAM_CREDITS = 1;
+
+    public interface Sink
+    {
+        // Starts the write and returns false if it could not be issued.
+        boolean write(int slot, byte[] data, boolean withResponse);
+    }
+
+    private final Sink sink;
+    private final byte[][] pending = new byte[SLOT_COUNT][];
+    private int inFlight = 0;
+    private int nextSlot = 0;
+
+    private boolean streaming = false;
+    private int streamCredits = DEFAULT_STREAM_CREDITS;
+    private final byte[][] lastStreamed = new byte[SLOT_COUNT][];
+    private long streamStartedAt = 0;
+    private long streamEndedAt = 0;
+    private long streamSent = 0;
+    private long streamDropped = 0;
+
+    private long submitted = 0;
+    private long coalesced = 0;
+    private long sent = 0;
+    private long failed = 0;
+
+    public LampWriteScheduler(Sink sink)
+    {
+        this.sink = sink;
+    }
+
+    public synchronized void submit(int slot, byte[] data)
+    {
+        submitted++;
+        if(pending[slot] != null)
+        {
+            coalesced++;
+            if(streaming)
+            {
+                streamDropped++;
+            }
+        }
+        pending[slot] = data;
+        sendAvailable();
+    }
+
+    // Called from the GATT callback once a write has finished; for streamed
+    // writes this hands back a credit. withResponse is the write type the
+    // driver actually used, which is acknowledged when the characteristic
+    // can't take a write without response, so the counts only include writes
+    // that reached the lamp the way they are reported.
+    public synchronized void onWriteComplete(boolean withResponse, boolean success)
+    {
+        if(inFlight > 0)
+        {
+            inFlight--;
+        }
+        if(success)
+        {
+            sent++;
+            if(!withResponse)
+            {
+                streamSent++;
+            }
+        }
+        else
+        {
+            failed++;
+        }
+        sendAvailable();
+    }
+
+    public synchronized void setStreamCredits(int credits)
+    {
+        streamCredits = Math.max(1, credits);
+    }
+
+    public synchronized void beginStream()
+    {
+        if(streaming)
+        {
+            return;
+        }
+        streaming = true;
+        streamStartedAt = System.nanoTime();
+        streamEndedAt = 0;
+        streamSent = 0;
+        streamDropped = 0;
+        for(int i = 0; i < SLOT_COUNT; i++)
+        {
+            lastStreamed[i] = null;
+        }
+    }
+
+    // Ends the stream and makes sure the final value of every streamed
+    // characteristic is written once more with a response.
+    public synchronized void endStream()
+    {
+        if(!streaming)
+        {
+            return;
+        }
+        streaming = false;
+        streamEndedAt = System.nanoTime();
+        for(int i = 0; i < SLOT_COUNT; i++)
+        {
+            if(pending[i] == null && lastStreamed[i] != null)
+            {
+                pending[i] = lastStreamed[i];
+            }
+            lastStreamed[i] = null;
+        }
+        sendAvailable();
+    }
+
+    // Drops everything pending, e.g. when the connection goes away.
+    public synchronized void reset()
+    {
+        for(int i = 0; i < SLOT_COUNT; i++)
+        {
+            pending[i] = null;
+            lastStreamed[i] = null;
+        }
+        inFlight = 0;
+        streaming = false;
+    }
+
+    public synchronized boolean isIdle()
+    {
+        if(inFlight > 0)
+        {
+            return false;
+        }
+        for(int i = 0; i < SLOT_COUNT; i++)
+        {
+            if(pending[i] != null)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isStreaming()
+    {
+        return streaming;
+    }
+
+    public synchronized long getSubmittedCount()
+    {
+        return submitted;
+    }
+
+    public synchronized long getCoalescedCount()
+    {
+        return coalesced;
+    }
+
+    public synchronized long getSentCount()
+    {
+        return sent;
+    }
+
+    public synchronized long getFailedCount()
+    {
+        return failed;
+    }
+
+    // Stream figures refer to the current drag, or the last one once it ended.
+    public synchronized long getStreamSentCount()
+    {
+        return streamSent;
+    }
+
+    public synchronized long getStreamDroppedCount()
+    {
+        return streamDropped;
+    }
+
+    public synchronized double getStreamUpdatesPerSecond()
+    {
+        if(streamStartedAt == 0)
+        {
+            return 0;
+        }
+        long end = streamEndedAt != 0 ? streamEndedAt : System.nanoTime();
+        long elapsed = end - streamStartedAt;
+        return elapsed <= 0 ? 0 : streamSent * 1e9 / elapsed;
+    }
+
+    public synchronized String describeStream()
+    {
+        return String.format(java.util.Locale.US, "%.1f updates/s, %d sent, %d dropped",
+                getStreamUpdatesPerSecond(), streamSent, streamDropped);
+    }
+
+    private void sendAvailable()
+    {
+        int credits = streaming ? streamCredits : 1;
+        while(inFlight < credits && sendNext())
+        {
+        }
+    }
+
+    private boolean sendNext()
+    {
+        // Round robin over the slots so a busy slider can't starve the others.
+        for(int i = 0; i < SLOT_COUNT; i++)
+        {
+            int slot = (nextSlot + i) % SLOT_COUNT;
+            byte[] data = pending[slot];
+            if(data != null)
+            {
+                pending[slot] = null;
+                nextSlot = (slot + 1) % SLOT_COUNT;
+                inFlight++;
+                boolean withResponse = !streaming;
+                if(streaming)
+                {
+                    lastStreamed[slot] = data;
+                }
+                if(sink.write(slot, data, withResponse))
+                {
+                    return true;
+                }
+                failed++;
+                inFlight--;
+                return false;
+            }
+        }
+        return false;
+    }
+}
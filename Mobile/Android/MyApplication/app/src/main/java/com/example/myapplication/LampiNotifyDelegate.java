@@ -4,4 +4,7 @@ public interface LampiNotifyDelegate {
     public void setHS (byte h, byte s);
     public void setB (byte b);
     public void setPower (boolean powered);
+    // The lamp's MQTT device id, once it is known from its Device
+    // Information serial number.
+    public void setDeviceId (String mac, String deviceId);
 }
@@ -0,0 +1,99 @@
+package com.example.myapplication;
+
+// Fixed size latency histogram with power-of-two microsecond buckets.
+// Recording never allocates, so it is safe to use from GATT and MQTT callbacks.
+// The buckets cover the histogram's whole life; the smoothed round trip
+// follows recent samples, weighting each new one by 1/SMOOTHING the way
+// TCP's SRTT does, so it tracks a path that got faster or slower.
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 32;
+    private static final int SMOOTHING = 4;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long sumMicros = 0;
+    private long maxMicros = 0;
+    private long smoothedMicros = 0;
+
+    public synchronized void record(long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        smoothedMicros = total == 0 ? micros : smoothedMicros + (micros - smoothedMicros) / SMOOTHING;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if(bucket >= BUCKETS)
+        {
+            bucket = BUCKETS - 1;
+        }
+        counts[bucket]++;
+        total++;
+        sumMicros += micros;
+        if(micros > maxMicros)
+        {
+            maxMicros = micros;
+        }
+    }
+
+    public synchronized long getCount()
+    {
+        return total;
+    }
+
+    public synchronized long getMeanMicros()
+    {
+        return total == 0 ? 0 : sumMicros / total;
+    }
+
+    public synchronized long getMaxMicros()
+    {
+        return maxMicros;
+    }
+
+    public synchronized long getSmoothedMicros()
+    {
+        return smoothedMicros;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100).
+    public synchronized long getPercentileMicros(double percentile)
+    {
+        if(total == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if(seen >= rank && counts[i] > 0)
+            {
+                return Math.min(maxMicros, i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return maxMicros;
+    }
+
+    public synchronized void reset()
+    {
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = 0;
+        }
+        total = 0;
+        sumMicros = 0;
+        maxMicros = 0;
+        smoothedMicros = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "n=" + getCount()
+                + " mean=" + getMeanMicros() + "us"
+                + " p50=" + getPercentileMicros(50) + "us"
+                + " p99=" + getPercentileMicros(99) + "us"
+                + " max=" + getMaxMicros() + "us"
+                + " srtt=" + getSmoothedMicros() + "us";
+    }
+}
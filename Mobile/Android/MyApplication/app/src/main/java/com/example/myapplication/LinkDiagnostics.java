@@ -0,0 +1,91 @@
+package com.example.myapplication;
+
+// What the BLE link to the current lamp actually ended up with: the
+// connection priority we asked for, the negotiated MTU and, where the stack
+// reports it, the connection interval.
+public class LinkDiagnostics
+{
+    public static final int DEFAULT_MTU = 23;
+
+    private String priority = "none";
+    private int priorityRequests = 0;
+    private int mtu = DEFAULT_MTU;
+    private boolean mtuNegotiated = false;
+    private int intervalUnits = -1;
+    private int latency = -1;
+    private int timeoutUnits = -1;
+
+    public synchronized void setPriority(String priority)
+    {
+        this.priority = priority;
+        priorityRequests++;
+    }
+
+    public synchronized void setMtu(int mtu)
+    {
+        this.mtu = mtu;
+        mtuNegotiated = true;
+    }
+
+    // Interval in 1.25 ms units and supervision timeout in 10 ms units, as
+    // reported by the Bluetooth stack.
+    public synchronized void setConnectionParameters(int intervalUnits, int latency, int timeoutUnits)
+    {
+        this.intervalUnits = intervalUnits;
+        this.latency = latency;
+        this.timeoutUnits = timeoutUnits;
+    }
+
+    public synchronized void reset()
+    {
+        priority = "none";
+        mtu = DEFAULT_MTU;
+        mtuNegotiated = false;
+        intervalUnits = -1;
+        latency = -1;
+        timeoutUnits = -1;
+    }
+
+    public synchronized String getPriority()
+    {
+        return priority;
+    }
+
+    public synchronized int getMtu()
+    {
+        return mtu;
+    }
+
+    public synchronized boolean isMtuNegotiated()
+    {
+        return mtuNegotiated;
+    }
+
+    public synchronized double getIntervalMillis()
+    {
+        return intervalUnits < 0 ? -1 : intervalUnits * 1.25;
+    }
+
+    public synchronized String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("priority=").append(priority)
+                .append(" (").append(priorityRequests).append(" requests)")
+                .append(" mtu=").append(mtu);
+        if(!mtuNegotiated)
+        {
+            sb.append(" (default)");
+        }
+        if(intervalUnits < 0)
+        {
+            sb.append(" interval=unknown");
+        }
+        else
+        {
+            sb.append(" interval=").append(intervalUnits * 1.25).append("ms")
+                    .append(" latency=").append(latency)
+                    .append(" timeout=").append(timeoutUnits * 10).append("ms");
+        }
+        return sb.toString();
+    }
+}
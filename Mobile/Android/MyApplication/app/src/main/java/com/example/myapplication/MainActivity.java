@@ -1,5 +1,6 @@
 package com.example.myapplication;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.ColorStateList;
 import android.graphics.Bitmap;
@@ -16,7 +17,9 @@ import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.OvalShape;
 import android.graphics.drawable.shapes.RectShape;
 import android.graphics.drawable.shapes.Shape;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.BottomNavigationView;
 import android.support.v4.content.ContextCompat;
@@ -34,121 +37,248 @@ import android.widget.LinearLayout.LayoutParams;
 import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.util.Log;
+import android.view.Choreographer;
 import android.widget.ToggleButton;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity implements LampiNotifyDelegate, LampMQTTDelegate {
 
+    // Device reported values are merged here and applied once per frame;
+    // the control listeners skip their writes while they are applied.
+    private final LampUiReconciler reconciler = new LampUiReconciler();
+    private final LampUiReconciler.Update deviceUpdate = new LampUiReconciler.Update();
+    private Choreographer frames;
+    private final Choreographer.FrameCallback applyDeviceState = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyDeviceState();
+        }
+    };
+
+    // MQTT states already arrive on a frame callback, so they are applied
+    // straight away.
     @Override
     public void receiveState(boolean isOn, double h, double s, double brightness) {
-        setLampValues(h, s, brightness, isOn);
+        reconciler.offerState(isOn, LampUiReconciler.toProgress(h), LampUiReconciler.toProgress(s),
+                LampUiReconciler.toProgress(brightness));
+        applyDeviceState();
     }
 
+    // BLE notifications come in on a binder thread, one value at a time.
     public void setHS (byte h, byte s) {
-        final int hue = (int) h & 0xFF;
-        final int sat = (int) s & 0xFF;;
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                // Stuff that updates the UI
-                Log.d("setHS", hue+" "+sat);
-                setLampValues(hue/255.0, sat/255.0, null, null);
-            }
-        });
-
+        if (reconciler.offerHueSat(LampUiReconciler.toProgress(h), LampUiReconciler.toProgress(s))) {
+            scheduleDeviceState();
+        }
     }
     public void setB (byte b) {
-        final int bright = (int) b & 0xFF;
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                // Stuff that updates the UI
-                Log.d("setB", bright+"");
-                setLampValues(null, null,  bright/255.0, null);
-            }
-        });
+        if (reconciler.offerBrightness(LampUiReconciler.toProgress(b))) {
+            scheduleDeviceState();
+        }
     }
     public void setPower (boolean powered) {
-        final boolean on = powered;
+        if (reconciler.offerPower(powered)) {
+            scheduleDeviceState();
+        }
+    }
+
+    // A BLE lamp's id arrived after we connected to it.
+    public void setDeviceId (final String mac, final String deviceId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                // Stuff that updates the UI
-                Log.d("setPower", on+"");
-                setLampValues(null, null,  null, on);
+                if (ble != null && mac.equals(ble.getConnectedMac()) && !deviceId.equals(currentLampId)) {
+                    showLamp(deviceId);
+                    showMqttLamp(deviceId);
+                }
             }
         });
     }
 
-    //private TextView mTextMessage;
-    private TextView deviceIdTextView;
-    private TextView messageTextView;
-    private TextView noDeviceTextView;
-
-    private ToggleButton onOffToggle;
-
-    private SeekBar seekBarHue;
-    private SeekBar seekBarSat;
-    private SeekBar seekBarVal;
+    private final Runnable postDeviceState = new Runnable() {
+        @Override
+        public void run() {
+            frames.postFrameCallback(applyDeviceState);
+        }
+    };
 
-    private LinearLayout colorBar;
+    private void scheduleDeviceState() {
+        runOnUiThread(postDeviceState);
+    }
 
-    protected Drawable getSliderShape(float width, int[] colors ) {
-        LinearGradient test;
-        test = new LinearGradient(0.f, 0.f, width, 0.0f, colors,
-                null, Shader.TileMode.CLAMP);
-        ShapeDrawable shape = new ShapeDrawable(new RectShape());
-        shape.getPaint().setShader(test);
-        return (Drawable)shape;
+    private void applyDeviceState() {
+        if (!reconciler.take(deviceUpdate)) {
+            return;
+        }
+        reconciler.beginApply();
+        try {
+            if (deviceUpdate.hue != LampUiReconciler.UNSET) { seekBarHue.setProgress(deviceUpdate.hue); }
+            if (deviceUpdate.sat != LampUiReconciler.UNSET) { seekBarSat.setProgress(deviceUpdate.sat); }
+            if (deviceUpdate.val != LampUiReconciler.UNSET) { seekBarVal.setProgress(deviceUpdate.val); }
+            if (deviceUpdate.hasPower) { onOffToggle.setChecked(deviceUpdate.isOn); }
+        } finally {
+            reconciler.endApply();
+        }
+        seekBarChange();
+        uiReady.onDeviceUpdate(System.nanoTime(), deviceUpdate);
     }
 
-    protected Drawable getSliderThumb(int color, int width) {
-//        ShapeDrawable th;
-//        th = new ShapeDrawable(new OvalShape());
-//        th.setIntrinsicWidth(width);
-//        th.setIntrinsicHeight(width);
-//        th.setColorFilter(color, PorterDuff.Mode.SRC_OVER);
-//
-//        th.getPaint().setStyle(Paint.Style.FILL_AND_STROKE);
-//        th.getPaint().setStrokeWidth(2); // in pixel
-//        th.getPaint().setColor(Color.BLACK);
+    // Shows a lamp's last known state until the lamp itself reports in.
+    // Returns false if we have never seen the lamp.
+    private boolean paintCachedState(String lampId) {
+        LampState cached = lampId == null ? null : states.get(lampId);
+        if (cached == null) {
+            return false;
+        }
+        reconciler.beginApply();
+        try {
+            seekBarHue.setProgress(LampUiReconciler.toProgress(cached.h));
+            seekBarSat.setProgress(LampUiReconciler.toProgress(cached.s));
+            seekBarVal.setProgress(LampUiReconciler.toProgress(cached.brightness));
+            onOffToggle.setChecked(cached.isOn);
+        } finally {
+            reconciler.endApply();
+        }
+        seekBarChange();
+        return true;
+    }
 
+    // A new lamp was chosen: paint its cached state now and time how long
+    // the controls take to be right.
+    private void showLamp(String lampId) {
+        currentLampId = lampId;
+        states.setLastDevice(lampId);
+        uiReady.onConnect(System.nanoTime());
+        if (paintCachedState(lampId)) {
+            uiReady.onPainted(System.nanoTime(), onOffToggle.isChecked(), seekBarHue.getProgress(),
+                    seekBarSat.getProgress(), seekBarVal.getProgress());
+        }
+    }
 
-        Bitmap bitmap = Bitmap.createBitmap( 100, 100, Bitmap.Config.ARGB_8888);
-        Canvas c = new Canvas(bitmap);
-        //«bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
+    // Points the cache and MQTT at the BLE lamp at mac. While its id is
+    // unknown MQTT has no current lamp rather than a wrong one.
+    private void showBleLamp(String mac) {
+        String lampId = ble.getDeviceId(mac);
+        if (lampId != null) {
+            showLamp(lampId);
+        } else {
+            currentLampId = null;
+        }
+        showMqttLamp(lampId);
+    }
 
-        Paint circlePaint = new Paint();
-        circlePaint.setColor(color);
-        circlePaint.setFlags(Paint.ANTI_ALIAS_FLAG);
+    // Unless the MQTT driver failed to start.
+    private void showMqttLamp(String lampId) {
+        if (mqtt != null) {
+            mqtt.setCurrentDevice(lampId);
+            mqtt.setDelegate(this);
+        }
+    }
 
-        Paint strokePaint = new Paint();
-        strokePaint.setColor(Color.BLACK);
-        strokePaint.setFlags(Paint.ANTI_ALIAS_FLAG);
+    private final Runnable saveStates = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                states.writeSnapshot(stateFile);
+            } catch (IOException e) {
+                Log.d("MainActivity", "Could not save lamp states " + e.getMessage());
+            }
+        }
+    };
+
+    private static final String TRACE_DUMP_FILE = "trace.txt";
+    private final Runnable dumpTrace = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                TraceLog.get().dumpTo(new File(getFilesDir(), TRACE_DUMP_FILE));
+            } catch (IOException e) {
+                Log.d("MainActivity", "Could not dump trace " + e.getMessage());
+            }
+        }
+    };
 
-        int diameter = width;
-        int radius = diameter/2;
+    //private TextView mTextMessage;
+    private TextView deviceIdTextView;
+    private TextView messageTextView;
+    private TextView noDeviceTextView;
 
-        c.drawCircle(diameter / 2 , diameter / 2, radius, strokePaint);
+    private ToggleButton onOffToggle;
 
-        c.drawCircle(diameter / 2, diameter / 2, radius-4, circlePaint);
-// This converts the bitmap to a drawable
-        BitmapDrawable mDrawable = new BitmapDrawable(getResources(),bitmap);
+    private SeekBar seekBarHue;
+    private SeekBar seekBarSat;
+    private SeekBar seekBarVal;
 
-        return mDrawable;
-        //return th;
-    }
+    private LinearLayout colorBar;
 
-    private BLEDriver ble;
+    // Thumbs and the saturation track are recolored in place on every tick
+    // instead of being rebuilt.
+    private SliderThumbRenderer sliders;
+    private SliderThumbRenderer.Thumb hueThumb;
+    private SliderThumbRenderer.Thumb satThumb;
+    private SliderThumbRenderer.Thumb valThumb;
+    private Drawable satTrack = null;
+    private final ColorStateList offTextColor = ColorStateList.valueOf(Color.BLACK);
+
+    // Null until startup has brought the transports up.
+    private volatile BLEDriver ble;
+    private MosquittoDriver mqtt;
+    private LampControllerSelector controllers;
+    private HedgedLampController hedged;
+    private LampCommands commands;
+    private final UiJankMonitor jank = new UiJankMonitor();
+
+    private static final String STATE_FILE = "lamp-states";
+    // Last known state per lamp, shared with the MQTT driver and saved
+    // across launches.
+    private LampStateCache states;
+    private File stateFile;
+    private String currentLampId = null;
+    private final UiReadyMetrics uiReady = new UiReadyMetrics();
+    private long snapshotLoadMicros = -1;
+
+    // Without Process.getStartElapsedRealtime() (API 24) the closest thing
+    // to process start is this class being loaded.
+    private static final long CLASS_LOADED_AT = SystemClock.elapsedRealtime();
+    private static final String TRACE_FILE = "cold-start-trace";
+    private static final String MQTT_TASK = "mqtt";
+    private static final String BLE_TASK = "ble";
+    // Broker to use instead of MqttConnectionManager.DEFAULT_BROKER_URI, e.g.
+    // adb shell am start -n com.example.myapplication/.MainActivity \
+    //     --es com.example.myapplication.BROKER_URI tcp://10.0.0.5:1883
+    public static final String EXTRA_BROKER_URI = "com.example.myapplication.BROKER_URI";
+    // Only the first activity in a process is a cold start.
+    private static boolean coldStartRecorded = false;
+    private StartupOrchestrator startup;
+    private boolean resumed = false;
+    private Button selectDeviceButton;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        BLEDriver.makeInstance(this);
-        ble = BLEDriver.instance;
+        startup = newStartup();
+        states = MosquittoDriver.getStateCache();
+        stateFile = new File(getFilesDir(), STATE_FILE);
+        // A few hundred bytes, read before the first frame so it can paint.
+        long loadStarted = System.nanoTime();
+        try {
+            states.readSnapshot(stateFile);
+        } catch (IOException e) {
+            Log.d("MainActivity", "Could not read lamp states " + e.getMessage());
+        }
+        snapshotLoadMicros = (System.nanoTime() - loadStarted) / 1000;
+        // The controller is set once the transports are up.
+        commands = new LampCommands(DriverExecutor.get(), null);
 
         setContentView(R.layout.activity_main);
+        frames = Choreographer.getInstance();
+        BLEDriver.requestPermissions(this);
 
         deviceIdTextView = (TextView) findViewById(R.id.deviceId);
         messageTextView = (TextView) findViewById(R.id.message);
@@ -156,10 +286,42 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
 
         messageTextView.setText("Connection Type: Not Connected");
 
+        // Long press the device id to see what the BLE link negotiated. It
+        // also writes the driver trace to files/trace.txt for field reports.
+        deviceIdTextView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                DriverExecutor.get().submit(dumpTrace);
+                if (ble == null) {
+                    Toast.makeText(MainActivity.this, startup.getTrace().describe(), Toast.LENGTH_LONG).show();
+                    return true;
+                }
+                Toast.makeText(MainActivity.this, startup.getTrace().describe() + "\n" + ble.describeDiagnostics() + "\n" + jank.describe()
+                        + "\n" + DriverExecutor.get().describe() + "\n" + reconciler.describe() + "\n" + controllers.describe()
+                        + "\n" + (hedged == null ? "no hedging without MQTT" : hedged.describe()) + "\n" + uiReady.describe() + "\nstates " + states.describe()
+                        + " snapshot read in " + snapshotLoadMicros + "us\n" + TraceLog.get().describe(),
+                        Toast.LENGTH_LONG).show();
+                return true;
+            }
+        });
+
+        // Long press the connection type to compare UI thread cost with the
+        // driver calls made inline, as they used to be.
+        messageTextView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                commands.setInline(!commands.isInline());
+                Toast.makeText(MainActivity.this, "Inline driver calls: " + commands.isInline(), Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
+
         // Click this button to pass data to target activity and
         // then wait for target activity to return result data back.
-        Button passDataReturnResultSourceButton = (Button)findViewById(R.id.buttonSelectDevice);
-        passDataReturnResultSourceButton.setOnClickListener(new View.OnClickListener() {
+        // The picker needs the BLE driver, so it opens once startup is done.
+        selectDeviceButton = (Button)findViewById(R.id.buttonSelectDevice);
+        selectDeviceButton.setEnabled(false);
+        selectDeviceButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 Intent intent = new Intent(MainActivity.this, DisplayMessageActivity.class);
@@ -176,6 +338,30 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
         seekBarVal = (SeekBar)findViewById(R.id.seekbarVal);
 
         colorBar = (LinearLayout)findViewById(R.id.colorbarcontainer);
+
+        // Long press the color bar to send every change over BLE and MQTT at
+        // once instead of over the faster of the two.
+        colorBar.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                if (hedged == null) {
+                    Toast.makeText(MainActivity.this, "Hedged writes need BLE and MQTT", Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                boolean hedging = commands.getController() != hedged;
+                commands.setController(hedging ? hedged : controllers);
+                Toast.makeText(MainActivity.this, "Hedged writes: " + hedging, Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
+
+        sliders = new SliderThumbRenderer(getResources(), 100);
+        hueThumb = sliders.newThumb(Color.RED);
+        satThumb = sliders.newThumb(Color.WHITE);
+        valThumb = sliders.newThumb(Color.BLACK);
+        seekBarHue.setThumb(hueThumb.getDrawable());
+        seekBarSat.setThumb(satThumb.getDrawable());
+        seekBarVal.setThumb(valThumb.getDrawable());
         //do all three bars at once they are all the same with
         seekBarSat.post(new Runnable() {
             @Override
@@ -183,8 +369,9 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
                 int width = seekBarSat.getWidth(); //height is ready
                 int[] hueColors = new int[] { 0xFFFF0000, 0xFFFFFF00, 0xFF00FF00, 0xFF00FFFF,
                         0xFF0000FF, 0xFFFF00FF, 0xFFFF0000};
-                seekBarHue.setProgressDrawable(getSliderShape(width, hueColors));
-                seekBarVal.setProgressDrawable(getSliderShape(width, new int[] { 0xFF000000, 0xFFFFFFFF}));
+                seekBarHue.setProgressDrawable(SliderThumbRenderer.gradient(width, hueColors));
+                seekBarVal.setProgressDrawable(SliderThumbRenderer.gradient(width, new int[] { 0xFF000000, 0xFFFFFFFF}));
+                sliders.setTrackWidth(width);
 
                 // update the display
                 seekBarChange();
@@ -196,106 +383,236 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
 
         seekBarHue.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                seekBarChange();
-                if (messageTextView.getText().equals("Netword"))
-                {
-                    boolean power = onOffToggle.isChecked();
-                    double h = seekBarHue.getProgress() / 100.0;
-                    double s = seekBarSat.getProgress() / 100.0;
-                    double b = seekBarVal.getProgress() / 100.0;
-                    MosquittoDriver.instance.publishState(power, h, s, b);
-                } else {
-                    byte h = (byte) (seekBarHue.getProgress() * 255 / 100);
-                    byte s = (byte) (seekBarSat.getProgress() * 255 / 100);
-                    Log.d("write h s", h + " " + s);
-                    ble.writeHSV(h, s);
+                if (reconciler.isApplying()) {
+                    return;
                 }
+                long started = jank.begin();
+                seekBarChange();
+                sendControls();
+                jank.end(UiJankMonitor.HUE, started);
             }
             public void onStartTrackingTouch(SeekBar seekBar) {
-                // TODO Auto-generated method stub
+                reconciler.setTracking(LampUiReconciler.HUE, true);
+                commands.beginStreaming();
             }
 
             public void onStopTrackingTouch(SeekBar seekBar) {
-                Log.d("hello", "there");
+                reconciler.setTracking(LampUiReconciler.HUE, false);
+                commands.endStreaming();
             }
         });
         seekBarSat.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                seekBarChange();
-                if (messageTextView.getText().equals("Netword")) {
-                    boolean power = onOffToggle.isChecked();
-                    double h = seekBarHue.getProgress() / 100.0;
-                    double s = seekBarSat.getProgress() / 100.0;
-                    double b = seekBarVal.getProgress() / 100.0;
-                    MosquittoDriver.instance.publishState(power, h, s, b);
-
-                } else {
-                    byte h = (byte) (seekBarHue.getProgress() * 255 / 100);
-                    byte s = (byte) (seekBarSat.getProgress() * 255 / 100);
-                    Log.d("write h s", h + " " + s);
-                    ble.writeHSV(h, s);
+                if (reconciler.isApplying()) {
+                    return;
                 }
+                long started = jank.begin();
+                seekBarChange();
+                sendControls();
+                jank.end(UiJankMonitor.SATURATION, started);
             }
             public void onStartTrackingTouch(SeekBar seekBar) {
-                // TODO Auto-generated method stub
+                reconciler.setTracking(LampUiReconciler.SATURATION, true);
+                commands.beginStreaming();
             }
 
             public void onStopTrackingTouch(SeekBar seekBar) {
-                Log.d("hello", "there");
+                reconciler.setTracking(LampUiReconciler.SATURATION, false);
+                commands.endStreaming();
             }
         });
         seekBarVal.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                seekBarChange();
-                if (messageTextView.getText().equals("Netword"))
-                {
-                    boolean power = onOffToggle.isChecked();
-                    double h = seekBarHue.getProgress() / 100.0;
-                    double s = seekBarSat.getProgress() / 100.0;
-                    double b = seekBarVal.getProgress() / 100.0;
-                    MosquittoDriver.instance.publishState(power, h, s, b);
-
-                } else {
-                    byte b = (byte) (seekBarVal.getProgress() * 255 / 100);
-                    Log.d("write b", b + "");
-
-                    ble.writeBrightness(b);
+                if (reconciler.isApplying()) {
+                    return;
                 }
+                long started = jank.begin();
+                seekBarChange();
+                sendControls();
+                jank.end(UiJankMonitor.BRIGHTNESS, started);
             }
             public void onStartTrackingTouch(SeekBar seekBar) {
-                // TODO Auto-generated method stub
+                reconciler.setTracking(LampUiReconciler.BRIGHTNESS, true);
+                commands.beginStreaming();
             }
 
             public void onStopTrackingTouch(SeekBar seekBar) {
-                Log.d("hello", "there");
+                reconciler.setTracking(LampUiReconciler.BRIGHTNESS, false);
+                commands.endStreaming();
             }
         });
 
         onOffToggle = (ToggleButton)findViewById(R.id.toggleOnOff);
+        // Long press the power button to set every known lamp to what the
+        // controls show: over MQTT the lamps this phone has heard from,
+        // without MQTT the lamps the picker has found.
+        onOffToggle.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                applyControlsToAllLamps();
+                return true;
+            }
+        });
         onOffToggle.setOnCheckedChangeListener(new ToggleButton.OnCheckedChangeListener() {
 
 
             public void onCheckedChanged(CompoundButton compoundButton, boolean b)
             {
+                if (reconciler.isApplying()) {
+                    return;
+                }
+                long started = jank.begin();
                 if(b) {
                     Log.d ("togglebutton", "checked");
                     onOffToggle.setTextColor(Color.YELLOW);
                 }
                 seekBarChange();
 
-                if (messageTextView.getText().equals("Netword")) {
-                    boolean power = onOffToggle.isChecked();
-                    double h = seekBarHue.getProgress() / 100.0;
-                    double s = seekBarSat.getProgress() / 100.0;
-                    double bright = seekBarVal.getProgress() / 100.0;
-                    MosquittoDriver.instance.publishState(power, h, s, bright);
-                } else {
-                    ble.writePower(b);
-                }
+                sendControls();
+                jank.end(UiJankMonitor.POWER, started);
             }
         });
 //setLampValues(0.5, 1.0, 0.7, false);
 
+        // Show the last lamp as we left it; the controls stay hidden until
+        // it is connected.
+        paintCachedState(states.getLastDevice());
+
+        // The transports are only created once the first frame is drawn:
+        // a message posted during the frame runs after its traversal.
+        frames.postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                deviceIdTextView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        startup.onFirstFrame();
+                    }
+                });
+            }
+        });
+    }
+
+    // Creates and warms the MQTT and BLE drivers in parallel, off the main
+    // thread; onTransportsReady() takes over on the main thread.
+    private StartupOrchestrator newStartup() {
+        final StartupOrchestrator orchestrator = new StartupOrchestrator(processStartMillis(),
+                new StartupOrchestrator.Clock() {
+                    @Override
+                    public long nowMillis() {
+                        return SystemClock.elapsedRealtime();
+                    }
+                });
+        final File files = getFilesDir();
+        final Context app = getApplicationContext();
+        final String brokerUri = getIntent().getStringExtra(EXTRA_BROKER_URI);
+        orchestrator.addTask(MQTT_TASK, new Runnable() {
+            @Override
+            public void run() {
+                MosquittoDriver driver = MosquittoDriver.get();
+                if (brokerUri != null) {
+                    driver.setBrokerUri(brokerUri);
+                }
+                driver.setOutboxDirectory(files);
+                driver.watchNetwork(app);
+                driver.start();
+            }
+        });
+        orchestrator.addTask(BLE_TASK, new Runnable() {
+            @Override
+            public void run() {
+                BLEDriver.makeInstance(app);
+            }
+        });
+        orchestrator.setListener(new StartupOrchestrator.Listener() {
+            @Override
+            public void onReady(final ColdStartTrace trace, final List<String> failed) {
+                if (!coldStartRecorded) {
+                    coldStartRecorded = true;
+                    Log.d("MainActivity", trace.describe() + (failed.isEmpty() ? "" : " failed " + failed));
+                    try {
+                        trace.appendTo(new File(files, TRACE_FILE), BuildConfig.VERSION_NAME + "-" + BuildConfig.VERSION_CODE);
+                    } catch (IOException e) {
+                        Log.d("MainActivity", "Could not save startup trace " + e.getMessage());
+                    }
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTransportsReady(failed);
+                    }
+                });
+            }
+        });
+        return orchestrator;
+    }
+
+    private static long processStartMillis() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return android.os.Process.getStartElapsedRealtime();
+        }
+        return CLASS_LOADED_AT;
+    }
+
+    // Only the transports whose startup task succeeded are used. The picker
+    // goes through the BLE driver, so it stays disabled without one.
+    private void onTransportsReady(List<String> failed) {
+        if (isDestroyed()) {
+            return;
+        }
+        mqtt = failed.contains(MQTT_TASK) ? null : MosquittoDriver.get();
+        ble = failed.contains(BLE_TASK) ? null : BLEDriver.instance;
+        List<LampController> available = new ArrayList<LampController>(2);
+        if (ble != null) {
+            available.add(new BleLampController(ble));
+        }
+        if (mqtt != null) {
+            available.add(new MqttLampController(mqtt));
+        }
+        controllers = new LampControllerSelector(available.toArray(new LampController[available.size()]));
+        hedged = ble != null && mqtt != null
+                ? new HedgedLampController(ble, mqtt, DriverExecutor.get().getScheduler()) : null;
+        commands.setController(controllers);
+        if (ble == null) {
+            Log.d("MainActivity", "BLE unavailable; lamp picker disabled");
+            return;
+        }
+        selectDeviceButton.setEnabled(true);
+        if (resumed) {
+            ble.setControlActive(true);
+        }
+
+        // Reconnect straight to the lamp used last instead of making the user
+        // scan for it again.
+        String mac = ble.reconnectLast(this, this);
+        if (mac != null) {
+            String name = ble.getKnownName(mac);
+            deviceIdTextView.setText((name == null || name.isEmpty() ? "Lampi" : name) + " (" + mac + ")");
+            messageTextView.setText("BlueTooth");
+            setDeviceStatus(true);
+            showBleLamp(mac);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resumed = true;
+        if (ble != null) {
+            ble.setControlActive(true);
+        }
+        jank.start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        resumed = false;
+        if (ble != null) {
+            ble.setControlActive(false);
+        }
+        jank.stop();
+        DriverExecutor.get().submit(saveStates);
     }
 
     // Show / hide lamp controls
@@ -319,6 +636,50 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
     }
 
     // Update the lamp display (sliders and button)
+    // Sends what the controls show through whichever transport is faster.
+    private void sendControls()
+    {
+        commands.apply(LampLevels.fromProgress(onOffToggle.isChecked(), seekBarHue.getProgress(),
+                seekBarSat.getProgress(), seekBarVal.getProgress(), seekBarHue.getMax()));
+    }
+
+    private void applyControlsToAllLamps()
+    {
+        final LampLevels levels = LampLevels.fromProgress(onOffToggle.isChecked(), seekBarHue.getProgress(),
+                seekBarSat.getProgress(), seekBarVal.getProgress(), seekBarHue.getMax());
+        final MosquittoDriver groupMqtt = mqtt;
+        final BLEDriver groupBle = ble;
+        final List<String> lamps = groupMqtt != null ? states.getDeviceIds()
+                : groupBle != null ? groupBle.getDiscoveredMacs() : new ArrayList<String>();
+        if (lamps.isEmpty()) {
+            Toast.makeText(this, "No lamps known yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final GroupController.Listener done = new GroupController.Listener() {
+            @Override
+            public void onGroupComplete(final GroupController.GroupRun run) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(MainActivity.this, "Group: " + run.describe(), Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        };
+        DriverExecutor.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (groupMqtt != null) {
+                    LampState state = levels.toLampState();
+                    groupMqtt.applyToGroup(lamps, state.isOn, state.h, state.s, state.brightness, done);
+                } else {
+                    groupBle.applyToGroup(lamps, levels.isOn, LampLevels.toByte(levels.h),
+                            LampLevels.toByte(levels.s), LampLevels.toByte(levels.v), done);
+                }
+            }
+        });
+    }
+
     public void setLampValues(Double hue, Double sat, Double val, Boolean isOn)
     {
         if (hue != null) { seekBarHue.setProgress((int) Math.round(hue*100.0)); }
@@ -335,31 +696,33 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
     {
         boolean isOn = onOffToggle.isChecked();
 
-        int width = seekBarSat.getWidth(); //height is ready
         int hue = seekBarHue.getProgress();
         int sat = seekBarSat.getProgress();
         int val = seekBarVal.getProgress();
 
-        int fullcolor = Color.HSVToColor(new float[] {hue * 3.6f, 1.0f, 1.0f} );
-        int satcolor = Color.HSVToColor(new float[] {hue * 3.6f, sat / 100f, 1.0f} );
+        int fullcolor = sliders.hsvToColor(SliderThumbRenderer.hueDegrees(hue), 1.0f, 1.0f);
+        int satcolor = sliders.hsvToColor(SliderThumbRenderer.hueDegrees(hue), sat / 100f, 1.0f);
         int gsColor = (255 * val) / 100;
         int valcolor =  Color.rgb(gsColor, gsColor, gsColor);
 
-        seekBarHue.setThumb(getSliderThumb(fullcolor, 100));
+        sliders.recolor(hueThumb, fullcolor);
+        sliders.recolor(satThumb, satcolor);
+        sliders.recolor(valThumb, valcolor);
 
-        seekBarSat.setThumb(getSliderThumb(fullcolor, 50)); //prevents horizontal bar from getting really tall
-        seekBarSat.setProgressDrawable(getSliderShape(width, new int[] { 0xFFFFFFFF, fullcolor}));
-        seekBarSat.setThumb(getSliderThumb(satcolor, 100));
-
-        seekBarVal.setThumb(getSliderThumb(valcolor, 100));
+        // null until the first layout gave us the track width
+        Drawable track = sliders.getSaturationTrack(hue);
+        if (track != null && track != satTrack) {
+            seekBarSat.setProgressDrawable(track);
+            satTrack = track;
+        }
 
         colorBar.setBackgroundColor(satcolor);
 
         if (isOn) {
-            onOffToggle.setTextColor(fullcolor);
+            onOffToggle.setTextColor(sliders.getHueTextColor(hue));
             //onOffToggle.setHighlightColor(fullcolor);
         } else {
-            onOffToggle.setTextColor(Color.BLACK);
+            onOffToggle.setTextColor(offTextColor);
         }
 
 //        setDeviceStatus(!deviceIdTextView.getText().equals("Not Connected"));
@@ -389,15 +752,24 @@ public class MainActivity extends AppCompatActivity implements LampiNotifyDelega
                     messageTextView.setText(connectionType);
                     setDeviceStatus(!deviceId.equals("Not Connected"));
 
+                    // Both transports are pointed at the same lamp where we
+                    // can; the controller selector uses whichever is faster.
                     if (connectionType.equals("Network"))
                     {
-                        MosquittoDriver.instance.setCurrentDevice(deviceId);
-                        MosquittoDriver.instance.setDelegate(this);
+                        // No BLE driver when Bluetooth failed to start.
+                        String mac = ble == null ? null : ble.getConnectedMac();
+                        if (mac != null && !deviceId.equals(ble.getDeviceId(mac))) {
+                            ble.disconnect();
+                        }
+                        showLamp(deviceId);
+                        showMqttLamp(deviceId);
                     }
-                    if (connectionType.equals("BlueTooth") && deviceId.contains(":")) {
+                    if (connectionType.equals("BlueTooth") && deviceId.contains(":") && ble != null) {
                         // Bluetooth device selected
-                        String mac = deviceId.split(" ")[1].replace("(", "").replace(")", "");
+                        // "LAMPI <id> (<mac>)"; the name has a space in it.
+                        String mac = deviceId.substring(deviceId.lastIndexOf('(') + 1, deviceId.lastIndexOf(')'));
                         ble.connect(mac, this, this);
+                        showBleLamp(mac);
                     } else {
                         // no device
                     }
@@ -1,107 +1,540 @@
 package com.example.myapplication;
 import org.eclipse.paho.client.mqttv3.*;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 
-import com.google.gson.*;
-
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class MosquittoDriver
 {
+    private static MosquittoDriver instance;
 
+    // Created on first use rather than when the class is loaded, so the
+    // client and its threads are only set up once startup asks for them.
+    public static synchronized MosquittoDriver get()
+    {
+        if(instance == null)
+        {
+            instance = new MosquittoDriver();
+        }
+        return instance;
+    }
 
-    public static MosquittoDriver instance = new MosquittoDriver();
-    private MqttAsyncClient client;
-    private String device;
+    private final MqttConnectionManager connection;
+    private boolean watchingNetwork = false;
+    private volatile String device;
     private final String clientName = UUID.randomUUID().toString() + " Android";
-    private LampMQTTDelegate delegate;
+    private volatile LampMQTTDelegate delegate;
+    private volatile ConfirmationListener confirmations;
+
+    public interface ConfirmationListener
+    {
+        // The current lamp applied the hedged command with this sequence
+        // number. Called on the Paho thread.
+        void onLampConfirmed(long seq);
+    }
+    // Guarded by itself; publishes come from the UI thread and the timer.
+    private final LampStateCodec codec = new LampStateCodec(clientName);
+
+    // Slider drags offer a state per progress tick; the broker sees at most
+    // this many per second, always including the final one.
+    private static final double DEFAULT_PUBLISH_RATE_HZ = 10;
+
+    private static final String DEVICES_PREFIX = "devices/";
+    private static final String CHANGED_SUFFIX = "/lamp/changed";
+    private static final String CHANGED_ALL = DEVICES_PREFIX + "+" + CHANGED_SUFFIX;
+
+    private final ScheduledExecutorService timer = DriverExecutor.get().getScheduler();
+
+    // Paho 1.0.2 allows 10 unacknowledged QoS 1 publishes per client; two
+    // are left for the control sliders. A lamp in flight is waiting for its
+    // changed report, which comes after the ack.
+    private static final int GROUP_MAX_IN_FLIGHT = 8;
+    private static final long GROUP_TIMEOUT_MILLIS = 8000;
+
+    // Commands issued while disconnected wait in a file-backed outbox and
+    // are drained in order once connected, a few per tick.
+    private static final String OUTBOX_FILE = "mqtt-outbox";
+    private static final int DRAIN_MAX_IN_FLIGHT = 6;
+    private static final int DRAIN_PER_TICK = 4;
+    private static final long DRAIN_TICK_MILLIS = 50;
+
+    private volatile CommandOutbox outbox;
+    private volatile OutboxDrainer drainer;
+    private boolean draining = false;
+    private final Runnable drainTick = new Runnable()
+    {
+        public void run()
+        {
+            boolean more = connection.isConnected() && drainer.tick();
+            synchronized(MosquittoDriver.this)
+            {
+                draining = more;
+            }
+            if(more)
+            {
+                timer.schedule(drainTick, DRAIN_TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    // A group lamp is done when it reports the new state, not when the
+    // broker acks the publish. The group deadline leaves room for the lamp
+    // to apply the state and publish after the broker has taken it.
+    private final LampEchoTracker groupEchoes = new LampEchoTracker(LampEchoTracker.LAMP_TOLERANCE);
+    private final GroupController group = new GroupController(new GroupController.Transport()
+    {
+        public void apply(final String deviceId, LampState state, final GroupController.Completion completion)
+        {
+            groupEchoes.expect(deviceId, state, completion);
+            boolean started = publishTo(deviceId, state, new IMqttActionListener()
+            {
+                public void onSuccess(IMqttToken token)
+                {
+                }
+
+                public void onFailure(IMqttToken token, Throwable e)
+                {
+                    groupEchoes.cancel(deviceId, completion);
+                }
+            });
+            if(!started)
+            {
+                groupEchoes.cancel(deviceId, completion);
+            }
+        }
+    }, GROUP_MAX_IN_FLIGHT, timer, GROUP_TIMEOUT_MILLIS);
+    // Control publishes from send to the broker's ack, and on until the
+    // current lamp reports the state back naming us as its client. Only
+    // the second is what the user waits for; a report caused by a BLE
+    // write names another client and does not count.
+    private final LatencyHistogram publishAck = new LatencyHistogram();
+    private final LatencyHistogram controlEcho = new LatencyHistogram();
+    private final LampEchoTracker controlEchoes = new LampEchoTracker(LampEchoTracker.LAMP_TOLERANCE);
+    private final PublishThrottle throttle = new PublishThrottle(DEFAULT_PUBLISH_RATE_HZ, new PublishThrottle.Publisher()
+    {
+        public void publish(LampState state)
+        {
+            sendState(state);
+        }
+    });
+    private final Runnable flushThrottle = new Runnable()
+    {
+        public void run()
+        {
+            throttle.flush(SystemClock.elapsedRealtime());
+        }
+    };
+
+    // Remote updates are coalesced on the Paho thread and handed to the
+    // delegate at most once per frame.
+    private final InboundStateCoalescer inbound = new InboundStateCoalescer();
+    // Static so the control screen can paint from it before the driver
+    // exists.
+    private static final LampStateCache states = new LampStateCache();
+    private volatile Choreographer frames;
+    private final Choreographer.FrameCallback deliverInbound = new Choreographer.FrameCallback()
+    {
+        public void doFrame(long frameTimeNanos)
+        {
+            LampState state = inbound.take();
+            LampMQTTDelegate target = delegate;
+            if(state != null && target != null)
+            {
+                target.receiveState(state.isOn, state.h, state.s, state.brightness);
+            }
+        }
+    };
 
 
     private MosquittoDriver()
     {
+        connection = new MqttConnectionManager(timer, new LampiCallback(), new MqttConnectionManager.Listener()
+        {
+            public void onConnected(boolean sessionPresent)
+            {
+                // A resumed session still has the wildcard subscription.
+                if(!sessionPresent)
+                {
+                    subscribeAll();
+                }
+                startDrain();
+            }
+
+            public void onConnectionLost()
+            {
+            }
+        });
+    }
+
+    // Starts connecting in the background; safe to call more than once.
+    public void start()
+    {
+        connection.start();
+    }
+
+    public void setBrokerUri(String uri)
+    {
+        connection.setBrokerUri(uri);
+    }
+
+    public MqttConnectionManager getConnection()
+    {
+        return connection;
+    }
+
+    // Retries straight away when a network comes up instead of waiting out
+    // the backoff, which is what makes recovery after an access point
+    // handover fast.
+    public synchronized void watchNetwork(Context context)
+    {
+        if(watchingNetwork)
+        {
+            return;
+        }
+        watchingNetwork = true;
+        ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivity.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback()
+        {
+            @Override
+            public void onAvailable(Network network)
+            {
+                connection.reconnectNow();
+            }
+        });
+    }
+
+    // Opens (and recovers) the outbox; until this is called commands issued
+    // while disconnected are dropped.
+    public synchronized void setOutboxDirectory(File directory)
+    {
+        if(outbox != null)
+        {
+            return;
+        }
         try
         {
-            Log.d("Mqtt", "Connecting to server");
-            client = new MqttAsyncClient("tcp://iot.eclipse.org:1883", MqttAsyncClient.generateClientId());
-            MqttConnectOptions opts = new MqttConnectOptions();
-            opts.setCleanSession(true);
-            client.setCallback(new LampiCallback());
-            client.connect(opts);
+            outbox = new CommandOutbox(new File(directory, OUTBOX_FILE));
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            Log.d("mqtt", "Conncetion error");
-            //"+me.getReasonCode());e.getReasonCode()
-            Log.d("mqtt", e.getMessage() + " ");
-            Log.d("mqtt", e.getLocalizedMessage());
-            //Log.d("mqtt", e.getCause().toString());
+            Log.d("Mqtt", "Could not open outbox " + e.getMessage());
+            return;
+        }
+        drainer = new OutboxDrainer(outbox, new OutboxDrainer.Sender()
+        {
+            public boolean send(CommandOutbox.Entry entry, final GroupController.Completion completion)
+            {
+                return publishTo(entry.deviceId, entry.state, new IMqttActionListener()
+                {
+                    public void onSuccess(IMqttToken token)
+                    {
+                        completion.complete(true);
+                    }
 
+                    public void onFailure(IMqttToken token, Throwable e)
+                    {
+                        completion.complete(false);
+                    }
+                });
+            }
+        }, DRAIN_MAX_IN_FLIGHT, DRAIN_PER_TICK);
+        if(connection.isConnected())
+        {
+            startDrain();
+        }
+    }
 
+    private void startDrain()
+    {
+        synchronized(this)
+        {
+            if(drainer == null || draining)
+            {
+                return;
+            }
+            draining = true;
         }
+        timer.execute(drainTick);
     }
 
-    public void setCurrentDevice(String deviceName)
+    public CommandOutbox getOutbox()
+    {
+        return outbox;
+    }
+
+    public String describeOutbox()
+    {
+        return outbox == null ? "no outbox" : outbox.describe() + " " + drainer.describe();
+    }
+
+    // One subscription covers every lamp; messages for lamps other than the
+    // current one only update the cache.
+    private void subscribeAll()
     {
         try
         {
-            Log.d("Mqtt", "Subsribing device");
-            client.subscribe("devices/" + deviceName + "/lamp/changed", 1);
-            client.unsubscribe("devices/" + device + "/lamp/changed");
-            this.device = deviceName;
-
+            Log.d("Mqtt", "Subscribing to all lamps");
+            connection.getClient().subscribe(CHANGED_ALL, 1);
         }
         catch (Exception e)
         {
-            Log.d("Mqtt", "Error Subsribing device");
-            this.device = deviceName;
+            Log.d("Mqtt", "Error subscribing");
+        }
+    }
+
+    // Switching is local: the cached state, if any, is delivered on the
+    // next frame instead of waiting for the lamp to change.
+    public void setCurrentDevice(String deviceName)
+    {
+        // A trailing value still waiting in the throttle is where the user
+        // left the old lamp; send it there before switching.
+        throttle.flush(SystemClock.elapsedRealtime());
+        this.device = deviceName;
+        throttle.reset();
+        inbound.reset();
+
+        LampState cached = states.get(deviceName);
+        if(cached != null && inbound.offer(cached))
+        {
+            Choreographer target = frames;
+            if(target != null)
+            {
+                target.postFrameCallback(deliverInbound);
+            }
+        }
+    }
+
+    public static LampStateCache getStateCache()
+    {
+        return states;
+    }
+
+    // "devices/<id>/lamp/changed" -> "<id>", or null for other topics.
+    static String deviceFromTopic(String topic)
+    {
+        if(!topic.startsWith(DEVICES_PREFIX) || !topic.endsWith(CHANGED_SUFFIX)
+                || topic.length() <= DEVICES_PREFIX.length() + CHANGED_SUFFIX.length())
+        {
+            return null;
         }
+        return topic.substring(DEVICES_PREFIX.length(), topic.length() - CHANGED_SUFFIX.length());
     }
 
+    // Must be called on the UI thread, which is where the delegate hears
+    // about remote state.
     public void setDelegate(LampMQTTDelegate delegate)
     {
         this.delegate = delegate;
+        frames = Choreographer.getInstance();
+        if(inbound.isDeliveryScheduled())
+        {
+            // Arrived before there was a thread to deliver on.
+            frames.postFrameCallback(deliverInbound);
+        }
     }
 
     public void publishState(boolean isOn, double h, double s, double brightness)
     {
-        if(client.isConnected())
+        long now = SystemClock.elapsedRealtime();
+        if(throttle.offer(new LampState(isOn, h, s, brightness), now))
         {
-            Log.d("Mqtt", "Publishing state");
+            timer.schedule(flushThrottle, throttle.getFlushDelay(now), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Connected, with a lamp to publish to.
+    public boolean isReady()
+    {
+        return device != null && connection.isConnected();
+    }
+
+    public String getCurrentDevice()
+    {
+        return device;
+    }
+
+    public LatencyHistogram getPublishAckLatency()
+    {
+        return publishAck;
+    }
+
+    public LatencyHistogram getControlEchoLatency()
+    {
+        return controlEcho;
+    }
+
+    // Publishes one leg of a hedged write straight away, bypassing the
+    // throttle and the outbox; the lamp's changed message carrying seq
+    // confirms it. Returns false if it could not be sent.
+    public boolean publishSequenced(LampState state, long seq)
+    {
+        String target = device;
+        return target != null && publishTo(target, state, seq, null);
+    }
+
+    public void setConfirmationListener(ConfirmationListener listener)
+    {
+        confirmations = listener;
+    }
 
-            JsonObject newState = new JsonObject();
-            newState.addProperty("client", clientName);
-            newState.addProperty("brightness", brightness);
-            newState.addProperty("on", isOn);
+    public void setMaxPublishRate(double hz)
+    {
+        throttle.setMaxRate(hz);
+    }
 
-            JsonObject newColor = new JsonObject();
-            newColor.addProperty("h", h);
-            newColor.addProperty("s", s);
+    public PublishThrottle getPublishThrottle()
+    {
+        return throttle;
+    }
 
-            newState.add("color", newColor);
+    public String describePublishing()
+    {
+        MqttAsyncClient client = connection.getClient();
+        return throttle.describe() + " in flight=" + (client == null ? 0 : client.getPendingDeliveryTokens().length)
+                + " ack " + publishAck + " echo " + controlEcho;
+    }
 
-            Log.d("Mqtt", newState.toString());
+    public InboundStateCoalescer getInbound()
+    {
+        return inbound;
+    }
 
-            MqttMessage stateMsg = new MqttMessage(newState.toString().getBytes());
+    public String describeInbound()
+    {
+        return inbound.describe();
+    }
+
+    private void sendState(LampState state)
+    {
+        final String target = device;
+        if(target == null)
+        {
+            return;
+        }
+        CommandOutbox pending = outbox;
+        final long sentAt = System.nanoTime();
+        final GroupController.Completion echoed = new GroupController.Completion()
+        {
+            public void complete(boolean success)
+            {
+                if(success)
+                {
+                    controlEcho.record(System.nanoTime() - sentAt);
+                }
+            }
+        };
+        controlEchoes.expect(target, state, echoed);
+        try
+        {
+            if(publishTo(target, state, new IMqttActionListener()
+            {
+                public void onSuccess(IMqttToken token)
+                {
+                    publishAck.record(System.nanoTime() - sentAt);
+                }
+
+                public void onFailure(IMqttToken token, Throwable e)
+                {
+                    controlEchoes.cancel(target, echoed);
+                }
+            }))
+            {
+                // Anything older for this lamp is now stale.
+                if(pending != null)
+                {
+                    pending.discard(target);
+                }
+            }
+            else
+            {
+                controlEchoes.cancel(target, echoed);
+                if(pending != null)
+                {
+                    pending.put(target, state);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Log.d("Mqtt", "Outbox write failed " + e.getMessage());
+        }
+    }
+
+    // Returns false if the publish could not be started; otherwise the
+    // listener, if any, hears about the broker's ack.
+    private boolean publishTo(String deviceId, LampState state, IMqttActionListener listener)
+    {
+        return publishTo(deviceId, state, -1, listener);
+    }
+
+    private boolean publishTo(String deviceId, LampState state, long seq, IMqttActionListener listener)
+    {
+        MqttAsyncClient client = connection.getClient();
+        if(client != null && client.isConnected())
+        {
+            MqttMessage stateMsg;
+            synchronized(codec)
+            {
+                codec.encode(state.isOn, state.h, state.s, state.brightness, seq);
+                // Paho keeps the payload array until delivery, so it gets a copy.
+                stateMsg = new MqttMessage(codec.toByteArray());
+            }
+            if(TraceLog.isLoggable(TraceLog.MQTT_PUBLISH))
+            {
+                TraceLog.trace(TraceLog.MQTT_PUBLISH, seq, stateMsg.getPayload().length);
+            }
 
             try {
-                client.publish("devices/" + device + "/lamp/set_config", stateMsg);
+                client.publish(DEVICES_PREFIX + deviceId + "/lamp/set_config", stateMsg, null, listener);
+                return true;
             } catch (Exception e) {
-                Log.d("Mosqutto", "could not send message");
+                TraceLog.trace(TraceLog.MQTT_PUBLISH_FAILED, 1);
             }
         }
         else
         {
-            Log.d("Mosquitto", "Client disconnected");
+            TraceLog.trace(TraceLog.MQTT_PUBLISH_FAILED, 0);
         }
+        return false;
+    }
+
+    // Sets every lamp in deviceIds to the same state. Publishes are
+    // pipelined; a lamp counts as done when it reports the state back.
+    public GroupController.GroupRun applyToGroup(List<String> deviceIds, boolean isOn, double h, double s,
+                                                 double brightness, GroupController.Listener listener)
+    {
+        return group.apply(deviceIds, new LampState(isOn, h, s, brightness), listener);
     }
 
+    public GroupController getGroupController()
+    {
+        return group;
+    }
 
     class LampiCallback implements MqttCallback
     {
+        // Only used on the Paho callback thread.
+        private final LampStateCodec.Decoder decoder = new LampStateCodec.Decoder();
 
         public void connectionLost(Throwable cause)
         {
-
+            // Commands are queued in the outbox until reconnected.
+            TraceLog.trace(TraceLog.MQTT_CONNECTION_LOST, 0);
         }
 
         public void deliveryComplete(IMqttDeliveryToken token)
@@ -111,40 +544,59 @@ public class MosquittoDriver
 
         public void messageArrived(String topic, MqttMessage message)
         {
-
-            try {
-                Log.d("Mqtt", "Receiving state");
-                String jsonString = message.toString();
-                JsonElement parsed = new JsonParser().parse(jsonString);
-                JsonObject newState = parsed.getAsJsonObject();
-
-                Log.d("Mqtt", "Converted to JSON obj");
-                if(!newState.getAsJsonObject("client").getAsString().equals(clientName)) {
-
-                    JsonObject color = newState.getAsJsonObject("color");
-                    JsonObject hue = color.getAsJsonObject("h");
-                    JsonObject sat = color.getAsJsonObject("s");
-                    double h = hue.getAsDouble();
-                    double s = sat.getAsDouble();
-
-                    JsonObject brightness = newState.getAsJsonObject("brightness");
-                    double b = brightness.getAsDouble();
-
-                    JsonObject on = newState.getAsJsonObject("on");
-                    boolean isOn = on.getAsBoolean();
-
-                    if (delegate != null) {
-                        Log.d("Mqtt", "Parsed full json obj");
-                        delegate.receiveState(isOn, h, s, b);
-                    }
+            //{"color": {"h": 0.25, "s": 0.74}, "on": true, "client": "lamp_ui", "brightness": 1.0}
+            if(!decoder.decode(message.getPayload())
+                    || !(decoder.hasOn && decoder.hasH && decoder.hasS && decoder.hasBrightness))
+            {
+                inbound.noteMalformed();
+                return;
+            }
+            String deviceId = deviceFromTopic(topic);
+            if(deviceId == null)
+            {
+                return;
+            }
+            boolean current = deviceId.equals(device);
+            if(TraceLog.isLoggable(TraceLog.MQTT_MESSAGE))
+            {
+                TraceLog.trace(TraceLog.MQTT_MESSAGE, message.getPayload().length, current ? 1 : 0);
+            }
+            // Our own echoes still reflect the lamp's state, so they are cached.
+            LampState state = new LampState(decoder.isOn, decoder.h, decoder.s, decoder.brightness);
+            states.put(deviceId, state);
+            groupEchoes.onReported(deviceId, state);
+            boolean ours = decoder.isFromClient(codec.getClientBytes());
+            if(ours)
+            {
+                controlEchoes.onReported(deviceId, state);
+            }
+            if(!current)
+            {
+                return;
+            }
+            if(ours)
+            {
+                // Only credit the MQTT leg for commands it delivered: the lamp
+                // also reports a hedged command the BLE leg got there first
+                // with, carrying the same seq but the Bluetooth client.
+                ConfirmationListener confirmed = confirmations;
+                if(decoder.hasSeq && confirmed != null)
+                {
+                    confirmed.onLampConfirmed(decoder.seq);
                 }
+                inbound.noteEcho();
+                return;
             }
-            catch (Exception e)
+            if(inbound.offer(state))
             {
-                Log.d("Json", "parsing error");
+                // Read after offer() so a concurrent setDelegate() either sees
+                // the scheduled delivery or publishes its Choreographer to us.
+                Choreographer target = frames;
+                if(target != null)
+                {
+                    target.postFrameCallback(deliverInbound);
+                }
             }
-
-            //{"color": {"h": 0.25, "s": 0.74}, "on": true, "client": "lamp_ui", "brightness": 1.0}
         }
     }
 
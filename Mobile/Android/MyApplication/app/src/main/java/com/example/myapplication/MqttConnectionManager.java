@@ -0,0 +1,280 @@
+package com.example.myapplication;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Keeps an MQTT connection up: connects, and after a failed attempt or a
+// lost connection tries again with jittered exponential backoff. The client
+// id stays the same and sessions are persistent, so the broker keeps our
+// subscriptions and queued QoS 1 messages across a reconnect.
+public class MqttConnectionManager
+{
+    public interface Listener
+    {
+        // sessionPresent is true when the broker still had our session, in
+        // which case there is no need to subscribe again.
+        void onConnected(boolean sessionPresent);
+
+        void onConnectionLost();
+    }
+
+    public static final String DEFAULT_BROKER_URI = "tcp://iot.eclipse.org:1883";
+
+    private static final long BACKOFF_BASE_MILLIS = 500;
+    private static final long BACKOFF_MAX_MILLIS = 30000;
+    // Short keep alive so a dead link after an access point handover is
+    // noticed in seconds rather than a minute.
+    private static final int KEEP_ALIVE_SECONDS = 15;
+    private static final int CONNECT_TIMEOUT_SECONDS = 10;
+
+    private final ScheduledExecutorService timer;
+    private final MqttCallback callback;
+    private final Listener listener;
+    private final String clientId = MqttAsyncClient.generateClientId();
+    private final Backoff backoff = new Backoff(BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS);
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+
+    private String brokerUri = DEFAULT_BROKER_URI;
+    private MqttAsyncClient client;
+    private boolean started = false;
+    private boolean connecting = false;
+    private ScheduledFuture<?> retry = null;
+
+    private final Runnable attempt = new Runnable()
+    {
+        public void run()
+        {
+            connect();
+        }
+    };
+
+    public MqttConnectionManager(ScheduledExecutorService timer, MqttCallback callback, Listener listener)
+    {
+        this.timer = timer;
+        this.callback = callback;
+        this.listener = listener;
+    }
+
+    public synchronized void start()
+    {
+        if(started)
+        {
+            return;
+        }
+        started = true;
+        timer.execute(attempt);
+    }
+
+    // Switches to another broker; the old connection is dropped.
+    public void setBrokerUri(String uri)
+    {
+        MqttAsyncClient old;
+        synchronized(this)
+        {
+            if(uri.equals(brokerUri))
+            {
+                return;
+            }
+            brokerUri = uri;
+            old = client;
+            client = null;
+            connecting = false;
+        }
+        closeQuietly(old);
+        metrics.onConnectionLost(SystemClock.elapsedRealtime());
+        reconnectNow();
+    }
+
+    public synchronized String getBrokerUri()
+    {
+        return brokerUri;
+    }
+
+    // Skips the rest of the backoff, e.g. when the network came back.
+    public void reconnectNow()
+    {
+        synchronized(this)
+        {
+            if(!started || isConnected())
+            {
+                return;
+            }
+            backoff.reset();
+            if(retry != null)
+            {
+                retry.cancel(false);
+                retry = null;
+            }
+        }
+        timer.execute(attempt);
+    }
+
+    public synchronized MqttAsyncClient getClient()
+    {
+        return client;
+    }
+
+    public synchronized boolean isConnected()
+    {
+        return client != null && client.isConnected();
+    }
+
+    public ConnectionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public String describe()
+    {
+        return getBrokerUri() + " " + metrics.describe(SystemClock.elapsedRealtime());
+    }
+
+    private void connect()
+    {
+        final MqttAsyncClient target;
+        synchronized(this)
+        {
+            retry = null;
+            if(connecting || isConnected())
+            {
+                return;
+            }
+            try
+            {
+                if(client == null)
+                {
+                    // Unsent QoS 1 commands live in the outbox, so the
+                    // client itself doesn't need to persist anything.
+                    client = new MqttAsyncClient(brokerUri, clientId, new MemoryPersistence());
+                    client.setCallback(new ManagedCallback());
+                }
+            }
+            catch(MqttException e)
+            {
+                Log.d("Mqtt", "Bad broker URI " + brokerUri);
+                return;
+            }
+            target = client;
+            connecting = true;
+        }
+
+        MqttConnectOptions opts = new MqttConnectOptions();
+        opts.setCleanSession(false);
+        opts.setKeepAliveInterval(KEEP_ALIVE_SECONDS);
+        opts.setConnectionTimeout(CONNECT_TIMEOUT_SECONDS);
+        metrics.onAttempt();
+        Log.d("Mqtt", "Connecting to server");
+        try
+        {
+            target.connect(opts, null, new IMqttActionListener()
+            {
+                public void onSuccess(IMqttToken token)
+                {
+                    if(!attemptFinished(target))
+                    {
+                        return;
+                    }
+                    backoff.reset();
+                    metrics.onConnected(SystemClock.elapsedRealtime());
+                    listener.onConnected(token.getSessionPresent());
+                }
+
+                public void onFailure(IMqttToken token, Throwable e)
+                {
+                    Log.d("Mqtt", "Connection failed " + e);
+                    if(attemptFinished(target))
+                    {
+                        metrics.onAttemptFailed();
+                        scheduleRetry();
+                    }
+                }
+            });
+        }
+        catch(MqttException e)
+        {
+            Log.d("Mqtt", "Connection error " + e.getReasonCode());
+            if(attemptFinished(target))
+            {
+                metrics.onAttemptFailed();
+                scheduleRetry();
+            }
+        }
+    }
+
+    // Returns false if the attempt belongs to a client we already replaced.
+    private synchronized boolean attemptFinished(MqttAsyncClient target)
+    {
+        if(target != client)
+        {
+            return false;
+        }
+        connecting = false;
+        return true;
+    }
+
+    private synchronized void scheduleRetry()
+    {
+        if(retry != null)
+        {
+            return;
+        }
+        long delay = backoff.nextDelay();
+        Log.d("Mqtt", "Reconnecting in " + delay + "ms");
+        retry = timer.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeQuietly(MqttAsyncClient old)
+    {
+        if(old == null)
+        {
+            return;
+        }
+        try
+        {
+            if(old.isConnected())
+            {
+                old.disconnectForcibly(0, 0);
+            }
+            old.close();
+        }
+        catch(MqttException e)
+        {
+            Log.d("Mqtt", "Error closing old client");
+        }
+    }
+
+    class ManagedCallback implements MqttCallback
+    {
+        public void connectionLost(Throwable cause)
+        {
+            metrics.onConnectionLost(SystemClock.elapsedRealtime());
+            listener.onConnectionLost();
+            callback.connectionLost(cause);
+            scheduleRetry();
+        }
+
+        public void messageArrived(String topic, MqttMessage message) throws Exception
+        {
+            callback.messageArrived(topic, message);
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token)
+        {
+            callback.deliveryComplete(token);
+        }
+    }
+}
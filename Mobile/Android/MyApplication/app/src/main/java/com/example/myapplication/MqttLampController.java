@@ -0,0 +1,45 @@
+package com.example.myapplication;
+
+// Controls MosquittoDriver's current lamp. Round trips are control
+// publishes from send until the lamp reports the state back, the same
+// thing a BLE write round trip covers; MosquittoDriver's throttle
+// already keeps slider drags to a sane publish rate, so streaming needs
+// nothing extra here.
+public class MqttLampController implements LampController
+{
+    private final MosquittoDriver mqtt;
+
+    public MqttLampController(MosquittoDriver mqtt)
+    {
+        this.mqtt = mqtt;
+    }
+
+    public String getName()
+    {
+        return "MQTT";
+    }
+
+    public boolean isAvailable()
+    {
+        return mqtt.isReady();
+    }
+
+    public void apply(LampLevels levels)
+    {
+        mqtt.publishState(levels.isOn, LampLevels.toUnit(levels.h), LampLevels.toUnit(levels.s),
+                LampLevels.toUnit(levels.v));
+    }
+
+    public void beginStreaming()
+    {
+    }
+
+    public void endStreaming()
+    {
+    }
+
+    public LatencyHistogram getRoundTrip()
+    {
+        return mqtt.getControlEchoLatency();
+    }
+}
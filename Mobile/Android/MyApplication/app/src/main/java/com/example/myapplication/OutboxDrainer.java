@@ -0,0 +1,143 @@
+package com.example.myapplication;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+// Sends the outbox once the connection is back, in order, with a bounded
+// number of unacknowledged sends and a bounded number started per tick so a
+// large backlog doesn't crowd out live control traffic. Entries leave the
+// outbox only when their send is acknowledged.
+public class OutboxDrainer
+{
+    public interface Sender
+    {
+        // Returns false if the send could not be started; otherwise calls
+        // completion once the broker acked or refused it.
+        boolean send(CommandOutbox.Entry entry, GroupController.Completion completion);
+    }
+
+    private final CommandOutbox outbox;
+    private final Sender sender;
+    private final int maxInFlight;
+    private final int maxPerTick;
+
+    private final HashSet<String> inFlight = new HashSet<String>();
+    private long started = 0;
+    private long acked = 0;
+    private long failed = 0;
+    private long drainStartedAt = -1;
+    private long lastDrainNanos = -1;
+
+    public OutboxDrainer(CommandOutbox outbox, Sender sender, int maxInFlight, int maxPerTick)
+    {
+        this.outbox = outbox;
+        this.sender = sender;
+        this.maxInFlight = maxInFlight;
+        this.maxPerTick = maxPerTick;
+    }
+
+    // Starts the next sends. Returns true while the outbox still has work,
+    // i.e. the caller should tick again after its drain interval.
+    public boolean tick()
+    {
+        List<CommandOutbox.Entry> batch;
+        synchronized(this)
+        {
+            if(drainStartedAt < 0 && !outbox.isEmpty())
+            {
+                drainStartedAt = System.nanoTime();
+            }
+            int room = Math.min(maxPerTick, maxInFlight - inFlight.size());
+            if(room <= 0)
+            {
+                return true;
+            }
+            batch = outbox.next(room, inFlight);
+            for(CommandOutbox.Entry entry : batch)
+            {
+                inFlight.add(entry.deviceId);
+            }
+        }
+        for(final CommandOutbox.Entry entry : batch)
+        {
+            boolean sending = sender.send(entry, new GroupController.Completion()
+            {
+                public void complete(boolean success)
+                {
+                    finished(entry, success);
+                }
+            });
+            synchronized(this)
+            {
+                started++;
+                if(!sending)
+                {
+                    // Connection went away again; keep it for the next drain.
+                    failed++;
+                    inFlight.remove(entry.deviceId);
+                }
+            }
+            if(!sending)
+            {
+                break;
+            }
+        }
+        return hasWork();
+    }
+
+    private void finished(CommandOutbox.Entry entry, boolean success)
+    {
+        if(success)
+        {
+            try
+            {
+                outbox.remove(entry);
+            }
+            catch(IOException e)
+            {
+                // Sent anyway; at worst it is sent again after a restart.
+            }
+        }
+        synchronized(this)
+        {
+            inFlight.remove(entry.deviceId);
+            if(success)
+            {
+                acked++;
+            }
+            else
+            {
+                failed++;
+            }
+            if(drainStartedAt >= 0 && inFlight.isEmpty() && outbox.isEmpty())
+            {
+                lastDrainNanos = System.nanoTime() - drainStartedAt;
+                drainStartedAt = -1;
+            }
+        }
+    }
+
+    public synchronized boolean hasWork()
+    {
+        return !inFlight.isEmpty() || !outbox.isEmpty();
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight.size();
+    }
+
+    // How long the last backlog took from first tick to last ack, or -1.
+    public synchronized long getLastDrainNanos()
+    {
+        return lastDrainNanos;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "started=%d acked=%d failed=%d in flight=%d last drain=%dms",
+                started, acked, failed, inFlight.size(), lastDrainNanos < 0 ? -1 : lastDrainNanos / 1000000);
+    }
+}
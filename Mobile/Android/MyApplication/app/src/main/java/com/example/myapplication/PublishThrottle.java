@@ -0,0 +1,165 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// Rate limits state publishes. Values offered faster than the configured
+// rate replace each other and the newest one is always published once the
+// interval has passed (trailing edge), so the lamp ends up where the slider
+// stopped. States equal to the last published one are skipped.
+public class PublishThrottle
+{
+    public interface Publisher
+    {
+        void publish(LampState state);
+    }
+
+    private final Publisher publisher;
+    private long intervalMillis;
+
+    private LampState pending = null;
+    private LampState lastPublished = null;
+    private long lastPublishAt = Long.MIN_VALUE / 2;
+    private boolean flushPending = false;
+
+    private long firstOfferAt = -1;
+    private long lastOfferAt = 0;
+    private long offered = 0;
+    private long published = 0;
+    private long coalesced = 0;
+    private long unchanged = 0;
+
+    public PublishThrottle(double maxRateHz, Publisher publisher)
+    {
+        this.publisher = publisher;
+        setMaxRate(maxRateHz);
+    }
+
+    public synchronized void setMaxRate(double maxRateHz)
+    {
+        intervalMillis = Math.max(1, Math.round(1000.0 / maxRateHz));
+    }
+
+    // Returns true if the caller needs to schedule a flush() after
+    // getFlushDelay() to publish the trailing value.
+    public boolean offer(LampState state, long now)
+    {
+        LampState toPublish;
+        synchronized(this)
+        {
+            offered++;
+            if(firstOfferAt < 0)
+            {
+                firstOfferAt = now;
+            }
+            lastOfferAt = now;
+            if(pending == null && state.equals(lastPublished))
+            {
+                unchanged++;
+                return false;
+            }
+            if(pending != null)
+            {
+                coalesced++;
+            }
+            pending = state;
+            if(flushPending)
+            {
+                return false;
+            }
+            if(now - lastPublishAt < intervalMillis)
+            {
+                flushPending = true;
+                return true;
+            }
+            toPublish = takePending(now);
+        }
+        publisher.publish(toPublish);
+        return false;
+    }
+
+    public synchronized long getFlushDelay(long now)
+    {
+        return Math.max(0, lastPublishAt + intervalMillis - now);
+    }
+
+    public void flush(long now)
+    {
+        LampState toPublish;
+        synchronized(this)
+        {
+            flushPending = false;
+            if(pending == null)
+            {
+                return;
+            }
+            if(pending.equals(lastPublished))
+            {
+                unchanged++;
+                pending = null;
+                return;
+            }
+            toPublish = takePending(now);
+        }
+        publisher.publish(toPublish);
+    }
+
+    // Forgets what was published, e.g. after switching to another lamp.
+    public synchronized void reset()
+    {
+        pending = null;
+        lastPublished = null;
+    }
+
+    public synchronized int getQueueDepth()
+    {
+        return pending == null ? 0 : 1;
+    }
+
+    public synchronized long getOfferedCount()
+    {
+        return offered;
+    }
+
+    public synchronized long getPublishedCount()
+    {
+        return published;
+    }
+
+    public synchronized long getCoalescedCount()
+    {
+        return coalesced;
+    }
+
+    public synchronized long getUnchangedCount()
+    {
+        return unchanged;
+    }
+
+    public synchronized LampState getLastPublished()
+    {
+        return lastPublished;
+    }
+
+    // Publishes per second between the first and the latest offer.
+    public synchronized double getPublishRate()
+    {
+        long elapsed = lastOfferAt - firstOfferAt;
+        return elapsed <= 0 ? published : published * 1000.0 / elapsed;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "offered=%d published=%d (%.1f/s) coalesced=%d unchanged=%d pending=%d",
+                offered, published, getPublishRate(), coalesced, unchanged, getQueueDepth());
+    }
+
+    private LampState takePending(long now)
+    {
+        LampState state = pending;
+        pending = null;
+        lastPublished = state;
+        lastPublishAt = now;
+        published++;
+        return state;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.myapplication;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Locale;
+
+// Owns the one ScanCallback that is registered with the scanner, so stopping
+// always stops the scan that was started. Asking for a scan that is already
+// running in the same mode is a no-op (Android also throttles apps that
+// restart scans too often), and the session keeps duty-cycle figures.
+public class ScanSession
+{
+    // Outcomes of start().
+    public static final int STARTED = 0;
+    public static final int ALREADY_RUNNING = 1;
+    public static final int FAILED = 2;
+
+    public interface ResultHandler
+    {
+        void onScanResult(ScanResult result);
+    }
+
+    private final BluetoothAdapter adapter;
+    private final ResultHandler handler;
+
+    private ScanCallback active = null;
+    private BluetoothLeScanner activeScanner = null;
+    private int mode = -1;
+
+    private long firstStartedAt = 0;
+    private long startedAt = 0;
+    private long activeMillis = 0;
+    private long results = 0;
+    private int starts = 0;
+    private int dedupedStarts = 0;
+    private int failures = 0;
+
+    public ScanSession(BluetoothAdapter adapter, ResultHandler handler)
+    {
+        this.adapter = adapter;
+        this.handler = handler;
+    }
+
+    // Returns STARTED, ALREADY_RUNNING if a scan in this mode was already
+    // running, or FAILED if no scan could be started (Bluetooth is off).
+    public synchronized int start(int mode, List<ScanFilter> filters, ScanSettings settings)
+    {
+        if(active != null && this.mode == mode)
+        {
+            dedupedStarts++;
+            return ALREADY_RUNNING;
+        }
+        stop();
+
+        BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+        if(scanner == null)
+        {
+            // Bluetooth is off.
+            failures++;
+            return FAILED;
+        }
+        ScanCallback callback = new SessionCallback();
+        try
+        {
+            scanner.startScan(filters, settings, callback);
+        }
+        catch(IllegalStateException e)
+        {
+            // Turned off between getting the scanner and starting the scan.
+            Log.d("BLE", "Could not start scan " + e.getMessage());
+            failures++;
+            return FAILED;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if(firstStartedAt == 0)
+        {
+            firstStartedAt = now;
+        }
+        startedAt = now;
+        starts++;
+        this.mode = mode;
+        active = callback;
+        activeScanner = scanner;
+        return STARTED;
+    }
+
+    public synchronized void stop()
+    {
+        if(active == null)
+        {
+            return;
+        }
+        try
+        {
+            activeScanner.stopScan(active);
+        }
+        catch(IllegalStateException e)
+        {
+            // Adapter was turned off underneath us; the scan is gone anyway.
+            Log.d("BLE", "Scan already stopped");
+        }
+        activeMillis += SystemClock.elapsedRealtime() - startedAt;
+        active = null;
+        activeScanner = null;
+        mode = -1;
+    }
+
+    public synchronized boolean isActive()
+    {
+        return active != null;
+    }
+
+    public synchronized int getMode()
+    {
+        return mode;
+    }
+
+    public synchronized long getActiveMillis()
+    {
+        long total = activeMillis;
+        if(active != null)
+        {
+            total += SystemClock.elapsedRealtime() - startedAt;
+        }
+        return total;
+    }
+
+    public synchronized long getResultCount()
+    {
+        return results;
+    }
+
+    public synchronized double getResultsPerSecond()
+    {
+        long active = getActiveMillis();
+        return active == 0 ? 0 : results * 1000.0 / active;
+    }
+
+    // Share of the time since the first scan that the radio spent scanning.
+    public synchronized double getDutyCycle()
+    {
+        if(firstStartedAt == 0)
+        {
+            return 0;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - firstStartedAt;
+        return elapsed == 0 ? 1 : (double) getActiveMillis() / elapsed;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US,
+                "scan active=%b starts=%d deduped=%d failed=%d active=%dms duty=%.0f%% results=%d (%.1f/s)",
+                active != null, starts, dedupedStarts, failures, getActiveMillis(),
+                getDutyCycle() * 100, results, getResultsPerSecond());
+    }
+
+    private synchronized boolean countResults(ScanCallback callback, int count)
+    {
+        // Late callbacks from a scan we already stopped are ignored.
+        if(callback != active)
+        {
+            return false;
+        }
+        results += count;
+        return true;
+    }
+
+    class SessionCallback extends ScanCallback
+    {
+        public void onScanResult (int callbackType,
+                                  ScanResult result)
+        {
+            if(countResults(this, 1))
+            {
+                handler.onScanResult(result);
+            }
+        }
+
+        public void onBatchScanResults (List<ScanResult> batch)
+        {
+            if(countResults(this, batch.size()))
+            {
+                for (ScanResult result : batch)
+                {
+                    handler.onScanResult(result);
+                }
+            }
+        }
+
+        public void onScanFailed (int errorCode)
+        {
+            Log.d("BLE", "Scan failed " + errorCode);
+            synchronized(ScanSession.this)
+            {
+                failures++;
+                if(active == this)
+                {
+                    activeMillis += SystemClock.elapsedRealtime() - startedAt;
+                    active = null;
+                    activeScanner = null;
+                    mode = -1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.myapplication;
+
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.ShapeDrawable;
+import android.graphics.drawable.shapes.RectShape;
+
+// Draws the slider thumbs and the saturation track without allocating on
+// every progress tick. Each slider keeps one thumb bitmap that is redrawn in
+// place when its color changes, and the saturation track (white to the
+// current hue) comes from a cache with one gradient per hue step, built once
+// the track width is known.
+public class SliderThumbRenderer
+{
+    // Hue sliders run 0..100, so there are 101 distinct tracks and colors.
+    public static final int HUE_STEPS = 101;
+
+    private static final int STROKE_WIDTH = 4;
+
+    public class Thumb
+    {
+        private final Bitmap bitmap;
+        private final Canvas canvas;
+        private final BitmapDrawable drawable;
+        private int color;
+        private boolean drawn = false;
+
+        Thumb()
+        {
+            bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(bitmap);
+            drawable = new BitmapDrawable(resources, bitmap);
+        }
+
+        public Drawable getDrawable()
+        {
+            return drawable;
+        }
+
+        public int getColor()
+        {
+            return color;
+        }
+    }
+
+    private final Resources resources;
+    private final int size;
+    private final Paint strokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float[] hsv = new float[3];
+
+    private final Drawable[] saturationTracks = new Drawable[HUE_STEPS];
+    private final ColorStateList[] hueTextColors = new ColorStateList[HUE_STEPS];
+    private int trackWidth = -1;
+
+    private long redraws = 0;
+    private long skipped = 0;
+
+    public SliderThumbRenderer(Resources resources, int size)
+    {
+        this.resources = resources;
+        this.size = size;
+        strokePaint.setColor(Color.BLACK);
+        for(int i = 0; i < HUE_STEPS; i++)
+        {
+            hueTextColors[i] = ColorStateList.valueOf(hsvToColor(hueDegrees(i), 1.0f, 1.0f));
+        }
+    }
+
+    public Thumb newThumb(int color)
+    {
+        Thumb thumb = new Thumb();
+        recolor(thumb, color);
+        return thumb;
+    }
+
+    // Redraws the thumb if its color changed. Returns true if it did.
+    public boolean recolor(Thumb thumb, int color)
+    {
+        if(thumb.drawn && thumb.color == color)
+        {
+            skipped++;
+            return false;
+        }
+        float radius = size / 2f;
+        thumb.bitmap.eraseColor(Color.TRANSPARENT);
+        thumb.canvas.drawCircle(radius, radius, radius, strokePaint);
+        fillPaint.setColor(color);
+        thumb.canvas.drawCircle(radius, radius, radius - STROKE_WIDTH, fillPaint);
+        thumb.color = color;
+        thumb.drawn = true;
+        thumb.drawable.invalidateSelf();
+        redraws++;
+        return true;
+    }
+
+    // Color.HSVToColor without the array allocation; h in degrees.
+    public int hsvToColor(float h, float s, float v)
+    {
+        hsv[0] = h;
+        hsv[1] = s;
+        hsv[2] = v;
+        return Color.HSVToColor(hsv);
+    }
+
+    public static float hueDegrees(int hueStep)
+    {
+        return hueStep * 3.6f;
+    }
+
+    // Builds the saturation tracks for this width. Does nothing if the width
+    // didn't change, so it is fine to call on every layout.
+    public void setTrackWidth(int width)
+    {
+        if(width == trackWidth)
+        {
+            return;
+        }
+        trackWidth = width;
+        for(int i = 0; i < HUE_STEPS; i++)
+        {
+            int full = hsvToColor(hueDegrees(i), 1.0f, 1.0f);
+            saturationTracks[i] = gradient(width, new int[]{0xFFFFFFFF, full});
+        }
+    }
+
+    // White to the fully saturated hue, the same instance for the same step.
+    public Drawable getSaturationTrack(int hueStep)
+    {
+        return saturationTracks[clamp(hueStep)];
+    }
+
+    // Text color for the fully saturated hue; cached because
+    // TextView.setTextColor(int) allocates a ColorStateList on every call.
+    public ColorStateList getHueTextColor(int hueStep)
+    {
+        return hueTextColors[clamp(hueStep)];
+    }
+
+    public static Drawable gradient(float width, int[] colors)
+    {
+        ShapeDrawable shape = new ShapeDrawable(new RectShape());
+        shape.getPaint().setShader(new LinearGradient(0.f, 0.f, width, 0.0f, colors, null, Shader.TileMode.CLAMP));
+        return shape;
+    }
+
+    public String describe()
+    {
+        return "thumb redraws=" + redraws + " unchanged=" + skipped;
+    }
+
+    private static int clamp(int hueStep)
+    {
+        return Math.max(0, Math.min(HUE_STEPS - 1, hueStep));
+    }
+}
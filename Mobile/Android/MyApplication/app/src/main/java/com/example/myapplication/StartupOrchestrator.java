@@ -0,0 +1,142 @@
+package com.example.myapplication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Brings the transports up without holding up the first frame. Each one is
+// a task that creates and warms its driver; nothing runs until
+// onFirstFrame(), and then every task runs at once on its own thread, so
+// startup takes as long as the slowest transport rather than the sum. The
+// listener is called once, on the thread of the task that finished last.
+public class StartupOrchestrator
+{
+    public static final String FIRST_FRAME = "first frame";
+    public static final String READY = "ready";
+
+    public interface Clock
+    {
+        long nowMillis();
+    }
+
+    public interface Listener
+    {
+        // failed lists the tasks that threw; their drivers may be missing.
+        void onReady(ColdStartTrace trace, List<String> failed);
+    }
+
+    private final ColdStartTrace trace;
+    private final Clock clock;
+    private final List<String> names = new ArrayList<String>();
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final List<String> failed = new ArrayList<String>();
+    private Listener listener;
+    private boolean started = false;
+    private int pending = 0;
+
+    public StartupOrchestrator(long processStartMillis, Clock clock)
+    {
+        this.trace = new ColdStartTrace(processStartMillis);
+        this.clock = clock;
+    }
+
+    public synchronized void addTask(String name, Runnable task)
+    {
+        if(started)
+        {
+            throw new IllegalStateException("Startup already began");
+        }
+        names.add(name);
+        tasks.add(task);
+    }
+
+    public synchronized void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    // Starts every task; only the first call does anything.
+    public void onFirstFrame()
+    {
+        synchronized(this)
+        {
+            if(started)
+            {
+                return;
+            }
+            started = true;
+            pending = tasks.size();
+        }
+        trace.mark(FIRST_FRAME, clock.nowMillis());
+        if(tasks.isEmpty())
+        {
+            finish();
+            return;
+        }
+        for(int i = 0; i < tasks.size(); i++)
+        {
+            final String name = names.get(i);
+            final Runnable task = tasks.get(i);
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    runTask(name, task);
+                }
+            }, "startup-" + name).start();
+        }
+    }
+
+    private void runTask(String name, Runnable task)
+    {
+        boolean ok = false;
+        try
+        {
+            task.run();
+            ok = true;
+        }
+        catch(RuntimeException e)
+        {
+            // Reported to the listener; the other transports still start.
+        }
+        trace.mark(name, clock.nowMillis());
+        boolean last;
+        synchronized(this)
+        {
+            if(!ok)
+            {
+                failed.add(name);
+            }
+            last = --pending == 0;
+        }
+        if(last)
+        {
+            finish();
+        }
+    }
+
+    private void finish()
+    {
+        trace.mark(READY, clock.nowMillis());
+        Listener target;
+        List<String> failures;
+        synchronized(this)
+        {
+            target = listener;
+            failures = new ArrayList<String>(failed);
+        }
+        if(target != null)
+        {
+            target.onReady(trace, failures);
+        }
+    }
+
+    public synchronized boolean isStarted()
+    {
+        return started;
+    }
+
+    public ColdStartTrace getTrace()
+    {
+        return trace;
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.myapplication;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.UUID;
+
+// Driver events in a fixed size ring of primitive arrays: a timestamp, an
+// event id and two numbers each, so recording one allocates nothing and
+// builds no strings. Text is only made when the ring is dumped. Events
+// below the current level return before touching the ring; with ENABLED
+// (BuildConfig.TRACE_ENABLED) false every call is a constant-false branch
+// the compiler drops. Call sites whose arguments cost something to work
+// out check isLoggable() first, so they skip that work too.
+//
+// Each event has a fixed level: INFO for connection lifecycle and errors,
+// kept in release builds for field diagnostics; VERBOSE for per value
+// traffic, recorded by default only in debug builds.
+public class TraceLog
+{
+    public static final boolean ENABLED = BuildConfig.TRACE_ENABLED;
+
+    public static final int OFF = 0;
+    public static final int INFO = 1;
+    public static final int VERBOSE = 2;
+
+    public static final int SCAN_RESULT = 0;
+    public static final int GATT_STATE = 1;
+    public static final int GATT_READ = 2;
+    public static final int GATT_WRITE = 3;
+    public static final int GATT_DESCRIPTOR = 4;
+    public static final int GATT_NOTIFY = 5;
+    public static final int GATT_MTU = 6;
+    public static final int GATT_INTERVAL = 7;
+    public static final int GATT_PRIORITY = 8;
+    public static final int LAMP_READY = 9;
+    public static final int LAMP_POWER = 10;
+    public static final int LAMP_HS = 11;
+    public static final int LAMP_BRIGHTNESS = 12;
+    public static final int LAMP_STATE = 13;
+    public static final int LAMP_BAD_STATE = 14;
+    public static final int WRITE_SUBMIT = 15;
+    public static final int MQTT_PUBLISH = 16;
+    public static final int MQTT_PUBLISH_FAILED = 17;
+    public static final int MQTT_MESSAGE = 18;
+    public static final int MQTT_CONNECTION_LOST = 19;
+    public static final int STREAM_END = 20;
+
+    private static final String[] NAMES = {
+            "scan result", "gatt state", "gatt read", "gatt write", "gatt descriptor", "gatt notify",
+            "gatt mtu", "gatt interval", "gatt priority", "lamp ready", "lamp power", "lamp hs",
+            "lamp brightness", "lamp state", "lamp bad state", "write submit", "mqtt publish",
+            "mqtt publish failed", "mqtt message", "mqtt connection lost", "stream end"};
+    private static final String[] FORMATS = {
+            "rssi=%d mac=%012x", "status=%d state=%d", "characteristic=%04x status=%d",
+            "characteristic=%04x status=%d", "characteristic=%04x status=%d", "characteristic=%04x",
+            "mtu=%d status=%d", "interval=%d latency=%d", "priority=%d", "millis=%d reused=%d", "on=%d",
+            "h=%d s=%d", "b=%d", "state=%08x", "length=%d", "slot=%d length=%d", "seq=%d length=%d",
+            "connected=%d", "length=%d current=%d", "", "sent=%d dropped=%d"};
+    private static final int[] LEVELS = {
+            VERBOSE, INFO, VERBOSE, VERBOSE, VERBOSE, VERBOSE, INFO, INFO, INFO, INFO, VERBOSE, VERBOSE,
+            VERBOSE, VERBOSE, INFO, VERBOSE, VERBOSE, INFO, VERBOSE, INFO, VERBOSE};
+
+    private static final int DEFAULT_CAPACITY = 2048;
+    private static final TraceLog global = new TraceLog(DEFAULT_CAPACITY, BuildConfig.DEBUG ? VERBOSE : INFO);
+
+    private final long[] times;
+    private final int[] events;
+    private final long[] firsts;
+    private final long[] seconds;
+    private final int mask;
+    private volatile int level;
+    private long recorded = 0;
+
+    // capacity is rounded up to a power of two.
+    public TraceLog(int capacity, int level)
+    {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        times = new long[size];
+        events = new int[size];
+        firsts = new long[size];
+        seconds = new long[size];
+        mask = size - 1;
+        this.level = level;
+    }
+
+    public static TraceLog get()
+    {
+        return global;
+    }
+
+    // Whether the app wide ring records event at its current level.
+    public static boolean isLoggable(int event)
+    {
+        return global.records(event);
+    }
+
+    // Records into the app wide ring.
+    public static void trace(int event, long first, long second)
+    {
+        if(isLoggable(event))
+        {
+            global.record(event, first, second);
+        }
+    }
+
+    public static void trace(int event, long first)
+    {
+        trace(event, first, 0);
+    }
+
+    // The last 48 bits of a MAC such as "B8:27:EB:00:00:01", read without
+    // allocating.
+    public static long mac(String mac)
+    {
+        long value = 0;
+        for(int i = 0; i < mac.length(); i++)
+        {
+            int digit = Character.digit(mac.charAt(i), 16);
+            if(digit >= 0)
+            {
+                value = (value << 4) | digit;
+            }
+        }
+        return value & 0xFFFFFFFFFFFFL;
+    }
+
+    // The first 16 bits of a lamp characteristic UUID, which tell them apart.
+    public static long characteristic(UUID uuid)
+    {
+        return uuid.getMostSignificantBits() >>> 48;
+    }
+
+    public void record(int event, long first, long second)
+    {
+        if(!ENABLED || LEVELS[event] > level)
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized(this)
+        {
+            int i = (int) (recorded++ & mask);
+            times[i] = now;
+            events[i] = event;
+            firsts[i] = first;
+            seconds[i] = second;
+        }
+    }
+
+    public void setLevel(int level)
+    {
+        this.level = level;
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    public boolean records(int event)
+    {
+        return ENABLED && LEVELS[event] <= level;
+    }
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    public synchronized long getRecordedCount()
+    {
+        return recorded;
+    }
+
+    // Events that were pushed out of the ring by newer ones.
+    public synchronized long getOverwrittenCount()
+    {
+        return Math.max(0, recorded - times.length);
+    }
+
+    // Oldest first, one event per line, in milliseconds after the oldest.
+    public void dump(Writer out) throws IOException
+    {
+        long[] t;
+        int[] e;
+        long[] a;
+        long[] b;
+        long count;
+        synchronized(this)
+        {
+            t = times.clone();
+            e = events.clone();
+            a = firsts.clone();
+            b = seconds.clone();
+            count = recorded;
+        }
+        int size = (int) Math.min(count, t.length);
+        int start = (int) ((count - size) & mask);
+        long base = size == 0 ? 0 : t[start];
+        out.write(String.format(Locale.US, "# %d events, %d overwritten\n", count, count - size));
+        for(int n = 0; n < size; n++)
+        {
+            int i = (start + n) & mask;
+            long micros = (t[i] - base) / 1000;
+            out.write(String.format(Locale.US, "%d.%03d %s ", micros / 1000, micros % 1000, NAMES[e[i]]));
+            out.write(String.format(Locale.US, FORMATS[e[i]], a[i], b[i]));
+            out.write('\n');
+        }
+    }
+
+    public void dumpTo(File file) throws IOException
+    {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try
+        {
+            dump(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "trace level=%d events=%d overwritten=%d capacity=%d",
+                level, recorded, Math.max(0, recorded - times.length), times.length);
+    }
+}
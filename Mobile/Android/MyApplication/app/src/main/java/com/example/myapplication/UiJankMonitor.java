@@ -0,0 +1,114 @@
+package com.example.myapplication;
+
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+// How long the UI thread spends handling each kind of control event, and
+// how many frames were dropped while the controls were on screen.
+public class UiJankMonitor implements Choreographer.FrameCallback
+{
+    public static final int HUE = 0;
+    public static final int SATURATION = 1;
+    public static final int BRIGHTNESS = 2;
+    public static final int POWER = 3;
+    public static final int EVENT_COUNT = 4;
+
+    private static final String[] EVENT_NAMES = {"hue", "saturation", "brightness", "power"};
+    private static final long FRAME_NANOS = 16666667;
+
+    private final LatencyHistogram[] uiTime = new LatencyHistogram[EVENT_COUNT];
+    private boolean running = false;
+    private long lastFrameAt = -1;
+    private long frames = 0;
+    private long droppedFrames = 0;
+
+    public UiJankMonitor()
+    {
+        for(int i = 0; i < EVENT_COUNT; i++)
+        {
+            uiTime[i] = new LatencyHistogram();
+        }
+    }
+
+    public long begin()
+    {
+        return System.nanoTime();
+    }
+
+    public void end(int event, long startedAt)
+    {
+        uiTime[event].record(System.nanoTime() - startedAt);
+    }
+
+    public LatencyHistogram getUiTime(int event)
+    {
+        return uiTime[event];
+    }
+
+    // Must be called on the UI thread.
+    public void start()
+    {
+        if(running)
+        {
+            return;
+        }
+        running = true;
+        lastFrameAt = -1;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void stop()
+    {
+        running = false;
+    }
+
+    public void doFrame(long frameTimeNanos)
+    {
+        if(!running)
+        {
+            return;
+        }
+        onFrame(frameTimeNanos);
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    // A gap of n frame periods between two frames means n - 1 were dropped.
+    synchronized void onFrame(long frameTimeNanos)
+    {
+        if(lastFrameAt >= 0)
+        {
+            long periods = Math.round((frameTimeNanos - lastFrameAt) / (double) FRAME_NANOS);
+            if(periods > 1)
+            {
+                droppedFrames += periods - 1;
+            }
+        }
+        lastFrameAt = frameTimeNanos;
+        frames++;
+    }
+
+    public synchronized long getFrameCount()
+    {
+        return frames;
+    }
+
+    public synchronized long getDroppedFrameCount()
+    {
+        return droppedFrames;
+    }
+
+    public synchronized String describe()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "frames=%d dropped=%d", frames, droppedFrames));
+        for(int i = 0; i < EVENT_COUNT; i++)
+        {
+            if(uiTime[i].getCount() > 0)
+            {
+                sb.append("\n").append(EVENT_NAMES[i]).append(" ui ").append(uiTime[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
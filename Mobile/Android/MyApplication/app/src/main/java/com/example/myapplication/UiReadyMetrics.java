@@ -0,0 +1,137 @@
+package com.example.myapplication;
+
+import java.util.Locale;
+
+// How long after choosing a lamp the controls show its real state. Without
+// a cached state that is when the lamp's reads arrive (three notify
+// descriptors and three reads over legacy BLE); with one it is when the
+// cached state was painted, provided the lamp then reports the same values.
+// Times are System.nanoTime().
+public class UiReadyMetrics
+{
+    private static final int HUE = 1;
+    private static final int SAT = 2;
+    private static final int VAL = 4;
+    private static final int POWER = 8;
+    private static final int ALL = HUE | SAT | VAL | POWER;
+
+    // Until the device's full state arrived.
+    private final LatencyHistogram fromDevice = new LatencyHistogram();
+    // Until the controls were right, from the cache or the device.
+    private final LatencyHistogram ready = new LatencyHistogram();
+
+    private long connectAt = -1;
+    private long paintedAt = -1;
+    private final LampUiReconciler.Update painted = new LampUiReconciler.Update();
+    private final LampUiReconciler.Update device = new LampUiReconciler.Update();
+    private int seen = 0;
+
+    private long cacheHits = 0;
+    private long cacheStale = 0;
+    private long cacheMisses = 0;
+
+    public synchronized void onConnect(long now)
+    {
+        connectAt = now;
+        paintedAt = -1;
+        seen = 0;
+    }
+
+    // The controls were set to a cached state, in slider positions.
+    public synchronized void onPainted(long now, boolean isOn, int hue, int sat, int val)
+    {
+        if(connectAt < 0)
+        {
+            return;
+        }
+        paintedAt = now;
+        painted.isOn = isOn;
+        painted.hue = hue;
+        painted.sat = sat;
+        painted.val = val;
+    }
+
+    // Device values applied to the controls; legacy BLE delivers them a
+    // field at a time.
+    public synchronized void onDeviceUpdate(long now, LampUiReconciler.Update update)
+    {
+        if(connectAt < 0)
+        {
+            return;
+        }
+        if(update.hue != LampUiReconciler.UNSET)
+        {
+            device.hue = update.hue;
+            seen |= HUE;
+        }
+        if(update.sat != LampUiReconciler.UNSET)
+        {
+            device.sat = update.sat;
+            seen |= SAT;
+        }
+        if(update.val != LampUiReconciler.UNSET)
+        {
+            device.val = update.val;
+            seen |= VAL;
+        }
+        if(update.hasPower)
+        {
+            device.isOn = update.isOn;
+            seen |= POWER;
+        }
+        if(seen != ALL)
+        {
+            return;
+        }
+        fromDevice.record(now - connectAt);
+        if(paintedAt < 0)
+        {
+            cacheMisses++;
+            ready.record(now - connectAt);
+        }
+        else if(painted.isOn == device.isOn && painted.hue == device.hue && painted.sat == device.sat
+                && painted.val == device.val)
+        {
+            cacheHits++;
+            ready.record(paintedAt - connectAt);
+        }
+        else
+        {
+            cacheStale++;
+            ready.record(now - connectAt);
+        }
+        connectAt = -1;
+    }
+
+    public LatencyHistogram getDeviceLatency()
+    {
+        return fromDevice;
+    }
+
+    public LatencyHistogram getReadyLatency()
+    {
+        return ready;
+    }
+
+    public synchronized long getCacheHitCount()
+    {
+        return cacheHits;
+    }
+
+    public synchronized long getCacheStaleCount()
+    {
+        return cacheStale;
+    }
+
+    public synchronized long getCacheMissCount()
+    {
+        return cacheMisses;
+    }
+
+    public synchronized String describe()
+    {
+        return String.format(Locale.US, "ui ready p50=%dus p99=%dus, device state p50=%dus p99=%dus (cache hits=%d stale=%d misses=%d)",
+                ready.getPercentileMicros(50), ready.getPercentileMicros(99), fromDevice.getPercentileMicros(50),
+                fromDevice.getPercentileMicros(99), cacheHits, cacheStale, cacheMisses);
+    }
+}
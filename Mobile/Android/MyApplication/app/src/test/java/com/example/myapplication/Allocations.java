@@ -0,0 +1,19 @@
+package com.example.myapplication;
+
+import java.lang.management.ManagementFactory;
+
+// Bytes allocated by the current thread, for the host JVM benchmarks.
+class Allocations {
+
+    // Thread allocation counters are a HotSpot extension; -1 where missing.
+    static long threadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void growsExponentiallyWithJitterUpToTheCap() {
+        Backoff backoff = new Backoff(500, 30000, new Random(7));
+        long ceiling = 500;
+        for (int i = 0; i < 12; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+            ceiling = Math.min(30000, ceiling * 2);
+        }
+        assertEquals(12, backoff.getAttempts());
+
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= 500);
+    }
+
+    @Test
+    public void spreadsClientsThatFailedTogether() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        Random seeds = new Random(1);
+        for (int client = 0; client < 50; client++) {
+            Backoff backoff = new Backoff(500, 30000, new Random(seeds.nextLong()));
+            backoff.nextDelay();
+            backoff.nextDelay();
+            long third = backoff.nextDelay();
+            min = Math.min(min, third);
+            max = Math.max(max, third);
+        }
+        assertTrue(max - min > 500);
+    }
+}
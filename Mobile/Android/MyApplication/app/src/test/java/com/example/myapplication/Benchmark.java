@@ -0,0 +1,7 @@
+package com.example.myapplication;
+
+// JUnit category for the micro-benchmarks: they run for seconds on real
+// clocks, so the unit test run leaves them out. Run them with
+// ./gradlew testDebugUnitTest -Pbenchmarks
+public interface Benchmark {
+}
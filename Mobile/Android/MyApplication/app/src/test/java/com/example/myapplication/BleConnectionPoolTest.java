@@ -0,0 +1,158 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BleConnectionPoolTest {
+
+    private static final String A = "B8:27:EB:00:00:01";
+    private static final String B = "B8:27:EB:00:00:02";
+    private static final String C = "B8:27:EB:00:00:03";
+    private static final String D = "B8:27:EB:00:00:04";
+
+    private static class RecordingCloser implements BleConnectionPool.Closer<String> {
+        final List<String> closed = new ArrayList<String>();
+
+        @Override
+        public void close(String mac, String connection) {
+            closed.add(connection);
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedLamp() {
+        RecordingCloser closer = new RecordingCloser();
+        BleConnectionPool<String> pool = new BleConnectionPool<String>(3, closer);
+        pool.put(A, "a");
+        pool.put(B, "b");
+        pool.put(C, "c");
+
+        // Going back to A makes B the oldest.
+        assertEquals("a", pool.get(A));
+        pool.put(D, "d");
+
+        assertEquals(Arrays.asList("b"), closer.closed);
+        assertNull(pool.get(B));
+        assertEquals(Arrays.asList("c", "a", "d"), pool.getConnections());
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void replacingAConnectionClosesTheOldOne() {
+        RecordingCloser closer = new RecordingCloser();
+        BleConnectionPool<String> pool = new BleConnectionPool<String>(2, closer);
+        pool.put(A, "a1");
+        pool.put(A, "a1");
+        assertTrue(closer.closed.isEmpty());
+
+        pool.put(A, "a2");
+        assertEquals(Arrays.asList("a1"), closer.closed);
+        assertEquals("a2", pool.get(A));
+        assertEquals(0, pool.getEvictionCount());
+    }
+
+    @Test
+    public void removeOnlyForgetsTheConnectionItWasGiven() {
+        RecordingCloser closer = new RecordingCloser();
+        BleConnectionPool<String> pool = new BleConnectionPool<String>(2, closer);
+        pool.put(A, "a2");
+
+        // A stale connection attempt failing must not drop its replacement.
+        assertFalse(pool.remove(A, "a1"));
+        assertTrue(pool.remove(A, "a2"));
+        assertEquals(0, pool.size());
+        assertTrue(closer.closed.isEmpty());
+    }
+
+    @Test
+    public void shrinkingAndClosingAll() {
+        RecordingCloser closer = new RecordingCloser();
+        BleConnectionPool<String> pool = new BleConnectionPool<String>(3, closer);
+        pool.put(A, "a");
+        pool.put(B, "b");
+        pool.put(C, "c");
+
+        pool.setMaxConnections(1);
+        assertEquals(Arrays.asList("a", "b"), closer.closed);
+        assertEquals(Arrays.asList("c"), pool.getConnections());
+
+        // Never smaller than the current lamp.
+        pool.setMaxConnections(0);
+        assertEquals(1, pool.getMaxConnections());
+
+        pool.closeAll();
+        assertEquals(Arrays.asList("a", "b", "c"), closer.closed);
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void closerMayUseThePool() {
+        final AtomicReference<BleConnectionPool<String>> holder = new AtomicReference<BleConnectionPool<String>>();
+        holder.set(new BleConnectionPool<String>(1, new BleConnectionPool.Closer<String>() {
+            @Override
+            public void close(String mac, String connection) {
+                // Called outside the pool's lock.
+                assertEquals(1, holder.get().size());
+            }
+        }));
+        holder.get().put(A, "a");
+        holder.get().put(B, "b");
+        assertEquals(1, holder.get().getEvictionCount());
+    }
+
+    @Test
+    public void healthFollowsTheOperationQueue() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            GattOperationQueue operations = new GattOperationQueue(timer, 2000);
+            LampConnectionHealth ready = LampConnectionHealth.of(A, LampConnectionHealth.READY, true, 1, 0,
+                    operations, 0);
+            assertTrue(ready.isHealthy());
+            assertTrue(ready.describe(), ready.describe().startsWith(A + " (current) ready"));
+
+            LampConnectionHealth dropped = LampConnectionHealth.of(B, LampConnectionHealth.DISCONNECTED, false, 1,
+                    1, operations, 5000);
+            assertFalse(dropped.isHealthy());
+            assertTrue(dropped.describe(), dropped.describe().contains("UNHEALTHY"));
+
+            LampConnectionHealth failing = new LampConnectionHealth(C, LampConnectionHealth.READY, false, 1, 0,
+                    20, 2, 1, 0, 0, 0);
+            assertFalse(failing.isHealthy());
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    // Switching back and forth between a few lamps, as when moving between
+    // rooms: with the pool only the first visit to each lamp connects.
+    @Test
+    public void switchingBetweenLampsReusesConnections() {
+        String[] lamps = {A, B, C, A, B, C, A, C, B, A, C, B};
+        long connectsWithoutPool = connects(1, lamps);
+        long connectsWithPool = connects(3, lamps);
+        assertEquals(lamps.length, connectsWithoutPool);
+        assertEquals(3, connectsWithPool);
+    }
+
+    private static long connects(int size, String[] lamps) {
+        BleConnectionPool<String> pool = new BleConnectionPool<String>(size, new RecordingCloser());
+        long connects = 0;
+        for (String mac : lamps) {
+            if (pool.get(mac) == null) {
+                connects++;
+                pool.put(mac, mac);
+            }
+        }
+        assertEquals(lamps.length - connects, pool.getHitCount());
+        return connects;
+    }
+}
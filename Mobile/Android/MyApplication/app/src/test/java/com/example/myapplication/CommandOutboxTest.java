@@ -0,0 +1,121 @@
+package com.example.myapplication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandOutboxTest {
+
+    private static final int BACKLOG = 20000;
+    private static final int BACKLOG_LAMPS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LampState state(double value) {
+        return new LampState(true, value, 0.5, 1.0);
+    }
+
+    @Test
+    public void keepsLatestStatePerLampInChangeOrder() throws Exception {
+        CommandOutbox outbox = new CommandOutbox(folder.newFile("outbox"));
+        outbox.put("a", state(0.1));
+        outbox.put("b", state(0.2));
+        outbox.put("a", state(0.3));
+
+        List<CommandOutbox.Entry> entries = outbox.next(10, Collections.<String>emptySet());
+        assertEquals(2, entries.size());
+        assertEquals("b", entries.get(0).deviceId);
+        assertEquals("a", entries.get(1).deviceId);
+        assertEquals(0.3, entries.get(1).state.h, 0);
+        assertEquals(1, outbox.getCollapsedCount());
+
+        // A newer put wins over the ack of an older send.
+        CommandOutbox.Entry sentA = entries.get(1);
+        outbox.put("a", state(0.4));
+        assertFalse(outbox.remove(sentA));
+        assertEquals(0.4, outbox.get("a").state.h, 0);
+        outbox.close();
+    }
+
+    @Test
+    public void recoversAfterRestartAndDropsTornRecord() throws Exception {
+        File file = folder.newFile("outbox");
+        CommandOutbox outbox = new CommandOutbox(file);
+        outbox.put("a", state(0.1));
+        outbox.put("b", state(0.2));
+        outbox.put("c", state(0.3));
+        outbox.remove(outbox.get("b"));
+        outbox.close();
+
+        // Crash in the middle of appending another record.
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(raw.length());
+        raw.write(new byte[]{1, 0, 0, 0});
+        raw.close();
+
+        CommandOutbox reopened = new CommandOutbox(file);
+        assertEquals(2, reopened.getRecoveredCount());
+        assertNull(reopened.get("b"));
+        assertEquals(0.3, reopened.get("c").state.h, 0);
+
+        reopened.put("d", state(0.4));
+        reopened.close();
+        assertEquals(3, new CommandOutbox(file).size());
+    }
+
+    // Recovery benchmark: a long offline stretch, an app restart, and the
+    // drain against a broker stand-in that acks each publish after 2 ms.
+    @Test
+    @Category(Benchmark.class)
+    public void drainsLargeBacklogInOrder() throws Exception {
+        File file = folder.newFile("outbox");
+        CommandOutbox outbox = new CommandOutbox(file);
+        for (int i = 0; i < BACKLOG; i++) {
+            outbox.put("lamp-" + (i % BACKLOG_LAMPS), state(i / (double) BACKLOG));
+        }
+        outbox.close();
+        long fileLength = file.length();
+
+        outbox = new CommandOutbox(file);
+        assertEquals(BACKLOG_LAMPS, outbox.size());
+
+        final ScheduledExecutorService broker = Executors.newSingleThreadScheduledExecutor();
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        OutboxDrainer drainer = new OutboxDrainer(outbox, new OutboxDrainer.Sender() {
+            public boolean send(final CommandOutbox.Entry entry, final GroupController.Completion completion) {
+                broker.schedule(new Runnable() {
+                    public void run() {
+                        delivered.add(entry.deviceId);
+                        completion.complete(true);
+                    }
+                }, 2, TimeUnit.MILLISECONDS);
+                return true;
+            }
+        }, 6, 4);
+
+        while (drainer.tick()) {
+            Thread.sleep(1);
+        }
+        broker.shutdown();
+
+        assertTrue(outbox.isEmpty());
+        assertEquals(BACKLOG_LAMPS, delivered.size());
+        // Lamps last changed in 18000..19999 order, i.e. lamp-0 first.
+        assertEquals("lamp-0", delivered.get(0));
+        assertTrue(outbox.getFileLength() < fileLength / 10);
+        outbox.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionMetricsTest {
+
+    @Test
+    public void tracksOutagesAndReconnectTimes() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        metrics.onConnected(0);
+        metrics.onConnectionLost(1000);
+        metrics.onConnectionLost(1500);
+        assertEquals(500, metrics.getDisconnectedMillis(1500));
+        metrics.onConnected(3000);
+        metrics.onConnectionLost(10000);
+        metrics.onConnected(10400);
+
+        assertEquals(2, metrics.getLossCount());
+        assertEquals(2400, metrics.getDisconnectedMillis(20000));
+        assertEquals(2, metrics.getReconnectLatency().getCount());
+        assertEquals(2000000, metrics.getReconnectLatency().getMaxMicros());
+    }
+}
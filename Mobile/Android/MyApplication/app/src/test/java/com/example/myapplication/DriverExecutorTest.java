@@ -0,0 +1,72 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DriverExecutorTest {
+
+    private final DriverExecutor executor = new DriverExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void runsCommandsInOrderOffTheCallingThread() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        // Holds the driver thread, so every submit below has to return
+        // without waiting for its command to run.
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Future<?> last = null;
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            last = executor.submit(new Runnable() {
+                public void run() {
+                    assertTrue(executor.isDriverThread());
+                    order.add(n);
+                }
+            });
+        }
+        assertTrue(order.isEmpty());
+        assertFalse(last.isDone());
+
+        release.countDown();
+        last.get(5, TimeUnit.SECONDS);
+
+        assertFalse(executor.isDriverThread());
+        assertEquals(100, order.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void futuresCarryResults() throws Exception {
+        Future<String> result = executor.submit(new Callable<String>() {
+            public String call() {
+                return "done";
+            }
+        });
+        assertEquals("done", result.get(1, TimeUnit.SECONDS));
+    }
+}
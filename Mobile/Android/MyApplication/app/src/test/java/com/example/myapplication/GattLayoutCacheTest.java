@@ -0,0 +1,77 @@
+package com.example.myapplication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattLayoutCacheTest {
+
+    private static final String MAC = "B8:27:EB:00:00:01";
+    private static final int READ_WRITE_NOTIFY = 0x02 | 0x08 | 0x10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long lampSignature(boolean packed) {
+        long signature = GattLayoutCache.EMPTY_SIGNATURE;
+        signature = GattLayoutCache.signature(signature, BLEDriver.hsvUUID, READ_WRITE_NOTIFY);
+        signature = GattLayoutCache.signature(signature, BLEDriver.brightnessUUID, READ_WRITE_NOTIFY);
+        signature = GattLayoutCache.signature(signature, BLEDriver.powerUUID, READ_WRITE_NOTIFY);
+        if (packed) {
+            signature = GattLayoutCache.signature(signature, BLEDriver.stateUUID, READ_WRITE_NOTIFY);
+        }
+        return signature;
+    }
+
+    @Test
+    public void signatureFollowsTheCharacteristicTable() {
+        assertEquals(lampSignature(true), lampSignature(true));
+        assertNotEquals(lampSignature(true), lampSignature(false));
+
+        long withoutNotify = GattLayoutCache.signature(GattLayoutCache.EMPTY_SIGNATURE, BLEDriver.hsvUUID, 0x02 | 0x08);
+        long withNotify = GattLayoutCache.signature(GattLayoutCache.EMPTY_SIGNATURE, BLEDriver.hsvUUID, READ_WRITE_NOTIFY);
+        assertNotEquals(withoutNotify, withNotify);
+        assertNotEquals(GattLayoutCache.signature(GattLayoutCache.EMPTY_SIGNATURE, UUID.randomUUID(), READ_WRITE_NOTIFY),
+                withNotify);
+    }
+
+    @Test
+    public void layoutIsReusedOnlyWhileTheTableIsUnchanged() {
+        GattLayoutCache cache = new GattLayoutCache();
+        assertNull(cache.reuse(MAC, lampSignature(false)));
+
+        cache.put(MAC, new GattLayoutCache.Layout("lampi", lampSignature(false), false));
+        GattLayoutCache.Layout layout = cache.reuse(MAC, lampSignature(false));
+        assertNotNull(layout);
+        assertFalse(layout.packed);
+
+        // The lamp's software was updated with the packed characteristic.
+        assertNull(cache.reuse(MAC, lampSignature(true)));
+        assertEquals(1, cache.getReusedCount());
+        assertEquals(1, cache.getChangedCount());
+    }
+
+    @Test
+    public void snapshotRemembersTheLastLamp() throws Exception {
+        File file = new File(folder.getRoot(), "layouts");
+        GattLayoutCache cache = new GattLayoutCache();
+        assertFalse(cache.writeSnapshot(file));
+        cache.put(MAC, new GattLayoutCache.Layout("lampi", lampSignature(true), true));
+        cache.put("B8:27:EB:00:00:02", new GattLayoutCache.Layout(null, lampSignature(false), false));
+        cache.setLastMac(MAC);
+        assertTrue(cache.writeSnapshot(file));
+        assertFalse(cache.writeSnapshot(file));
+
+        GattLayoutCache restarted = new GattLayoutCache();
+        assertEquals(2, restarted.readSnapshot(file));
+        assertEquals(MAC, restarted.getLastMac());
+        assertEquals("lampi", restarted.get(MAC).name);
+        assertEquals("", restarted.get("B8:27:EB:00:00:02").name);
+        assertNotNull(restarted.reuse(MAC, lampSignature(true)));
+    }
+}
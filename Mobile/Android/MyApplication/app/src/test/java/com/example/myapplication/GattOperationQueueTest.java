@@ -0,0 +1,112 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> started = new ArrayList<String>();
+    private final List<String> finished = new ArrayList<String>();
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private GattOperationQueue.Operation op(int type, final String name) {
+        return new GattOperationQueue.Operation(type, name) {
+            protected boolean execute() {
+                started.add(name);
+                return true;
+            }
+
+            protected void onComplete(boolean success) {
+                finished.add(name + (success ? "" : "!"));
+            }
+        };
+    }
+
+    @Test
+    public void runsOneOperationAtATime() {
+        GattOperationQueue queue = new GattOperationQueue(timer, 5000);
+        queue.enqueue(op(GattOperationQueue.DESCRIPTOR_WRITE, "power"));
+        queue.enqueue(op(GattOperationQueue.READ, "power"));
+        queue.enqueue(op(GattOperationQueue.WRITE, "hsv"));
+
+        assertEquals(1, started.size());
+
+        // a callback for a different operation must not advance the queue
+        queue.complete(GattOperationQueue.READ, "power", true);
+        assertEquals(1, started.size());
+        assertEquals(1, queue.getUnmatchedCount());
+
+        queue.complete(GattOperationQueue.DESCRIPTOR_WRITE, "power", true);
+        queue.complete(GattOperationQueue.READ, "power", true);
+        queue.complete(GattOperationQueue.WRITE, "hsv", false);
+
+        assertEquals(3, started.size());
+        assertEquals("[power, power, hsv!]", finished.toString());
+        assertEquals(2, queue.getCompletedCount());
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(1, queue.getLatency(GattOperationQueue.READ).getCount());
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void stuckOperationTimesOut() throws InterruptedException {
+        GattOperationQueue queue = new GattOperationQueue(timer, 50);
+        queue.enqueue(op(GattOperationQueue.WRITE, "hsv"));
+        queue.enqueue(op(GattOperationQueue.WRITE, "brightness"));
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queue.getTimedOutCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, queue.getTimedOutCount());
+        assertEquals("[hsv, brightness]", started.toString());
+        assertEquals("[hsv!, brightness!]", finished.toString());
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteTheNextOperation() throws InterruptedException {
+        GattOperationQueue queue = new GattOperationQueue(timer, 50);
+        queue.enqueue(op(GattOperationQueue.WRITE, "hsv"));
+        queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.WRITE, "hsv") {
+            protected boolean execute() {
+                started.add("hsv again");
+                return true;
+            }
+
+            protected void onComplete(boolean success) {
+                finished.add("hsv again" + (success ? "" : "!"));
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + 2000;
+        // the second write starts once the first has timed out
+        while (queue.getTimedOutCount() < 1 || started.size() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals("[hsv, hsv again]", started.toString());
+
+        // the first write's callback shows up after its timeout
+        queue.complete(GattOperationQueue.WRITE, "hsv", true);
+        assertEquals(1, queue.getLateCount());
+        assertEquals("[hsv!]", finished.toString());
+        assertTrue(queue.isBusy());
+
+        queue.complete(GattOperationQueue.WRITE, "hsv", true);
+        assertEquals("[hsv!, hsv again]", finished.toString());
+        assertFalse(queue.isBusy());
+    }
+}
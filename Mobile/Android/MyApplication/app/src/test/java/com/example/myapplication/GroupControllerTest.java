@@ -0,0 +1,128 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GroupControllerTest {
+
+    private static final int LAMPS = 40;
+
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    // Completes every lamp after a fixed delay.
+    private class DelayedTransport implements GroupController.Transport {
+        final long delayMillis;
+        final List<String> silent = new ArrayList<String>();
+
+        DelayedTransport(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        public void apply(String lampId, LampState state, final GroupController.Completion completion) {
+            if (silent.contains(lampId)) {
+                return;
+            }
+            timer.schedule(new Runnable() {
+                public void run() {
+                    completion.complete(true);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static List<String> lamps(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids.add("lamp-" + i);
+        }
+        return ids;
+    }
+
+    private GroupController.GroupRun runAndWait(GroupController group, List<String> ids) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        GroupController.GroupRun run = group.apply(ids, new LampState(true, 0.5, 1.0, 0.8), new GroupController.Listener() {
+            public void onGroupComplete(GroupController.GroupRun run) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return run;
+    }
+
+    // Lamps are completed by hand, a round of round trips at a time.
+    private static class ManualTransport implements GroupController.Transport {
+        final List<String> started = new ArrayList<String>();
+        final List<GroupController.Completion> pending = new ArrayList<GroupController.Completion>();
+
+        public void apply(String lampId, LampState state, GroupController.Completion completion) {
+            started.add(lampId);
+            pending.add(completion);
+        }
+    }
+
+    // 40 lamps with 8 in flight take five round trips, not forty.
+    @Test
+    public void fansOutWithinTheBound() {
+        ManualTransport transport = new ManualTransport();
+        GroupController group = new GroupController(transport, 8, timer, 60000);
+        GroupController.GroupRun run = group.apply(lamps(LAMPS), new LampState(true, 0.5, 1.0, 0.8), null);
+
+        int rounds = 0;
+        while (!transport.pending.isEmpty()) {
+            assertEquals(8, group.getInFlight());
+            assertEquals(8, transport.pending.size());
+            List<GroupController.Completion> round = new ArrayList<GroupController.Completion>(transport.pending);
+            transport.pending.clear();
+            for (GroupController.Completion completion : round) {
+                completion.complete(true);
+            }
+            rounds++;
+        }
+
+        assertEquals(5, rounds);
+        assertTrue(run.isComplete());
+        assertEquals(0, run.getFailedCount());
+        assertEquals(lamps(LAMPS), transport.started);
+        assertEquals(LAMPS, run.getLatency().getCount());
+        // Later lamps queued behind the first batch.
+        assertTrue(run.getLatencyNanos(LAMPS - 1) >= run.getLatencyNanos(0));
+        assertEquals(0, group.getInFlight());
+    }
+
+    @Test
+    public void timesOutSilentLampsWithoutStallingTheRest() throws InterruptedException {
+        DelayedTransport transport = new DelayedTransport(5);
+        transport.silent.add("lamp-0");
+        transport.silent.add("lamp-1");
+        GroupController group = new GroupController(transport, 2, timer, 100);
+
+        GroupController.GroupRun run = runAndWait(group, lamps(10));
+
+        assertEquals(2, run.getFailedCount());
+        assertEquals(2, run.getTimedOutCount());
+        assertFalse(run.isSucceeded(0));
+        assertTrue(run.isSucceeded(9));
+    }
+
+    @Test
+    public void emptyGroupCompletesImmediately() throws InterruptedException {
+        GroupController group = new GroupController(new DelayedTransport(5), 4, timer, 100);
+        GroupController.GroupRun run = runAndWait(group, new ArrayList<String>());
+        assertTrue(run.isComplete());
+        assertEquals(0, run.getDurationNanos());
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HedgedWritesTest {
+
+    private static final long FIRST_SEQ = 1000;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    // Records what it was asked to send; the test confirms by hand.
+    static class ManualLeg implements HedgedWrites.Leg {
+        final String name;
+        final List<Long> sent = new ArrayList<Long>();
+        boolean available = true;
+        boolean accepts = true;
+
+        ManualLeg(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        public synchronized boolean send(LampLevels levels, long seq) {
+            sent.add(seq);
+            return accepts;
+        }
+
+        synchronized List<Long> sent() {
+            return new ArrayList<Long>(sent);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private static LampLevels levels(int i) {
+        return new LampLevels(true, i, i, i);
+    }
+
+    @Test
+    public void firstConfirmationSettlesTheCommand() {
+        ManualLeg ble = new ManualLeg("BLE");
+        ManualLeg mqtt = new ManualLeg("MQTT");
+        HedgedWrites writes = new HedgedWrites(timer, 10000, FIRST_SEQ, ble, mqtt);
+
+        long seq = writes.apply(levels(1));
+        assertEquals(FIRST_SEQ, seq);
+        assertEquals(1, ble.sent().size());
+        assertEquals(1, mqtt.sent().size());
+
+        writes.confirmed(1, seq);
+        assertEquals(1, writes.getHedgedLatency().getCount());
+        assertEquals(1, writes.getWinCount(1));
+
+        // The slower copy still counts for its leg, not for the hedge.
+        writes.confirmed(0, seq);
+        assertEquals(1, writes.getHedgedLatency().getCount());
+        assertEquals(0, writes.getWinCount(0));
+        assertEquals(1, writes.getLegLatency(0).getCount());
+        assertEquals(1, writes.getLegLatency(1).getCount());
+    }
+
+    @Test
+    public void busyLegSendsOnlyTheLatestWaitingCommand() {
+        ManualLeg leg = new ManualLeg("BLE");
+        HedgedWrites writes = new HedgedWrites(timer, 10000, FIRST_SEQ, leg);
+
+        long a = writes.apply(levels(1));
+        writes.apply(levels(2));
+        long c = writes.apply(levels(3));
+        assertEquals(1, leg.sent().size());
+
+        writes.confirmed(0, a);
+        assertEquals(2, leg.sent().size());
+        assertEquals(c, (long) leg.sent().get(1));
+        assertEquals(3, writes.getCommandCount());
+    }
+
+    @Test
+    public void confirmationCoversTheCommandsItSuperseded() {
+        ManualLeg ble = new ManualLeg("BLE");
+        ManualLeg mqtt = new ManualLeg("MQTT");
+        HedgedWrites writes = new HedgedWrites(timer, 10000, FIRST_SEQ, ble, mqtt);
+
+        long a = writes.apply(levels(1));
+        long b = writes.apply(levels(2));
+        writes.confirmed(0, a);
+        assertEquals(b, (long) ble.sent().get(1));
+
+        // MQTT was still carrying a when the lamp reported b.
+        writes.confirmed(1, b);
+        assertEquals(2, writes.getHedgedLatency().getCount());
+        assertEquals(2, writes.getLegLatency(1).getCount());
+        // b is settled, so MQTT isn't loaded with it.
+        assertEquals(1, mqtt.sent().size());
+
+        writes.confirmed(0, b);
+        assertEquals(1, writes.getWinCount(0));
+        assertEquals(1, writes.getWinCount(1));
+    }
+
+    @Test
+    public void failedSendFreesTheLeg() {
+        ManualLeg leg = new ManualLeg("BLE");
+        leg.accepts = false;
+        HedgedWrites writes = new HedgedWrites(timer, 10000, FIRST_SEQ, leg);
+
+        writes.apply(levels(1));
+        leg.accepts = true;
+        long b = writes.apply(levels(2));
+
+        assertEquals(1, writes.getFailureCount(0));
+        assertEquals(b, (long) leg.sent().get(1));
+    }
+
+    @Test
+    public void timedOutLegMovesOnToTheWaitingCommand() throws Exception {
+        ManualLeg leg = new ManualLeg("MQTT");
+        HedgedWrites writes = new HedgedWrites(timer, 20, FIRST_SEQ, leg);
+
+        writes.apply(levels(1));
+        long b = writes.apply(levels(2));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (leg.sent().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(1, writes.getTimedOutCount(0));
+        assertEquals(b, (long) leg.sent().get(1));
+    }
+
+    @Test
+    public void ignoresSequenceNumbersItDidNotIssue() {
+        ManualLeg leg = new ManualLeg("MQTT");
+        HedgedWrites writes = new HedgedWrites(timer, 10000, FIRST_SEQ, leg);
+
+        writes.apply(levels(1));
+        writes.confirmed(0, FIRST_SEQ + 100);
+        writes.confirmed(0, FIRST_SEQ - 1);
+
+        assertEquals(0, writes.getHedgedLatency().getCount());
+        assertEquals(0, writes.getLegLatency(0).getCount());
+    }
+
+    @Test
+    public void unavailableLegIsLeftOut() {
+        ManualLeg ble = new ManualLeg("BLE");
+        ManualLeg mqtt = new ManualLeg("MQTT");
+        ble.available = false;
+        HedgedWrites writes = new HedgedWrites(timer, 10000, FIRST_SEQ, ble, mqtt);
+
+        long seq = writes.apply(levels(1));
+        writes.confirmed(1, seq);
+
+        assertTrue(ble.sent().isEmpty());
+        assertEquals(1, writes.getHedgedLatency().getCount());
+    }
+
+    // Confirms each send after a delay, with an occasional stall standing
+    // in for a congested link.
+    static class CongestedLeg implements HedgedWrites.Leg {
+        final String name;
+        final int index;
+        final ScheduledExecutorService link;
+        final Random random;
+        final long typicalMicros;
+        final long stallMicros;
+        final double stallChance;
+        HedgedWrites writes;
+
+        CongestedLeg(String name, int index, long seed, long typicalMicros, long stallMicros, double stallChance) {
+            this.name = name;
+            this.index = index;
+            this.link = Executors.newSingleThreadScheduledExecutor();
+            this.random = new Random(seed);
+            this.typicalMicros = typicalMicros;
+            this.stallMicros = stallMicros;
+            this.stallChance = stallChance;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public boolean send(LampLevels levels, final long seq) {
+            long delay;
+            synchronized (this) {
+                delay = random.nextDouble() < stallChance ? stallMicros
+                        : typicalMicros / 2 + (long) (random.nextDouble() * typicalMicros);
+            }
+            link.schedule(new Runnable() {
+                public void run() {
+                    writes.confirmed(index, seq);
+                }
+            }, delay, TimeUnit.MICROSECONDS);
+            return true;
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void hedgingCutsTheTailOfEitherTransport() throws Exception {
+        CongestedLeg ble = new CongestedLeg("BLE", 0, 1, 4000, 60000, 0.05);
+        CongestedLeg mqtt = new CongestedLeg("MQTT", 1, 2, 6000, 80000, 0.05);
+        HedgedWrites writes = new HedgedWrites(timer, 2000, FIRST_SEQ, ble, mqtt);
+        ble.writes = writes;
+        mqtt.writes = writes;
+
+        // One change every frame or so, as a slider drag sends them.
+        int commands = 200;
+        try {
+            for (int i = 0; i < commands; i++) {
+                writes.apply(levels(i));
+                long deadline = System.currentTimeMillis() + 1000;
+                while (writes.getHedgedLatency().getCount() <= i && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(0, 200000);
+                }
+                Thread.sleep(10);
+            }
+        } finally {
+            ble.link.shutdownNow();
+            mqtt.link.shutdownNow();
+        }
+
+        LatencyHistogram hedged = writes.getHedgedLatency();
+        assertEquals(commands, hedged.getCount());
+        for (int leg = 0; leg < 2; leg++) {
+            assertTrue(writes.describe(), hedged.getPercentileMicros(99) <= writes.getLegLatency(leg).getPercentileMicros(99));
+            assertTrue(writes.describe(), hedged.getPercentileMicros(50) <= writes.getLegLatency(leg).getPercentileMicros(50));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InboundStateCoalescerTest {
+
+    @Test
+    public void deliversOnlyNewestStatePerFrame() {
+        InboundStateCoalescer inbound = new InboundStateCoalescer();
+        int scheduled = 0;
+        LampState last = null;
+        // 100 updates arriving 2 ms apart, frames every 16 ms
+        for (int i = 0; i < 100; i++) {
+            last = new LampState(true, i / 100.0, 1.0, 1.0);
+            if (inbound.offer(last)) {
+                scheduled++;
+            }
+            if (i % 8 == 7) {
+                assertEquals(last, inbound.take());
+            }
+        }
+        assertEquals(last, inbound.take());
+        assertNull(inbound.take());
+
+        assertTrue(scheduled <= 13);
+        assertEquals(100, inbound.getReceivedCount());
+        assertEquals(inbound.getReceivedCount(), inbound.getDeliveredCount() + inbound.getCoalescedCount());
+    }
+
+    @Test
+    public void countsEchoesAndMalformedMessages() {
+        InboundStateCoalescer inbound = new InboundStateCoalescer();
+        inbound.noteEcho();
+        inbound.noteEcho();
+        inbound.noteMalformed();
+        assertFalse(inbound.isDeliveryScheduled());
+        assertNull(inbound.take());
+
+        assertTrue(inbound.offer(new LampState(false, 0, 0, 0)));
+        assertFalse(inbound.offer(new LampState(true, 0, 0, 0)));
+        assertTrue(inbound.isDeliveryScheduled());
+        assertTrue(inbound.take().isOn);
+
+        assertEquals(5, inbound.getReceivedCount());
+        assertEquals(2, inbound.getEchoCount());
+        assertEquals(1, inbound.getMalformedCount());
+        assertEquals(1, inbound.getCoalescedCount());
+        assertEquals(1, inbound.getDeliveredCount());
+    }
+}
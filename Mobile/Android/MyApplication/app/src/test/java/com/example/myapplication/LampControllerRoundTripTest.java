@@ -0,0 +1,216 @@
+package com.example.myapplication;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// Round trip benchmark for each transport against a local stand-in, and
+// the selector choosing between them. The BLE stand-in answers writes after
+// a simulated link delay through the real GattOperationQueue; the MQTT one
+// is a real Paho client talking QoS 1 to a broker on loopback.
+@Category(Benchmark.class)
+public class LampControllerRoundTripTest {
+    private static final int COMMANDS = 50;
+    // A write with response takes about two 7.5 ms connection intervals.
+    private static final long BLE_WRITE_MICROS = 15000;
+
+    abstract static class StandIn implements LampController {
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        private final Semaphore acks = new Semaphore(0);
+
+        void acked() {
+            acks.release();
+        }
+
+        void awaitAck() throws InterruptedException {
+            assertTrue(getName() + " ack", acks.tryAcquire(5, TimeUnit.SECONDS));
+        }
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public void beginStreaming() {
+        }
+
+        public void endStreaming() {
+        }
+
+        public LatencyHistogram getRoundTrip() {
+            return roundTrip;
+        }
+    }
+
+    static class GattStandIn extends StandIn {
+        private static final UUID STATE = UUID.randomUUID();
+        final ScheduledExecutorService peripheral = Executors.newSingleThreadScheduledExecutor();
+        final GattOperationQueue operations = new GattOperationQueue(peripheral, 2000);
+        volatile long writeMicros = BLE_WRITE_MICROS;
+
+        private final Runnable respond = new Runnable() {
+            public void run() {
+                operations.complete(GattOperationQueue.WRITE, STATE, true);
+            }
+        };
+
+        public String getName() {
+            return "BLE stand-in";
+        }
+
+        public void apply(LampLevels levels) {
+            final byte[] packet = LampStatePacket.pack(levels.isOn, LampLevels.toByte(levels.h),
+                    LampLevels.toByte(levels.s), LampLevels.toByte(levels.v));
+            final long queuedAt = System.nanoTime();
+            operations.enqueue(new GattOperationQueue.Operation(GattOperationQueue.WRITE, STATE) {
+                protected boolean execute() {
+                    assertEquals(LampStatePacket.LENGTH, packet.length);
+                    peripheral.schedule(respond, writeMicros, TimeUnit.MICROSECONDS);
+                    return true;
+                }
+
+                protected void onComplete(boolean success) {
+                    // Same figures BleLampController reports: queued until
+                    // the write response.
+                    if (success) {
+                        roundTrip.record(System.nanoTime() - queuedAt);
+                    }
+                    acked();
+                }
+            });
+        }
+
+        void close() {
+            peripheral.shutdownNow();
+        }
+    }
+
+    static class MqttStandIn extends StandIn {
+        final MqttAsyncClient client;
+        private final LampStateCodec codec = new LampStateCodec("round-trip-test");
+
+        MqttStandIn(String uri) throws MqttException {
+            client = new MqttAsyncClient(uri, MqttAsyncClient.generateClientId(), new MemoryPersistence());
+            client.connect().waitForCompletion(5000);
+        }
+
+        public String getName() {
+            return "MQTT stand-in";
+        }
+
+        public void apply(LampLevels levels) {
+            codec.encode(levels.isOn, LampLevels.toUnit(levels.h), LampLevels.toUnit(levels.s),
+                    LampLevels.toUnit(levels.v));
+            MqttMessage message = new MqttMessage(codec.toByteArray());
+            message.setQos(1);
+            final long sentAt = System.nanoTime();
+            try {
+                client.publish("devices/test/lamp/set_config", message, null, new IMqttActionListener() {
+                    public void onSuccess(IMqttToken token) {
+                        roundTrip.record(System.nanoTime() - sentAt);
+                        acked();
+                    }
+
+                    public void onFailure(IMqttToken token, Throwable e) {
+                    }
+                });
+            } catch (MqttException e) {
+                fail(e.toString());
+            }
+        }
+
+        void close() throws MqttException {
+            client.disconnect().waitForCompletion(5000);
+            client.close();
+        }
+    }
+
+    private LocalMqttBroker broker;
+    private GattStandIn ble;
+    private MqttStandIn mqtt;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new LocalMqttBroker();
+        ble = new GattStandIn();
+        mqtt = new MqttStandIn(broker.getUri());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mqtt.close();
+        ble.close();
+        broker.close();
+    }
+
+    private static LampLevels levels(int i) {
+        return LampLevels.fromProgress(true, i % 101, (i * 7) % 101, (i * 13) % 101, 100);
+    }
+
+    // One command at a time, waiting for each round trip.
+    private static void run(StandIn controller, int commands) throws InterruptedException {
+        for (int i = 0; i < commands; i++) {
+            controller.apply(levels(i));
+            controller.awaitAck();
+        }
+    }
+
+    private static void run(LampControllerSelector selector, int commands) throws InterruptedException {
+        for (int i = 0; i < commands; i++) {
+            selector.apply(levels(i));
+            ((StandIn) selector.getCurrent()).awaitAck();
+        }
+    }
+
+    private static String report(LampController controller) {
+        LatencyHistogram rtt = controller.getRoundTrip();
+        return String.format(Locale.US, "%s: n=%d p50=%dus p99=%dus max=%dus", controller.getName(),
+                rtt.getCount(), rtt.getPercentileMicros(50), rtt.getPercentileMicros(99), rtt.getMaxMicros());
+    }
+
+    @Test
+    public void benchmarkEachTransport() throws Exception {
+        run(ble, COMMANDS);
+        run(mqtt, COMMANDS);
+        assertEquals(COMMANDS, ble.getRoundTrip().getCount());
+        assertEquals(COMMANDS, mqtt.getRoundTrip().getCount());
+        assertEquals(COMMANDS, broker.published.get());
+        assertTrue(report(ble) + ", " + report(mqtt), ble.getRoundTrip().getPercentileMicros(50) >= BLE_WRITE_MICROS / 2);
+    }
+
+    @Test
+    public void selectorPrefersBleOverADistantBroker() throws Exception {
+        broker.ackDelayMillis = 40;
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+        run(selector, COMMANDS);
+        assertSame(selector.describe(), ble, selector.getCurrent());
+        // The probe's round trip may still be on its way.
+        assertEquals(COMMANDS / LampControllerSelector.PROBE_EVERY, selector.getProbeCount());
+        assertTrue(mqtt.getRoundTrip().getCount() <= LampControllerSelector.MIN_SAMPLES + selector.getProbeCount());
+    }
+
+    @Test
+    public void selectorPrefersALocalBrokerOverBle() throws Exception {
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+        run(selector, COMMANDS);
+        assertSame(selector.describe(), mqtt, selector.getCurrent());
+        // The probe's round trip may still be on its way.
+        assertEquals(COMMANDS / LampControllerSelector.PROBE_EVERY, selector.getProbeCount());
+        assertTrue(ble.getRoundTrip().getCount() <= LampControllerSelector.MIN_SAMPLES + selector.getProbeCount());
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LampControllerSelectorTest {
+
+    // Records what it was sent; each apply counts as one round trip of
+    // the configured length.
+    static class FakeController implements LampController {
+        final String name;
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        final List<LampLevels> applied = new ArrayList<LampLevels>();
+        long roundTripMicros;
+        boolean available = true;
+        int streams = 0;
+
+        FakeController(String name, long roundTripMicros) {
+            this.name = name;
+            this.roundTripMicros = roundTripMicros;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        public void apply(LampLevels levels) {
+            applied.add(levels);
+            roundTrip.record(roundTripMicros * 1000);
+        }
+
+        public void beginStreaming() {
+            streams++;
+        }
+
+        public void endStreaming() {
+        }
+
+        public LatencyHistogram getRoundTrip() {
+            return roundTrip;
+        }
+    }
+
+    private static void send(LampControllerSelector selector, int count) {
+        for (int i = 0; i < count; i++) {
+            selector.apply(new LampLevels(true, i, i, i));
+        }
+    }
+
+    @Test
+    public void measuresBothThenUsesTheFasterOne() {
+        FakeController ble = new FakeController("BLE", 15000);
+        FakeController mqtt = new FakeController("MQTT", 60000);
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+
+        int commands = 2 * LampControllerSelector.MIN_SAMPLES + 50;
+        send(selector, commands);
+
+        // MQTT only hears the odd probe once it has been measured.
+        long probes = commands / LampControllerSelector.PROBE_EVERY;
+        assertEquals(probes, selector.getProbeCount());
+        assertEquals(LampControllerSelector.MIN_SAMPLES + probes, mqtt.applied.size());
+        assertEquals(LampControllerSelector.MIN_SAMPLES + 50, ble.applied.size());
+        assertSame(ble, selector.getCurrent());
+    }
+
+    @Test
+    public void probesFindAPathThatGotFaster() {
+        FakeController ble = new FakeController("BLE", 15000);
+        FakeController mqtt = new FakeController("MQTT", 60000);
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+        send(selector, 2 * LampControllerSelector.MIN_SAMPLES + 1);
+        assertSame(ble, selector.getCurrent());
+
+        // The broker moved next door. The probes carry MQTT's newer round
+        // trips, which the smoothed estimate follows within a few of them.
+        mqtt.roundTripMicros = 5000;
+        send(selector, 10 * LampControllerSelector.PROBE_EVERY);
+        assertSame(selector.describe(), mqtt, selector.getCurrent());
+        // Now BLE is the one probed, with copies of what MQTT sent.
+        assertTrue(mqtt.applied.contains(ble.applied.get(ble.applied.size() - 1)));
+    }
+
+    @Test
+    public void fallsBackWhenTheFasterOneDisappears() {
+        FakeController ble = new FakeController("BLE", 15000);
+        FakeController mqtt = new FakeController("MQTT", 60000);
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+        send(selector, 2 * LampControllerSelector.MIN_SAMPLES + 1);
+        assertSame(ble, selector.getCurrent());
+
+        ble.available = false;
+        send(selector, 1);
+        assertSame(mqtt, selector.getCurrent());
+
+        mqtt.available = false;
+        assertFalse(selector.isAvailable());
+        send(selector, 1);
+        assertNull(selector.getCurrent());
+    }
+
+    @Test
+    public void onlySwitchesForAClearlyFasterPath() {
+        FakeController ble = new FakeController("BLE", 20000);
+        FakeController mqtt = new FakeController("MQTT", 24000);
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+        send(selector, 2 * LampControllerSelector.MIN_SAMPLES);
+        assertSame(mqtt, selector.getCurrent());
+        long switches = selector.getSwitchCount();
+        // Both measured; BLE is only a little faster than MQTT, which was
+        // used last, so it stays put.
+        send(selector, 10);
+        assertSame(mqtt, selector.getCurrent());
+        assertEquals(switches, selector.getSwitchCount());
+        assertEquals(LampControllerSelector.MIN_SAMPLES, ble.applied.size());
+    }
+
+    @Test
+    public void dragStaysOnOneController() {
+        FakeController ble = new FakeController("BLE", 15000);
+        FakeController mqtt = new FakeController("MQTT", 60000);
+        LampControllerSelector selector = new LampControllerSelector(ble, mqtt);
+        send(selector, 2 * LampControllerSelector.MIN_SAMPLES + 1);
+        assertSame(ble, selector.getCurrent());
+
+        selector.beginStreaming();
+        assertEquals(1, ble.streams);
+        // BLE gets much slower mid drag; the drag still finishes on it.
+        ble.roundTripMicros = 500000;
+        int before = mqtt.applied.size();
+        send(selector, 100);
+        // No probes mid drag either.
+        assertEquals(before, mqtt.applied.size());
+        selector.endStreaming();
+
+        send(selector, 1);
+        assertSame(mqtt, selector.getCurrent());
+    }
+}
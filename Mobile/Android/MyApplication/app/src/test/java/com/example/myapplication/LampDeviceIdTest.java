@@ -0,0 +1,24 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LampDeviceIdTest {
+
+    @Test
+    public void readsTheIdFromTheAdvertisedName() {
+        assertEquals("b827eb12ab34", LampDeviceId.fromName("LAMPI b827eb12ab34"));
+        assertEquals("b827eb12ab34", LampDeviceId.fromName("LAMPI B827EB12AB34 "));
+        assertNull(LampDeviceId.fromName("LAMPI "));
+        assertNull(LampDeviceId.fromName("Speaker"));
+        assertNull(LampDeviceId.fromName(null));
+    }
+
+    @Test
+    public void readsTheIdFromTheSerialNumber() throws Exception {
+        assertEquals("b827eb12ab34", LampDeviceId.fromSerial("b827eb12ab34".getBytes("UTF-8")));
+        assertNull(LampDeviceId.fromSerial(new byte[0]));
+        assertNull(LampDeviceId.fromSerial(null));
+    }
+}
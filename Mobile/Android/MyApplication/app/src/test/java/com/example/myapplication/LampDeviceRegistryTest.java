@@ -0,0 +1,113 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LampDeviceRegistryTest {
+
+    private final List<List<String>> dispatched = new ArrayList<List<String>>();
+
+    private LampDeviceRegistry<String> registry() {
+        LampDeviceRegistry<String> registry = new LampDeviceRegistry<String>(10000, 300);
+        registry.setListener(new LampDeviceRegistry.Listener<String>() {
+            public void onDevicesChanged(List<LampDeviceRegistry.Entry<String>> devices) {
+                List<String> labels = new ArrayList<String>();
+                for (LampDeviceRegistry.Entry<String> entry : devices) {
+                    labels.add(entry.label());
+                }
+                dispatched.add(labels);
+            }
+        });
+        return registry;
+    }
+
+    @Test
+    public void batchesSightingsOfManyLamps() {
+        LampDeviceRegistry<String> registry = registry();
+        long flushAt = -1;
+        // 60 lamps advertising every 100 ms for two seconds, with flushes run
+        // the way the main thread handler would run them
+        for (long now = 0; now < 2000; now += 100) {
+            if (flushAt >= 0 && flushAt <= now) {
+                flushAt = -1;
+                registry.flush(now);
+            }
+            for (int i = 0; i < 60; i++) {
+                String mac = "AA:BB:CC:DD:EE:" + i;
+                if (registry.update(mac, mac, "LAMPI " + i, -60, now)) {
+                    flushAt = now + registry.getFlushDelay(now);
+                    if (flushAt == now) {
+                        flushAt = -1;
+                        registry.flush(now);
+                    }
+                }
+            }
+        }
+
+        assertEquals(60, registry.size());
+        assertEquals(1200, registry.getUpdateCount());
+        assertEquals(2, dispatched.size());
+        assertEquals(1, dispatched.get(0).size());
+        assertEquals(60, dispatched.get(1).size());
+    }
+
+    @Test
+    public void holdsBackDispatchUntilIntervalPasses() {
+        LampDeviceRegistry<String> registry = registry();
+        assertTrue(registry.update("A", "A", "LAMPI a", -50, 0));
+        registry.flush(0);
+
+        assertTrue(registry.update("B", "B", "LAMPI b", -50, 100));
+        assertEquals(200, registry.getFlushDelay(100));
+        assertFalse(registry.update("C", "C", "LAMPI c", -50, 150));
+        registry.flush(300);
+
+        assertEquals(2, dispatched.size());
+        assertEquals("[LAMPI a (A), LAMPI b (B), LAMPI c (C)]", dispatched.get(1).toString());
+        assertEquals("[A, B, C]", registry.getMacs().toString());
+    }
+
+    @Test
+    public void smoothsRssiAndEvictsStaleLamps() {
+        LampDeviceRegistry<String> registry = registry();
+        registry.update("A", "A", "LAMPI a", -80, 0);
+        registry.update("A", "A", null, -40, 100);
+        assertEquals(-70.0, registry.getEntry("A").rssi, 0.001);
+        assertEquals("LAMPI a", registry.getEntry("A").name);
+
+        registry.update("B", "B", "LAMPI b", -50, 5000);
+        registry.flush(5000);
+        registry.flush(10500);
+
+        assertNull(registry.get("A"));
+        assertEquals("B", registry.get("B"));
+        assertEquals("[LAMPI b (B)]", dispatched.get(dispatched.size() - 1).toString());
+    }
+
+    @Test
+    public void listenerGetsSnapshotsTheScanCannotChange() {
+        final List<LampDeviceRegistry.Entry<String>> received = new ArrayList<LampDeviceRegistry.Entry<String>>();
+        LampDeviceRegistry<String> registry = new LampDeviceRegistry<String>(10000, 300);
+        registry.setListener(new LampDeviceRegistry.Listener<String>() {
+            public void onDevicesChanged(List<LampDeviceRegistry.Entry<String>> devices) {
+                received.addAll(devices);
+            }
+        });
+        registry.update("A", "A", "LAMPI a", -80, 0);
+        registry.flush(0);
+        registry.update("A", "A2", "LAMPI a", -40, 100);
+        registry.update("A", "A2", null, -40, 200);
+
+        LampDeviceRegistry.Entry<String> entry = received.get(0);
+        assertEquals("A", entry.device);
+        assertEquals(-80.0, entry.rssi, 0.001);
+        assertEquals(0, entry.lastSeen);
+        assertEquals(1, entry.sightings);
+        assertEquals(3, registry.getEntry("A").sightings);
+        assertEquals(5000, registry.getExpiryIntervalMillis());
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LampEchoTrackerTest {
+
+    private static class Recorded implements GroupController.Completion {
+        final List<Boolean> results = new ArrayList<Boolean>();
+
+        public void complete(boolean success) {
+            results.add(success);
+        }
+    }
+
+    @Test
+    public void completesWhenTheLampReportsTheRoundedState() {
+        LampEchoTracker echoes = new LampEchoTracker(LampEchoTracker.LAMP_TOLERANCE);
+        Recorded done = new Recorded();
+        echoes.expect("lamp-a", new LampState(true, 0.333, 0.5, 0.777), done);
+
+        assertFalse(echoes.onReported("lamp-b", new LampState(true, 0.33, 0.5, 0.78)));
+        assertFalse(echoes.onReported("lamp-a", new LampState(true, 0.4, 0.5, 0.78)));
+        assertTrue(done.results.isEmpty());
+
+        assertTrue(echoes.onReported("lamp-a", new LampState(true, 0.33, 0.5, 0.78)));
+        assertEquals(1, done.results.size());
+        assertTrue(done.results.get(0));
+        assertEquals(0, echoes.getWaitingCount());
+    }
+
+    @Test
+    public void aLaterStateOvertakesOlderOnes() {
+        LampEchoTracker echoes = new LampEchoTracker(LampEchoTracker.LAMP_TOLERANCE);
+        Recorded first = new Recorded();
+        Recorded second = new Recorded();
+        Recorded third = new Recorded();
+        echoes.expect("lamp-a", new LampState(true, 0.1, 0.1, 0.1), first);
+        echoes.expect("lamp-a", new LampState(true, 0.2, 0.2, 0.2), second);
+        echoes.expect("lamp-a", new LampState(true, 0.3, 0.3, 0.3), third);
+
+        assertTrue(echoes.onReported("lamp-a", new LampState(true, 0.2, 0.2, 0.2)));
+        assertEquals(false, first.results.get(0));
+        assertEquals(true, second.results.get(0));
+        assertTrue(third.results.isEmpty());
+        assertEquals(1, echoes.getWaitingCount());
+        assertEquals(1, echoes.getOvertakenCount());
+    }
+
+    @Test
+    public void cancelledPublishesFailOnce() {
+        LampEchoTracker echoes = new LampEchoTracker(LampEchoTracker.LAMP_TOLERANCE);
+        Recorded done = new Recorded();
+        LampState state = new LampState(false, 0, 0, 0);
+        echoes.expect("lamp-a", state, done);
+        echoes.cancel("lamp-a", done);
+        echoes.cancel("lamp-a", done);
+
+        assertFalse(echoes.onReported("lamp-a", state));
+        assertEquals(1, done.results.size());
+        assertFalse(done.results.get(0));
+    }
+}
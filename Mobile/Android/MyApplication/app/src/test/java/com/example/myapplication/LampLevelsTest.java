@@ -0,0 +1,43 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LampLevelsTest {
+
+    @Test
+    public void bytesSurviveTheRoundTrip() {
+        for (int i = 0; i < 256; i++) {
+            byte b = (byte) i;
+            assertEquals(b, LampLevels.toByte(LampLevels.fromByte(b)));
+        }
+        assertEquals(LampLevels.ONE, LampLevels.fromByte((byte) 0xFF));
+    }
+
+    @Test
+    public void progressSurvivesTheRoundTrip() {
+        for (int i = 0; i <= 100; i++) {
+            assertEquals(i, LampLevels.toProgress(LampLevels.fromProgress(i, 100), 100));
+        }
+    }
+
+    @Test
+    public void convertsToAndFromMqttState() {
+        LampLevels levels = LampLevels.fromProgress(true, 50, 100, 0, 100);
+        LampState state = levels.toLampState();
+        assertEquals(0.5, state.h, 0.0001);
+        assertEquals(1.0, state.s, 0.0);
+        assertEquals(0.0, state.brightness, 0.0);
+        assertEquals(levels, LampLevels.fromLampState(state));
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        LampLevels levels = new LampLevels(false, -5, LampLevels.ONE + 1, 12);
+        assertEquals(0, levels.h);
+        assertEquals(LampLevels.ONE, levels.s);
+        assertEquals(12, levels.v);
+        assertEquals(LampLevels.ONE, LampLevels.fromUnit(1.5));
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.myapplication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LampStateCacheTest {
+
+    private static final int LAMPS = 1000;
+    private static final int SWITCHES = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsLatestStatePerDevice() {
+        LampStateCache cache = new LampStateCache();
+        assertTrue(cache.put("lamp-a", new LampState(true, 0.1, 0.2, 0.3)));
+        assertTrue(cache.put("lamp-b", new LampState(false, 0.4, 0.5, 0.6)));
+        assertFalse(cache.put("lamp-a", new LampState(true, 0.1, 0.2, 0.3)));
+        assertTrue(cache.put("lamp-a", new LampState(true, 0.9, 0.2, 0.3)));
+
+        assertEquals(2, cache.size());
+        assertEquals(0.9, cache.get("lamp-a").h, 0);
+        assertFalse(cache.get("lamp-b").isOn);
+        assertNull(cache.get("lamp-c"));
+        assertEquals(4, cache.getUpdateCount());
+    }
+
+    // Switching to a lamp is a cache lookup instead of a wait for the lamp's
+    // next change notification, which may never come if nobody touches it.
+    @Test
+    @Category(Benchmark.class)
+    public void memoryPerLamp() {
+        String[] ids = new String[LAMPS];
+        for (int i = 0; i < LAMPS; i++) {
+            ids[i] = "b827eb" + String.format("%06x", i);
+        }
+
+        // Upper bound on what the cache retains: includes HashMap resizes.
+        long before = Allocations.threadAllocatedBytes();
+        LampStateCache cache = new LampStateCache();
+        for (int i = 0; i < LAMPS; i++) {
+            cache.put(ids[i], new LampState(i % 2 == 0, i / (double) LAMPS, 0.5, 1.0));
+        }
+        long after = Allocations.threadAllocatedBytes();
+
+        Random random = new Random(1);
+        for (int i = 0; i < SWITCHES; i++) {
+            int lamp = random.nextInt(LAMPS);
+            assertEquals(lamp / (double) LAMPS, cache.get(ids[lamp]).h, 0);
+        }
+
+        if (before >= 0) {
+            long perLamp = (after - before) / LAMPS;
+            assertTrue(perLamp + " bytes/lamp", perLamp < 256);
+        }
+    }
+
+    @Test
+    public void snapshotSurvivesARestart() throws Exception {
+        File file = new File(folder.getRoot(), "states");
+        LampStateCache cache = new LampStateCache();
+        cache.put("b827eb000001", new LampState(true, 0.25, 0.5, 0.75));
+        cache.put("b827eb000002", new LampState(false, 1.0, 0.0, 0.1));
+        cache.setLastDevice("b827eb000002");
+        assertTrue(cache.writeSnapshot(file));
+        assertFalse(cache.writeSnapshot(file));
+
+        LampStateCache restarted = new LampStateCache();
+        assertEquals(2, restarted.readSnapshot(file));
+
+        assertEquals("b827eb000002", restarted.getLastDevice());
+        LampState state = restarted.get("b827eb000001");
+        assertTrue(state.isOn);
+        assertEquals(0.25, state.h, 1.0 / LampLevels.ONE);
+        assertEquals(0.5, state.s, 1.0 / LampLevels.ONE);
+        assertEquals(0.75, state.brightness, 1.0 / LampLevels.ONE);
+        assertFalse(restarted.get("b827eb000002").isOn);
+    }
+
+    @Test
+    public void snapshotDoesNotOverwriteNewerStates() throws Exception {
+        File file = new File(folder.getRoot(), "states");
+        LampStateCache saved = new LampStateCache();
+        saved.put("a", new LampState(true, 0.1, 0.1, 0.1));
+        saved.put("b", new LampState(true, 0.2, 0.2, 0.2));
+        saved.writeSnapshot(file);
+
+        LampStateCache cache = new LampStateCache();
+        cache.put("a", new LampState(false, 0.9, 0.9, 0.9));
+        assertEquals(1, cache.readSnapshot(file));
+        assertFalse(cache.get("a").isOn);
+        assertEquals(0.2, cache.get("b").h, 1.0 / LampLevels.ONE);
+    }
+
+    @Test
+    public void missingSnapshotIsEmptyAndGarbageIsRejected() throws Exception {
+        LampStateCache cache = new LampStateCache();
+        assertEquals(0, cache.readSnapshot(new File(folder.getRoot(), "none")));
+
+        File garbage = folder.newFile("garbage");
+        FileOutputStream out = new FileOutputStream(garbage);
+        out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        out.close();
+        try {
+            cache.readSnapshot(garbage);
+            fail();
+        } catch (java.io.IOException expected) {
+        }
+        assertEquals(0, cache.size());
+        assertNull(cache.getLastDevice());
+    }
+}
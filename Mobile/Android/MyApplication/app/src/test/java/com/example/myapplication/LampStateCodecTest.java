@@ -0,0 +1,178 @@
+package com.example.myapplication;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class LampStateCodecTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CLIENT = "4b0e6a1c-90d1-4a43-a0c2-0b4b3a8a3f7e Android";
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void encodesTheLampConfigSchema() {
+        LampStateCodec codec = new LampStateCodec("lamp_ui");
+        int length = codec.encode(true, 0.25, 0.74, 1.0);
+        String json = new String(codec.getBuffer(), 0, length, UTF8);
+        assertEquals("{\"color\":{\"h\":0.25,\"s\":0.74},\"brightness\":1.0,\"on\":true,\"client\":\"lamp_ui\"}", json);
+
+        JsonObject parsed = new JsonParser().parse(json).getAsJsonObject();
+        assertEquals(0.25, parsed.getAsJsonObject("color").get("h").getAsDouble(), 0);
+        assertEquals("lamp_ui", parsed.get("client").getAsString());
+    }
+
+    @Test
+    public void carriesTheHedgeSequenceNumber() {
+        LampStateCodec codec = new LampStateCodec("lamp_ui");
+        LampStateCodec.Decoder decoder = new LampStateCodec.Decoder();
+        int length = codec.encode(false, 0.5, 0.5, 0.5, 2147483650L);
+        assertEquals("{\"color\":{\"h\":0.5,\"s\":0.5},\"brightness\":0.5,\"on\":false,\"seq\":2147483650,\"client\":\"lamp_ui\"}",
+                new String(codec.getBuffer(), 0, length, UTF8));
+        assertTrue(decoder.decode(codec.toByteArray()));
+        assertTrue(decoder.hasSeq);
+        assertEquals(2147483650L, decoder.seq);
+
+        codec.encode(false, 0.5, 0.5, 0.5);
+        assertTrue(decoder.decode(codec.toByteArray()));
+        assertFalse(decoder.hasSeq);
+    }
+
+    @Test
+    public void roundTrips() {
+        LampStateCodec codec = new LampStateCodec(CLIENT);
+        LampStateCodec.Decoder decoder = new LampStateCodec.Decoder();
+        double[] values = {0, 1, 0.5, 1 / 3.0, 128 / 255.0, 0.000001, 0.999999};
+        for (double v : values) {
+            codec.encode(v > 0.5, v, 1 - v, v);
+            assertTrue(decoder.decode(codec.toByteArray()));
+            assertTrue(decoder.hasOn && decoder.hasH && decoder.hasS && decoder.hasBrightness);
+            assertEquals(v > 0.5, decoder.isOn);
+            assertEquals(v, decoder.h, 1e-6);
+            assertEquals(1 - v, decoder.s, 1e-6);
+            assertEquals(v, decoder.brightness, 1e-6);
+            assertTrue(decoder.isFromClient(codec.getClientBytes()));
+        }
+    }
+
+    @Test
+    public void decodesLampMessagesInAnyOrder() {
+        LampStateCodec.Decoder decoder = new LampStateCodec.Decoder();
+        byte[] message = ("{\"color\": {\"h\": 0.25, \"s\": 7.4e-1}, \"on\": false, "
+                + "\"extra\": [1, {\"x\": \"}\"}], \"client\": \"lamp_ui\", \"brightness\": 1}").getBytes(UTF8);
+        assertTrue(decoder.decode(message));
+        assertFalse(decoder.isOn);
+        assertEquals(0.25, decoder.h, 1e-9);
+        assertEquals(0.74, decoder.s, 1e-9);
+        assertEquals(1.0, decoder.brightness, 1e-9);
+        assertEquals("lamp_ui", decoder.getClient());
+        assertTrue(decoder.isFromClient("lamp_ui".getBytes(UTF8)));
+        assertFalse(decoder.isFromClient(CLIENT.getBytes(UTF8)));
+    }
+
+    @Test
+    public void reportsMissingKeysAndRejectsGarbage() {
+        LampStateCodec.Decoder decoder = new LampStateCodec.Decoder();
+        assertTrue(decoder.decode("{\"brightness\": 0.5}".getBytes(UTF8)));
+        assertTrue(decoder.hasBrightness);
+        assertFalse(decoder.hasOn || decoder.hasH || decoder.hasS || decoder.hasClient());
+
+        assertFalse(decoder.decode("not json".getBytes(UTF8)));
+        assertFalse(decoder.decode("{\"on\": true".getBytes(UTF8)));
+        assertFalse(decoder.decode(new byte[0]));
+    }
+
+    // Poor man's JMH: the app module has no JMH setup, so compare the codec
+    // with the old Gson tree path on the host JVM, in throughput and bytes
+    // allocated per message.
+    @Test
+    @Category(Benchmark.class)
+    public void outperformsGsonTrees() {
+        final LampStateCodec codec = new LampStateCodec(CLIENT);
+        final LampStateCodec.Decoder decoder = new LampStateCodec.Decoder();
+        codec.encode(true, 0.25, 0.74, 1.0);
+        final byte[] message = codec.toByteArray();
+        final String text = new String(message, UTF8);
+
+        Result gsonEncode = measure(new Op() {
+            public int run(int i) {
+                JsonObject state = new JsonObject();
+                state.addProperty("client", CLIENT);
+                state.addProperty("brightness", i / (double) ITERATIONS);
+                state.addProperty("on", true);
+                JsonObject color = new JsonObject();
+                color.addProperty("h", 0.25);
+                color.addProperty("s", 0.74);
+                state.add("color", color);
+                return state.toString().getBytes().length;
+            }
+        });
+        Result codecEncode = measure(new Op() {
+            public int run(int i) {
+                return codec.encode(true, 0.25, 0.74, i / (double) ITERATIONS);
+            }
+        });
+        Result gsonDecode = measure(new Op() {
+            public int run(int i) {
+                JsonObject state = new JsonParser().parse(new String(message, UTF8)).getAsJsonObject();
+                return state.get("client").getAsString().equals(CLIENT) ? 1 : 0;
+            }
+        });
+        Result codecDecode = measure(new Op() {
+            public int run(int i) {
+                decoder.decode(message);
+                return decoder.isFromClient(codec.getClientBytes()) ? 1 : 0;
+            }
+        });
+
+        String report = "encode gson " + gsonEncode + ", codec " + codecEncode + "; decode gson " + gsonDecode
+                + ", codec " + codecDecode + " (" + text.length() + " byte message)";
+        if (codecEncode.bytesPerOp >= 0) {
+            assertTrue(report, codecEncode.bytesPerOp < 1);
+            assertTrue(report, codecDecode.bytesPerOp < 1);
+            assertTrue(report, gsonEncode.bytesPerOp > 100);
+            assertTrue(report, gsonDecode.bytesPerOp > 100);
+        }
+    }
+
+    private interface Op {
+        int run(int i);
+    }
+
+    private static class Result {
+        double opsPerSecond;
+        double bytesPerOp;
+
+        public String toString() {
+            return String.format(java.util.Locale.US, "%.0f ops/s, %s bytes/op", opsPerSecond,
+                    bytesPerOp < 0 ? "?" : String.format(java.util.Locale.US, "%.1f", bytesPerOp));
+        }
+    }
+
+    private static Result measure(Op op) {
+        int sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += op.run(i);
+        }
+        long allocatedBefore = Allocations.threadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = Allocations.threadAllocatedBytes();
+        assertTrue(sink > 0);
+
+        Result result = new Result();
+        result.opsPerSecond = ITERATIONS * 1e9 / elapsed;
+        result.bytesPerOp = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / (double) ITERATIONS;
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static org.junit.Assert.*;
+
+public class LampStatePacketTest {
+
+    private static final long INTERVAL_MICROS = 30000;
+    private static final int PACKETS_PER_EVENT = 4;
+    private static final int BUFFER_PACKETS = 8;
+    private static final int CHANGES = 50;
+    private static final long SPACING_MICROS = 200000;
+    private static final int DRAG_TICKS = 120;
+    private static final long TICK_MICROS = 1000000 / 120;
+
+    @Test
+    public void packAndUnpack() {
+        byte[] data = LampStatePacket.pack(true, (byte) 0x80, (byte) 0xFF, (byte) 0x10);
+        assertTrue(LampStatePacket.isValid(data));
+        assertTrue(LampStatePacket.isOn(data));
+        assertEquals((byte) 0x80, LampStatePacket.hue(data));
+        assertEquals((byte) 0xFF, LampStatePacket.saturation(data));
+        assertEquals((byte) 0x10, LampStatePacket.brightness(data));
+        assertFalse(LampStatePacket.isOn(LampStatePacket.pack(false, (byte) 0, (byte) 0, (byte) 0)));
+        assertFalse(LampStatePacket.isValid(new byte[3]));
+    }
+
+    @Test
+    public void sequencedPacketKeepsTheStateLayout() {
+        byte[] data = LampStatePacket.packSequenced(true, (byte) 0x80, (byte) 0xFF, (byte) 0x10, 0xFEDCBA98L);
+        assertEquals(LampStatePacket.SEQUENCED_LENGTH, data.length);
+        assertEquals((byte) 0x80, LampStatePacket.hue(data));
+        assertEquals((byte) 0x10, LampStatePacket.brightness(data));
+        assertEquals((byte) 0x98, data[4]);
+        assertEquals(0xFEDCBA98L, LampStatePacket.sequence(data));
+    }
+
+    // Full state changes (power, colour and brightness at once, as when a
+    // scene is recalled): time until the lamp has applied all of it.
+    @Test
+    @Category(Benchmark.class)
+    public void packedWriteAtLeastHalvesChangeLatency() {
+        long legacy = meanChangeLatency(false);
+        long packed = meanChangeLatency(true);
+        System.out.println("state change latency: legacy=" + legacy + "us packed=" + packed + "us");
+        assertTrue(packed * 2 <= legacy);
+    }
+
+    // A one second colour drag at 120 Hz: time until the lamp shows a value
+    // at least as new as each one the slider produced.
+    @Test
+    @Category(Benchmark.class)
+    public void packedStreamAtLeastHalvesDragLatency() {
+        long legacy = meanDragLatency(false);
+        long packed = meanDragLatency(true);
+        System.out.println("drag latency: legacy=" + legacy + "us packed=" + packed + "us");
+        assertTrue(packed * 2 <= legacy);
+    }
+
+    private SimulatedPeripheral newLamp() {
+        SimulatedPeripheral lamp = new SimulatedPeripheral(INTERVAL_MICROS, PACKETS_PER_EVENT, BUFFER_PACKETS);
+        lamp.scheduler = new LampWriteScheduler(lamp);
+        return lamp;
+    }
+
+    private long meanChangeLatency(boolean usePacked) {
+        SimulatedPeripheral lamp = newLamp();
+        LampWriteScheduler scheduler = lamp.scheduler;
+
+        long total = 0;
+        for (int i = 0; i < CHANGES; i++) {
+            // Off the connection event grid, like a tap would be.
+            long start = i * SPACING_MICROS + (i * 7919) % INTERVAL_MICROS;
+            lamp.advanceTo(start);
+            byte h = (byte) i;
+            byte b = (byte) (255 - i);
+            boolean on = i % 2 == 0;
+            if (usePacked) {
+                scheduler.submit(LampWriteScheduler.STATE, LampStatePacket.pack(on, h, h, b));
+            } else {
+                scheduler.submit(LampWriteScheduler.POWER, new byte[]{on ? (byte) 1 : (byte) 0});
+                scheduler.submit(LampWriteScheduler.HSV, new byte[]{h, h, (byte) 0xFF});
+                scheduler.submit(LampWriteScheduler.BRIGHTNESS, new byte[]{b});
+            }
+            lamp.drain();
+            total += lamp.deliveredAt.get(lamp.deliveredAt.size() - 1) - start;
+        }
+        return total / CHANGES;
+    }
+
+    private long meanDragLatency(boolean usePacked) {
+        SimulatedPeripheral lamp = newLamp();
+        LampWriteScheduler scheduler = lamp.scheduler;
+
+        scheduler.beginStream();
+        for (int i = 0; i < DRAG_TICKS; i++) {
+            lamp.advanceTo(i * TICK_MICROS);
+            byte h = (byte) i;
+            if (usePacked) {
+                scheduler.submit(LampWriteScheduler.STATE, LampStatePacket.pack(true, h, (byte) 0xFF, (byte) 0xFF));
+            } else {
+                scheduler.submit(LampWriteScheduler.HSV, new byte[]{h, (byte) 0xFF, (byte) 0xFF});
+            }
+        }
+        scheduler.endStream();
+        lamp.drain();
+
+        long total = 0;
+        int delivery = 0;
+        for (int i = 0; i < DRAG_TICKS; i++) {
+            while (deliveredHue(lamp, delivery) < i) {
+                delivery++;
+            }
+            total += lamp.deliveredAt.get(delivery) - i * TICK_MICROS;
+        }
+        return total / DRAG_TICKS;
+    }
+
+    private static int deliveredHue(SimulatedPeripheral lamp, int delivery) {
+        byte[] data = lamp.delivered.get(delivery);
+        if (lamp.deliveredSlots.get(delivery) == LampWriteScheduler.STATE) {
+            return LampStatePacket.hue(data) & 0xFF;
+        }
+        return data[0] & 0xFF;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LampUiReconcilerTest {
+
+    @Test
+    public void mergesNotificationsIntoOneUpdatePerFrame() {
+        LampUiReconciler ui = new LampUiReconciler();
+        LampUiReconciler.Update update = new LampUiReconciler.Update();
+        // A packed state notification arrives as power, hue/sat, brightness
+        assertTrue(ui.offerPower(true));
+        assertFalse(ui.offerHueSat(10, 20));
+        assertFalse(ui.offerBrightness(30));
+
+        assertTrue(ui.take(update));
+        assertTrue(update.hasPower);
+        assertTrue(update.isOn);
+        assertEquals(10, update.hue);
+        assertEquals(20, update.sat);
+        assertEquals(30, update.val);
+        assertFalse(ui.take(update));
+
+        assertEquals(3, ui.getReceivedCount());
+        assertEquals(2, ui.getMergedCount());
+        assertEquals(1, ui.getAppliedCount());
+    }
+
+    @Test
+    public void newestValueWinsAndUnsentFieldsStayUnset() {
+        LampUiReconciler ui = new LampUiReconciler();
+        LampUiReconciler.Update update = new LampUiReconciler.Update();
+        ui.offerBrightness(5);
+        ui.offerBrightness(50);
+        assertTrue(ui.take(update));
+        assertEquals(50, update.val);
+        assertEquals(LampUiReconciler.UNSET, update.hue);
+        assertEquals(LampUiReconciler.UNSET, update.sat);
+        assertFalse(update.hasPower);
+
+        // The next frame needs scheduling again
+        assertTrue(ui.offerHueSat(1, 2));
+        assertTrue(ui.take(update));
+        assertEquals(LampUiReconciler.UNSET, update.val);
+    }
+
+    @Test
+    public void dropsValuesForTheSliderBeingDragged() {
+        LampUiReconciler ui = new LampUiReconciler();
+        LampUiReconciler.Update update = new LampUiReconciler.Update();
+        ui.setTracking(LampUiReconciler.HUE, true);
+        // The echo of an earlier drag write, with the other sliders' values
+        ui.offerState(true, 30, 40, 50);
+        assertTrue(ui.take(update));
+        assertEquals(LampUiReconciler.UNSET, update.hue);
+        assertEquals(40, update.sat);
+        assertEquals(50, update.val);
+        assertTrue(update.hasPower);
+
+        // Nothing but the dragged slider's value: no apply at all
+        assertTrue(ui.offerHueSat(31, 40));
+        ui.setTracking(LampUiReconciler.SATURATION, true);
+        assertFalse(ui.take(update));
+        assertEquals(3, ui.getDroppedCount());
+
+        ui.setTracking(LampUiReconciler.HUE, false);
+        ui.setTracking(LampUiReconciler.SATURATION, false);
+        ui.offerHueSat(60, 40);
+        assertTrue(ui.take(update));
+        assertEquals(60, update.hue);
+    }
+
+    @Test
+    public void suppressesWritesOnlyWhileApplying() {
+        LampUiReconciler ui = new LampUiReconciler();
+        assertFalse(ui.isApplying());
+        ui.beginApply();
+        assertTrue(ui.isApplying());
+        assertTrue(ui.isApplying());
+        ui.endApply();
+        assertFalse(ui.isApplying());
+        assertEquals(2, ui.getSuppressedCount());
+    }
+
+    @Test
+    public void convertsDeviceValuesToProgress() {
+        assertEquals(0, LampUiReconciler.toProgress((byte) 0));
+        assertEquals(100, LampUiReconciler.toProgress((byte) 0xFF));
+        assertEquals(50, LampUiReconciler.toProgress((byte) 0x80));
+        assertEquals(100, LampUiReconciler.toProgress(1.5));
+        assertEquals(0, LampUiReconciler.toProgress(-0.1));
+    }
+}
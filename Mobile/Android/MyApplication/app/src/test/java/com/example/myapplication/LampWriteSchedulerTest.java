@@ -0,0 +1,208 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LampWriteSchedulerTest {
+
+    // Stands in for BluetoothGatt: every write takes one connection interval
+    // before its onCharacteristicWrite callback fires.
+    static class FakeGatt implements LampWriteScheduler.Sink {
+        final long writeMicros;
+        long now = 0;
+        long completesAt = -1;
+        byte[] inFlight;
+        boolean inFlightWithResponse;
+        final List<byte[]> delivered = new ArrayList<byte[]>();
+        final List<Long> deliveredAt = new ArrayList<Long>();
+        LampWriteScheduler scheduler;
+
+        FakeGatt(long writeMicros) {
+            this.writeMicros = writeMicros;
+        }
+
+        public boolean write(int slot, byte[] data, boolean withResponse) {
+            assertNull("only one write may be in flight", inFlight);
+            inFlight = data;
+            inFlightWithResponse = withResponse;
+            completesAt = now + writeMicros;
+            return true;
+        }
+
+        void advanceTo(long time) {
+            while (inFlight != null && completesAt <= time) {
+                now = completesAt;
+                delivered.add(inFlight);
+                deliveredAt.add(now);
+                inFlight = null;
+                scheduler.onWriteComplete(inFlightWithResponse, true);
+            }
+            now = time;
+        }
+    }
+
+    @Test
+    public void keepsOnlyLatestPendingValuePerCharacteristic() {
+        FakeGatt gatt = new FakeGatt(1000);
+        LampWriteScheduler scheduler = new LampWriteScheduler(gatt);
+        gatt.scheduler = scheduler;
+
+        scheduler.submit(LampWriteScheduler.HSV, new byte[]{1, 1, (byte) 0xFF});
+        scheduler.submit(LampWriteScheduler.HSV, new byte[]{2, 2, (byte) 0xFF});
+        scheduler.submit(LampWriteScheduler.HSV, new byte[]{3, 3, (byte) 0xFF});
+        scheduler.submit(LampWriteScheduler.BRIGHTNESS, new byte[]{9});
+        gatt.advanceTo(10000);
+
+        assertEquals(3, gatt.delivered.size());
+        assertEquals(1, gatt.delivered.get(0)[0]);
+        // round robin: brightness goes out before the coalesced hsv value
+        assertEquals(9, gatt.delivered.get(1)[0]);
+        assertEquals(3, gatt.delivered.get(2)[0]);
+        assertEquals(4, scheduler.getSubmittedCount());
+        assertEquals(1, scheduler.getCoalescedCount());
+        assertEquals(3, scheduler.getSentCount());
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void sliderStreamLatencyStaysBounded() {
+        final long writeMicros = 30000;     // slow 30 ms connection interval
+        final long tickMicros = 1000000 / 120;
+        final int ticks = 240;              // two second drag at 120 Hz
+
+        FakeGatt gatt = new FakeGatt(writeMicros);
+        LampWriteScheduler scheduler = new LampWriteScheduler(gatt);
+        gatt.scheduler = scheduler;
+
+        long[] submittedAt = new long[ticks];
+        for (int i = 0; i < ticks; i++) {
+            long t = i * tickMicros;
+            gatt.advanceTo(t);
+            submittedAt[i] = t;
+            scheduler.submit(LampWriteScheduler.HSV, new byte[]{(byte) (i & 0xFF), (byte) (i >> 8), (byte) 0xFF});
+        }
+        gatt.advanceTo(ticks * tickMicros + 10 * writeMicros);
+
+        long worst = 0;
+        for (int i = 0; i < gatt.delivered.size(); i++) {
+            byte[] data = gatt.delivered.get(i);
+            int index = (data[0] & 0xFF) | ((data[1] & 0xFF) << 8);
+            worst = Math.max(worst, gatt.deliveredAt.get(i) - submittedAt[index]);
+        }
+
+        // A value waits for at most the write ahead of it plus its own write.
+        assertTrue("worst latency " + worst + "us", worst <= 2 * writeMicros);
+
+        byte[] last = gatt.delivered.get(gatt.delivered.size() - 1);
+        assertEquals(ticks - 1, (last[0] & 0xFF) | ((last[1] & 0xFF) << 8));
+
+        assertEquals(ticks, scheduler.getSubmittedCount());
+        assertEquals(scheduler.getSubmittedCount(),
+                scheduler.getSentCount() + scheduler.getCoalescedCount());
+        assertTrue(scheduler.getSentCount() < ticks / 3);
+    }
+
+    // Controller with a small buffer: writes without response drain one per
+    // 7.5 ms, acknowledged writes take a full 30 ms round trip.
+    static class BufferedController implements LampWriteScheduler.Sink {
+        final int bufferSize;
+        final LinkedList<Long> completions = new LinkedList<Long>();
+        final LinkedList<Boolean> completionTypes = new LinkedList<Boolean>();
+        long now = 0;
+        int maxOutstanding = 0;
+        int acknowledged = 0;
+        byte[] last;
+        boolean lastWithResponse;
+        LampWriteScheduler scheduler;
+
+        BufferedController(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public boolean write(int slot, byte[] data, boolean withResponse) {
+            assertTrue("controller buffer overrun", completions.size() < bufferSize);
+            long start = completions.isEmpty() ? now : completions.getLast();
+            completions.add(start + (withResponse ? 30000 : 7500));
+            completionTypes.add(withResponse);
+            maxOutstanding = Math.max(maxOutstanding, completions.size());
+            if (withResponse) {
+                acknowledged++;
+            }
+            last = data;
+            lastWithResponse = withResponse;
+            return true;
+        }
+
+        void advanceTo(long time) {
+            while (!completions.isEmpty() && completions.getFirst() <= time) {
+                now = completions.removeFirst();
+                scheduler.onWriteComplete(completionTypes.removeFirst(), true);
+            }
+            now = time;
+        }
+    }
+
+    @Test
+    public void streamsWithoutResponseAndAcknowledgesFinalValue() {
+        BufferedController controller = new BufferedController(LampWriteScheduler.DEFAULT_STREAM_CREDITS);
+        LampWriteScheduler scheduler = new LampWriteScheduler(controller);
+        controller.scheduler = scheduler;
+
+        final long tickMicros = 1000000 / 120;
+        scheduler.beginStream();
+        for (int i = 0; i < 120; i++) {
+            controller.advanceTo(i * tickMicros);
+            scheduler.submit(LampWriteScheduler.BRIGHTNESS, new byte[]{(byte) i});
+        }
+        controller.advanceTo(120 * tickMicros);
+        assertEquals(0, controller.acknowledged);
+
+        scheduler.endStream();
+        controller.advanceTo(200 * tickMicros);
+
+        assertEquals(1, controller.acknowledged);
+        assertTrue(controller.lastWithResponse);
+        assertEquals(119, controller.last[0]);
+        assertTrue(controller.maxOutstanding <= LampWriteScheduler.DEFAULT_STREAM_CREDITS);
+        assertEquals(120, scheduler.getStreamSentCount() + scheduler.getStreamDroppedCount());
+        assertTrue(scheduler.getStreamSentCount() > 60);
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void countsWritesByTheTypeTheDriverUsed() {
+        final List<Boolean> requested = new ArrayList<Boolean>();
+        LampWriteScheduler scheduler = new LampWriteScheduler(new LampWriteScheduler.Sink() {
+            public boolean write(int slot, byte[] data, boolean withResponse) {
+                requested.add(withResponse);
+                return true;
+            }
+        });
+
+        scheduler.beginStream();
+        scheduler.submit(LampWriteScheduler.HSV, new byte[]{1, 1, (byte) 0xFF});
+        assertFalse(requested.get(0));
+        assertEquals(0, scheduler.getSentCount());
+
+        // A legacy characteristic made the driver send it acknowledged.
+        scheduler.onWriteComplete(true, true);
+        assertEquals(1, scheduler.getSentCount());
+        assertEquals(0, scheduler.getStreamSentCount());
+
+        scheduler.submit(LampWriteScheduler.HSV, new byte[]{2, 2, (byte) 0xFF});
+        scheduler.onWriteComplete(false, true);
+        assertEquals(1, scheduler.getStreamSentCount());
+
+        scheduler.submit(LampWriteScheduler.HSV, new byte[]{3, 3, (byte) 0xFF});
+        scheduler.onWriteComplete(false, false);
+        assertEquals(2, scheduler.getSentCount());
+        assertEquals(1, scheduler.getStreamSentCount());
+        assertEquals(1, scheduler.getFailedCount());
+        assertTrue(scheduler.isIdle());
+    }
+}
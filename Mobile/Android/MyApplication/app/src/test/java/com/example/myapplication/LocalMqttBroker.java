@@ -0,0 +1,130 @@
+package com.example.myapplication;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Just enough of an MQTT broker on loopback for Paho to connect, subscribe
+// and publish at QoS 0 and 1. Publishes are acked but not routed anywhere.
+// Acks can be held back to stand in for a broker further away.
+class LocalMqttBroker implements Runnable {
+    private final ServerSocket server;
+    private final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+    final AtomicInteger published = new AtomicInteger();
+    volatile long ackDelayMillis = 0;
+
+    LocalMqttBroker() throws IOException {
+        server = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(this, "mqtt-broker");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getUri() {
+        return "tcp://127.0.0.1:" + server.getLocalPort();
+    }
+
+    void close() throws IOException {
+        server.close();
+        delayer.shutdownNow();
+    }
+
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread client = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "mqtt-broker-client");
+                client.setDaemon(true);
+                client.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (true) {
+                int header = in.read();
+                if (header < 0) {
+                    break;
+                }
+                byte[] body = new byte[readLength(in)];
+                in.readFully(body);
+                switch (header >> 4) {
+                    case 1: // CONNECT
+                        send(out, new byte[]{0x20, 2, 0, 0});
+                        break;
+                    case 3: // PUBLISH
+                        published.incrementAndGet();
+                        if (((header >> 1) & 3) == 1) {
+                            int topicLength = (body[0] & 0xFF) << 8 | (body[1] & 0xFF);
+                            final byte[] ack = {0x40, 2, body[2 + topicLength], body[3 + topicLength]};
+                            long delay = ackDelayMillis;
+                            if (delay == 0) {
+                                send(out, ack);
+                            } else {
+                                delayer.schedule(new Runnable() {
+                                    public void run() {
+                                        send(out, ack);
+                                    }
+                                }, delay, TimeUnit.MILLISECONDS);
+                            }
+                        }
+                        break;
+                    case 8: // SUBSCRIBE, granted at QoS 1
+                        send(out, new byte[]{(byte) 0x90, 3, body[0], body[1], 1});
+                        break;
+                    case 12: // PINGREQ
+                        send(out, new byte[]{(byte) 0xD0, 0});
+                        break;
+                    case 14: // DISCONNECT
+                        socket.close();
+                        return;
+                    default:
+                        break;
+                }
+            }
+            socket.close();
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private static void send(OutputStream out, byte[] packet) {
+        synchronized (out) {
+            try {
+                out.write(packet);
+                out.flush();
+            } catch (IOException e) {
+                // Client went away
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PublishThrottleTest {
+
+    private final List<LampState> published = new ArrayList<LampState>();
+
+    private PublishThrottle throttle(double hz) {
+        return new PublishThrottle(hz, new PublishThrottle.Publisher() {
+            public void publish(LampState state) {
+                published.add(state);
+            }
+        });
+    }
+
+    @Test
+    public void limitsRateAndAlwaysPublishesTrailingValue() {
+        PublishThrottle throttle = throttle(10);
+        long flushAt = -1;
+        LampState last = null;
+        // two second drag, one progress tick every 8 ms
+        for (long now = 0; now <= 2000; now += 8) {
+            if (flushAt >= 0 && flushAt <= now) {
+                flushAt = -1;
+                throttle.flush(now);
+            }
+            last = new LampState(true, now / 2000.0, 1.0, 1.0);
+            if (throttle.offer(last, now)) {
+                flushAt = now + throttle.getFlushDelay(now);
+            }
+        }
+        throttle.flush(flushAt);
+
+        assertTrue(published.size() <= 22);
+        assertEquals(last, published.get(published.size() - 1));
+        assertEquals(0, throttle.getQueueDepth());
+        assertEquals(throttle.getOfferedCount(),
+                throttle.getPublishedCount() + throttle.getCoalescedCount() + throttle.getUnchangedCount());
+    }
+
+    @Test
+    public void skipsUnchangedState() {
+        PublishThrottle throttle = throttle(10);
+        LampState state = new LampState(false, 0.5, 0.5, 0.5);
+        assertFalse(throttle.offer(state, 0));
+        assertFalse(throttle.offer(new LampState(false, 0.5, 0.5, 0.5), 500));
+        assertFalse(throttle.offer(new LampState(false, 0.5, 0.5, 0.5), 1000));
+
+        assertEquals(1, published.size());
+        assertEquals(2, throttle.getUnchangedCount());
+
+        throttle.reset();
+        assertFalse(throttle.offer(state, 1500));
+        assertEquals(2, published.size());
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.myapplication;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+// Virtual-time stand-in for a lamp at the other end of a GATT connection.
+// The link only carries packets at connection events, one interval apart,
+// and each event has room for several packets:
+//  - A write without response is taken by the controller's buffer right
+//    away (that is when Android calls onCharacteristicWrite) and goes out at
+//    the next event with room.
+//  - An acknowledged write goes out at the next event and its response comes
+//    back one event later. The callback runs after that event, so the write
+//    it starts waits for the event after; only one can be outstanding.
+// The legacy power/hsv/brightness characteristics only take acknowledged
+// writes, so, like BLEDriver, writes to them are sent with a response.
+class SimulatedPeripheral implements LampWriteScheduler.Sink {
+    final long intervalMicros;
+    final int packetsPerEvent;
+    final int bufferPackets;
+    LampWriteScheduler scheduler;
+
+    long now = 0;
+    private long nextEventAt;
+    private final LinkedList<Packet> controller = new LinkedList<Packet>();
+    private final LinkedList<Packet> host = new LinkedList<Packet>();
+    private final LinkedList<Packet> callbacks = new LinkedList<Packet>();
+
+    final List<Integer> deliveredSlots = new ArrayList<Integer>();
+    final List<byte[]> delivered = new ArrayList<byte[]>();
+    final List<Long> deliveredAt = new ArrayList<Long>();
+
+    private static class Packet {
+        final int slot;
+        final byte[] data;
+        final boolean withResponse;
+        long callbackAt;
+
+        Packet(int slot, byte[] data, boolean withResponse) {
+            this.slot = slot;
+            this.data = data;
+            this.withResponse = withResponse;
+        }
+    }
+
+    SimulatedPeripheral(long intervalMicros, int packetsPerEvent, int bufferPackets) {
+        this.intervalMicros = intervalMicros;
+        this.packetsPerEvent = packetsPerEvent;
+        this.bufferPackets = bufferPackets;
+        this.nextEventAt = intervalMicros;
+    }
+
+    public boolean write(int slot, byte[] data, boolean withResponse) {
+        boolean acknowledged = withResponse || slot != LampWriteScheduler.STATE;
+        Packet packet = new Packet(slot, data, acknowledged);
+        if (acknowledged) {
+            for (Packet p : controller) {
+                if (p.withResponse) {
+                    throw new IllegalStateException("GATT busy");
+                }
+            }
+            controller.add(packet);
+        } else {
+            host.add(packet);
+            fillBuffer();
+        }
+        return true;
+    }
+
+    void advanceTo(long time) {
+        while (true) {
+            long callbackAt = callbacks.isEmpty() ? Long.MAX_VALUE : callbacks.getFirst().callbackAt;
+            if (Math.min(callbackAt, nextEventAt) > time) {
+                break;
+            }
+            if (callbackAt < nextEventAt) {
+                now = callbackAt;
+                Packet packet = callbacks.removeFirst();
+                scheduler.onWriteComplete(packet.withResponse, true);
+            } else {
+                now = nextEventAt;
+                connectionEvent();
+                nextEventAt += intervalMicros;
+            }
+        }
+        now = time;
+    }
+
+    void drain() {
+        while (!controller.isEmpty() || !host.isEmpty() || !callbacks.isEmpty() || !scheduler.isIdle()) {
+            advanceTo(now + intervalMicros);
+        }
+    }
+
+    private void connectionEvent() {
+        int room = packetsPerEvent;
+        while (room > 0 && !controller.isEmpty()) {
+            Packet packet = controller.removeFirst();
+            deliveredSlots.add(packet.slot);
+            delivered.add(packet.data);
+            deliveredAt.add(now);
+            if (packet.withResponse) {
+                packet.callbackAt = now + intervalMicros;
+                schedule(packet);
+            }
+            room--;
+        }
+        fillBuffer();
+    }
+
+    private void fillBuffer() {
+        while (!host.isEmpty() && controller.size() < bufferPackets) {
+            Packet packet = host.removeFirst();
+            controller.add(packet);
+            packet.callbackAt = now;
+            schedule(packet);
+        }
+    }
+
+    private void schedule(Packet packet) {
+        int i = callbacks.size();
+        while (i > 0 && callbacks.get(i - 1).callbackAt > packet.callbackAt) {
+            i--;
+        }
+        callbacks.add(i, packet);
+    }
+}
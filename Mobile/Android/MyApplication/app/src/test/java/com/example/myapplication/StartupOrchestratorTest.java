@@ -0,0 +1,209 @@
+package com.example.myapplication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StartupOrchestratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Set by the test; tasks read it when they finish.
+    private static class FakeClock implements StartupOrchestrator.Clock {
+        final AtomicLong now = new AtomicLong(1000);
+
+        @Override
+        public long nowMillis() {
+            return now.get();
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+
+    private static class Result implements StartupOrchestrator.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        volatile ColdStartTrace trace;
+        volatile List<String> failed;
+
+        @Override
+        public void onReady(ColdStartTrace trace, List<String> failed) {
+            this.trace = trace;
+            this.failed = failed;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void transportsStartTogetherAfterTheFirstFrame() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        // Each task waits for the other, so this only finishes if they run
+        // at the same time.
+        final CyclicBarrier both = new CyclicBarrier(2);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+                try {
+                    both.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        StartupOrchestrator startup = new StartupOrchestrator(clock.nowMillis(), clock);
+        startup.addTask("mqtt", task);
+        startup.addTask("ble", task);
+        Result result = new Result();
+        startup.setListener(result);
+
+        clock.now.addAndGet(20);
+        assertEquals(0, ran.get());
+        assertFalse(startup.isStarted());
+
+        startup.onFirstFrame();
+        startup.onFirstFrame();
+        result.await();
+        assertEquals(2, ran.get());
+        assertEquals(1, result.calls.get());
+        assertTrue(result.failed.isEmpty());
+
+        ColdStartTrace trace = result.trace;
+        assertEquals(20, trace.getMillis(StartupOrchestrator.FIRST_FRAME));
+        assertTrue(trace.getMillis("mqtt") >= trace.getMillis(StartupOrchestrator.FIRST_FRAME));
+        assertTrue(trace.getMillis("ble") >= trace.getMillis(StartupOrchestrator.FIRST_FRAME));
+        assertTrue(trace.getMillis(StartupOrchestrator.READY) >= trace.getMillis("ble"));
+    }
+
+    @Test
+    public void aFailingTransportDoesNotHoldUpTheOthers() throws Exception {
+        StartupOrchestrator startup = new StartupOrchestrator(clock.nowMillis(), clock);
+        final AtomicInteger ran = new AtomicInteger();
+        startup.addTask("mqtt", new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        startup.addTask("ble", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("no adapter");
+            }
+        });
+        Result result = new Result();
+        startup.setListener(result);
+        startup.onFirstFrame();
+        result.await();
+
+        assertEquals(1, ran.get());
+        assertEquals(1, result.failed.size());
+        assertEquals("ble", result.failed.get(0));
+        assertTrue(result.trace.getMillis("ble") >= 0);
+
+        try {
+            startup.addTask("late", new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void traceIsAppendedOneLaunchPerLine() throws Exception {
+        File file = new File(folder.getRoot(), "cold-start-trace");
+        for (int build = 1; build <= 2; build++) {
+            ColdStartTrace trace = new ColdStartTrace(1000);
+            trace.mark(StartupOrchestrator.FIRST_FRAME, 1200);
+            trace.mark("ble", 1300);
+            trace.mark("ble", 1900);
+            trace.mark(StartupOrchestrator.READY, 1400 + build);
+            assertEquals(300, trace.getMillis("ble"));
+            assertEquals(-1, trace.getMillis("mqtt"));
+            trace.appendTo(file, "1.0-" + build);
+        }
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(2, lines.size());
+        assertEquals("1.0-1 cold start first frame=200ms ble=300ms ready=401ms", lines.get(0));
+        assertEquals("1.0-2 cold start first frame=200ms ble=300ms ready=402ms", lines.get(1));
+    }
+
+    // Two transports with typical warm up costs: class loading and the
+    // outbox for MQTT, the adapter and saved layouts for BLE. Each finishes
+    // at a set time on the fake clock; ready is the slower of the two, not
+    // their sum.
+    @Test
+    public void readyTakesAsLongAsTheSlowestTransport() throws Exception {
+        final CountDownLatch bleDone = new CountDownLatch(1);
+        final CountDownLatch mqttMay = new CountDownLatch(1);
+        StartupOrchestrator startup = new StartupOrchestrator(clock.nowMillis(), clock);
+        startup.addTask("mqtt", new Runnable() {
+            @Override
+            public void run() {
+                await(mqttMay);
+            }
+        });
+        startup.addTask("ble", new Runnable() {
+            @Override
+            public void run() {
+                clock.now.set(1180);
+                bleDone.countDown();
+            }
+        });
+        Result result = new Result();
+        startup.setListener(result);
+
+        clock.now.set(1100);
+        startup.onFirstFrame();
+        assertTrue(bleDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, result.done.getCount());
+        clock.now.set(1220);
+        mqttMay.countDown();
+        result.await();
+
+        ColdStartTrace trace = result.trace;
+        assertEquals(100, trace.getMillis(StartupOrchestrator.FIRST_FRAME));
+        assertEquals(220, trace.getMillis("mqtt"));
+        assertEquals(220, trace.getMillis(StartupOrchestrator.READY));
+        assertTrue(trace.getMillis("ble") >= 180);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
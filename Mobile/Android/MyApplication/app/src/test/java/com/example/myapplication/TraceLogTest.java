@@ -0,0 +1,157 @@
+package com.example.myapplication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TraceLogTest {
+
+    private static final int ITERATIONS = 200000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ringKeepsTheNewestEventsInOrder() throws Exception {
+        TraceLog trace = new TraceLog(4, TraceLog.VERBOSE);
+        assertEquals(4, trace.getCapacity());
+        for (int i = 0; i < 6; i++) {
+            trace.record(TraceLog.LAMP_HS, i, 255 - i);
+        }
+        assertEquals(6, trace.getRecordedCount());
+        assertEquals(2, trace.getOverwrittenCount());
+
+        StringWriter out = new StringWriter();
+        trace.dump(out);
+        String[] lines = out.toString().split("\n");
+        assertEquals("# 6 events, 2 overwritten", lines[0]);
+        assertEquals(5, lines.length);
+        assertTrue(lines[1], lines[1].endsWith(" lamp hs h=2 s=253"));
+        assertTrue(lines[4], lines[4].endsWith(" lamp hs h=5 s=250"));
+        assertTrue(lines[1], lines[1].startsWith("0.000 "));
+    }
+
+    @Test
+    public void levelDecidesWhatIsRecorded() {
+        TraceLog trace = new TraceLog(16, TraceLog.INFO);
+        trace.record(TraceLog.LAMP_HS, 1, 2);
+        trace.record(TraceLog.SCAN_RESULT, -60, 1);
+        trace.record(TraceLog.GATT_STATE, 0, 2);
+        trace.record(TraceLog.MQTT_CONNECTION_LOST, 0, 0);
+        assertEquals(2, trace.getRecordedCount());
+        assertFalse(trace.records(TraceLog.GATT_NOTIFY));
+        assertTrue(trace.records(TraceLog.GATT_MTU));
+
+        trace.setLevel(TraceLog.OFF);
+        trace.record(TraceLog.GATT_STATE, 0, 0);
+        assertEquals(2, trace.getRecordedCount());
+    }
+
+    @Test
+    public void dumpFormatsEachEvent() throws Exception {
+        TraceLog trace = new TraceLog(8, TraceLog.VERBOSE);
+        trace.record(TraceLog.SCAN_RESULT, -61, TraceLog.mac("B8:27:EB:00:00:0A"));
+        trace.record(TraceLog.GATT_WRITE, TraceLog.characteristic(BLEDriver.stateUUID), 0);
+        trace.record(TraceLog.LAMP_STATE, 1L << 24 | 0x10 << 16 | 0x20 << 8 | 0x30, 0);
+        trace.record(TraceLog.MQTT_CONNECTION_LOST, 0, 0);
+        trace.record(TraceLog.STREAM_END, 12, 3);
+
+        File file = new File(folder.getRoot(), "trace.txt");
+        trace.dumpTo(file);
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            assertEquals("# 5 events, 0 overwritten", in.readLine());
+            assertTrue(in.readLine().endsWith(" scan result rssi=-61 mac=b827eb00000a"));
+            assertTrue(in.readLine().endsWith(" gatt write characteristic=0005 status=0"));
+            assertTrue(in.readLine().endsWith(" lamp state state=01102030"));
+            assertTrue(in.readLine().endsWith(" mqtt connection lost "));
+            assertTrue(in.readLine().endsWith(" stream end sent=12 dropped=3"));
+            assertNull(in.readLine());
+        } finally {
+            in.close();
+        }
+    }
+
+    // What a notification used to cost in Log.d's message string alone,
+    // against recording it.
+    @Test
+    @Category(Benchmark.class)
+    public void recordingAllocatesNothing() {
+        final TraceLog trace = new TraceLog(1024, TraceLog.VERBOSE);
+        final byte[] val = {(byte) 0x40, (byte) 0xC0};
+
+        Result concatenated = measure(new Op() {
+            @Override
+            public long run(int i) {
+                val[0] = (byte) i;
+                String message = "HS: " + val[0] + " " + val[1];
+                return message.length();
+            }
+        });
+        Result recorded = measure(new Op() {
+            @Override
+            public long run(int i) {
+                val[0] = (byte) i;
+                trace.record(TraceLog.LAMP_HS, val[0] & 0xFF, val[1] & 0xFF);
+                return 1;
+            }
+        });
+        final TraceLog off = new TraceLog(1024, TraceLog.INFO);
+        Result gated = measure(new Op() {
+            @Override
+            public long run(int i) {
+                val[0] = (byte) i;
+                off.record(TraceLog.LAMP_HS, val[0] & 0xFF, val[1] & 0xFF);
+                return 1;
+            }
+        });
+
+        String report = String.format("string concat %.0f ops/s %.1f B/op, trace record %.0f ops/s %.1f B/op, "
+                        + "below level %.0f ops/s %.1f B/op", concatenated.opsPerSecond, concatenated.bytesPerOp,
+                recorded.opsPerSecond, recorded.bytesPerOp, gated.opsPerSecond, gated.bytesPerOp);
+        if (recorded.bytesPerOp >= 0) {
+            assertTrue(report, recorded.bytesPerOp < 1);
+            assertTrue(report, gated.bytesPerOp < 1);
+            assertTrue(report, concatenated.bytesPerOp > 16);
+        }
+        assertEquals(2 * ITERATIONS, trace.getRecordedCount());
+        assertEquals(0, off.getRecordedCount());
+    }
+
+    private interface Op {
+        long run(int i);
+    }
+
+    private static class Result {
+        double opsPerSecond;
+        double bytesPerOp;
+    }
+
+    private static Result measure(Op op) {
+        long sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += op.run(i);
+        }
+        long allocatedBefore = Allocations.threadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = Allocations.threadAllocatedBytes();
+        assertTrue(sink > 0);
+
+        Result result = new Result();
+        result.opsPerSecond = ITERATIONS * 1e9 / elapsed;
+        result.bytesPerOp = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / (double) ITERATIONS;
+        return result;
+    }
+}
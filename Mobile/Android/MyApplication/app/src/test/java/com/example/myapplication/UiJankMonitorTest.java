@@ -0,0 +1,31 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UiJankMonitorTest {
+
+    @Test
+    public void countsDroppedFrames() {
+        UiJankMonitor jank = new UiJankMonitor();
+        long frame = 16666667;
+        jank.onFrame(0);
+        jank.onFrame(frame);
+        jank.onFrame(2 * frame);
+        // a 50 ms stall while a slider was dragged
+        jank.onFrame(5 * frame);
+        assertEquals(4, jank.getFrameCount());
+        assertEquals(2, jank.getDroppedFrameCount());
+    }
+
+    @Test
+    public void recordsUiTimePerEvent() {
+        UiJankMonitor jank = new UiJankMonitor();
+        jank.end(UiJankMonitor.HUE, jank.begin());
+        jank.end(UiJankMonitor.HUE, jank.begin());
+        assertEquals(2, jank.getUiTime(UiJankMonitor.HUE).getCount());
+        assertEquals(0, jank.getUiTime(UiJankMonitor.POWER).getCount());
+        assertTrue(jank.describe().contains("hue ui"));
+    }
+}
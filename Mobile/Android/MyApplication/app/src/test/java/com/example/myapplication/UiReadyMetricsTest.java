@@ -0,0 +1,95 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UiReadyMetricsTest {
+
+    private static final long MILLIS = 1000000;
+    // A GATT round trip at a 30ms connection interval.
+    private static final long ROUND_TRIP = 30 * MILLIS;
+    private static final long FRAME = 16 * MILLIS;
+
+    private static LampUiReconciler.Update update(int hue, int sat, int val, Boolean isOn) {
+        LampUiReconciler.Update update = new LampUiReconciler.Update();
+        update.hue = hue;
+        update.sat = sat;
+        update.val = val;
+        if (isOn != null) {
+            update.hasPower = true;
+            update.isOn = isOn;
+        }
+        return update;
+    }
+
+    // Legacy BLE: three notify descriptors, then power, hsv and brightness
+    // are read one after another.
+    private static void legacyReads(UiReadyMetrics metrics, long connectAt) {
+        long t = connectAt + 3 * ROUND_TRIP;
+        metrics.onDeviceUpdate(t += ROUND_TRIP, update(LampUiReconciler.UNSET, LampUiReconciler.UNSET,
+                LampUiReconciler.UNSET, true));
+        metrics.onDeviceUpdate(t += ROUND_TRIP, update(40, 80, LampUiReconciler.UNSET, null));
+        metrics.onDeviceUpdate(t + ROUND_TRIP, update(LampUiReconciler.UNSET, LampUiReconciler.UNSET, 60, null));
+    }
+
+    @Test
+    public void readyIsWhenTheLastFieldArrivesWithoutACache() {
+        UiReadyMetrics metrics = new UiReadyMetrics();
+        metrics.onConnect(0);
+        legacyReads(metrics, 0);
+
+        assertEquals(1, metrics.getCacheMissCount());
+        assertEquals(6 * ROUND_TRIP / 1000, metrics.getReadyLatency().getMaxMicros());
+    }
+
+    @Test
+    public void readyIsThePaintWhenTheCacheWasRight() {
+        UiReadyMetrics metrics = new UiReadyMetrics();
+        metrics.onConnect(0);
+        metrics.onPainted(FRAME, true, 40, 80, 60);
+        legacyReads(metrics, 0);
+
+        assertEquals(1, metrics.getCacheHitCount());
+        assertEquals(FRAME / 1000, metrics.getReadyLatency().getMaxMicros());
+        assertEquals(6 * ROUND_TRIP / 1000, metrics.getDeviceLatency().getMaxMicros());
+    }
+
+    @Test
+    public void staleCacheCountsAsWaitingForTheDevice() {
+        UiReadyMetrics metrics = new UiReadyMetrics();
+        metrics.onConnect(0);
+        metrics.onPainted(FRAME, true, 40, 80, 10);
+        legacyReads(metrics, 0);
+
+        assertEquals(1, metrics.getCacheStaleCount());
+        assertEquals(6 * ROUND_TRIP / 1000, metrics.getReadyLatency().getMaxMicros());
+    }
+
+    @Test
+    public void updatesOutsideAConnectAreIgnored() {
+        UiReadyMetrics metrics = new UiReadyMetrics();
+        metrics.onDeviceUpdate(0, update(1, 2, 3, true));
+        metrics.onConnect(0);
+        metrics.onDeviceUpdate(ROUND_TRIP, update(1, 2, 3, true));
+        metrics.onDeviceUpdate(2 * ROUND_TRIP, update(1, 2, 3, true));
+
+        assertEquals(1, metrics.getDeviceLatency().getCount());
+    }
+
+    @Test
+    public void connectBeforeAndAfterTheCache() {
+        UiReadyMetrics before = new UiReadyMetrics();
+        UiReadyMetrics after = new UiReadyMetrics();
+        for (int i = 0; i < 20; i++) {
+            long connectAt = i * 1000 * MILLIS;
+            before.onConnect(connectAt);
+            legacyReads(before, connectAt);
+
+            after.onConnect(connectAt);
+            after.onPainted(connectAt + FRAME, true, 40, 80, 60);
+            legacyReads(after, connectAt);
+        }
+        assertTrue(after.describe() + " against " + before.describe(), after.getReadyLatency().getPercentileMicros(50) * 5 < before.getReadyLatency().getPercentileMicros(50));
+    }
+}